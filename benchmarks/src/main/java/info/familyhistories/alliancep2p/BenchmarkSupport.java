@@ -0,0 +1,97 @@
+package info.familyhistories.alliancep2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import org.alliance.core.CoreSubsystem;
+
+/**
+ * Set-up shared by the benchmarks: a stub core with its settings in a scratch folder, and synthetic share trees.
+ */
+public class BenchmarkSupport {
+
+  /** the time of the oldest file in a synthetic tree, so every run sees the same times */
+  static final long BASE_TIME = 1300000000000L;
+  /** how far apart (in millis) the file times are */
+  static final long TIME_STEP = 1000;
+
+  /**
+   * @return a stub core that keeps its settings, index, and database in workDir
+   */
+  public static CoreSubsystem core(File workDir) {
+    CoreSubsystem core = new CoreSubsystem();
+    new File(workDir, "downloads").mkdirs();
+    core.getSettings().getInternal().setDownloadfolder(new File(workDir, "downloads").getAbsolutePath());
+    core.getSettings().getInternal().setDatabasefile(new File(workDir, "alliance-db").getAbsolutePath());
+    return core;
+  }
+
+  /**
+   * Make a tree of empty files with evenly-spaced modified times (and every directory at BASE_TIME).
+   *
+   * @param shape "wide" for many directories side-by-side, or "deep" for one long chain of directories
+   * @return the number of files made, so the newest is at BASE_TIME + (count - 1) * TIME_STEP
+   */
+  public static int makeTree(File baseDir, String shape) throws IOException {
+    int dirs, filesPerDir;
+    boolean nested;
+    if ("wide".equals(shape)) {
+      dirs = 50;
+      filesPerDir = 200;
+      nested = false;
+    } else if ("deep".equals(shape)) {
+      dirs = 200;
+      filesPerDir = 10;
+      nested = true;
+    } else {
+      throw new IllegalArgumentException("Unknown tree shape: " + shape);
+    }
+
+    int count = 0;
+    File dir = baseDir;
+    for (int d = 0; d < dirs; d++) {
+      dir = new File(nested ? dir : baseDir, "dir" + d);
+      dir.mkdirs();
+      for (int f = 0; f < filesPerDir; f++) {
+        File file = new File(dir, "file" + f + ".txt");
+        file.createNewFile();
+        file.setLastModified(BASE_TIME + count * TIME_STEP);
+        count++;
+      }
+    }
+
+    // the directory times changed as we added to them, so set them all back
+    Files.walkFileTree(baseDir.toPath(), new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult postVisitDirectory(Path dirPath, IOException e) throws IOException {
+          dirPath.toFile().setLastModified(BASE_TIME);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    return count;
+  }
+
+  public static void deleteTree(File dir) throws IOException {
+    if (!dir.exists()) {
+      return;
+    }
+    Files.walkFileTree(dir.toPath(), new SimpleFileVisitor<Path>() {
+        @Override
+        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+          Files.delete(file);
+          return FileVisitResult.CONTINUE;
+        }
+        @Override
+        public FileVisitResult postVisitDirectory(Path dirPath, IOException e) throws IOException {
+          Files.delete(dirPath);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+  }
+
+}
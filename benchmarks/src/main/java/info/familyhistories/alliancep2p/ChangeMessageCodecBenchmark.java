@@ -0,0 +1,116 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeQuery;
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeReply;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to write and parse change queries and replies, and to compress and uncompress the replies.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class ChangeMessageCodecBenchmark {
+
+  @Param({"10", "1000"})
+  public int files;
+
+  @Param({"1", "2"})
+  public int version;
+
+  private ChangeQuery query;
+  private ChangeReply reply;
+  private String queryJson, replyJson, replyCompressed;
+
+  @Setup
+  public void setUp() {
+    // the same names every run
+    Random random = new Random(42);
+
+    query = new ChangeQuery();
+    query.version = version;
+    query.shareBaseIndex = 3;
+    query.shareSubPath = "photos/family/";
+    query.lastKnownModifiedTime = BenchmarkSupport.BASE_TIME;
+    if (version >= ChangeMessageCodec.VERSION_CURRENT) {
+      query.lastKnownSequence = "1300000000000-12345";
+      query.pageToken = "";
+    }
+
+    reply = new ChangeReply();
+    reply.version = version;
+    reply.shareBaseIndex = query.shareBaseIndex;
+    reply.shareSubPath = query.shareSubPath;
+    reply.lastModifiedTime = BenchmarkSupport.BASE_TIME + 1000000;
+    reply.fileList = new ArrayList<String>();
+    for (int i = 0; i < files; i++) {
+      StringBuilder name = new StringBuilder("dir" + random.nextInt(100) + "/");
+      for (int c = 0; c < 8 + random.nextInt(24); c++) {
+        name.append((char) ('a' + random.nextInt(26)));
+      }
+      if (version >= ChangeMessageCodec.VERSION_CURRENT && i % 10 == 0) {
+        // some names that need escaping
+        name.append(" \"copy\"\\1");
+      }
+      reply.fileList.add(name.append(".jpg").toString());
+    }
+    if (version >= ChangeMessageCodec.VERSION_CURRENT) {
+      reply.sequence = "1300000000000-12399";
+    }
+
+    queryJson = ChangeMessageCodec.encodeQuery(query);
+    replyJson = ChangeMessageCodec.encodeReply(reply, version);
+    // even 10 names compress, thanks to the dictionary
+    replyCompressed = MessageCompression.compress(replyJson);
+  }
+
+  @Benchmark
+  public String encodeQuery() {
+    return ChangeMessageCodec.encodeQuery(query);
+  }
+
+  @Benchmark
+  public ChangeQuery decodeQuery() throws ParseException {
+    return ChangeMessageCodec.decodeQuery(queryJson);
+  }
+
+  @Benchmark
+  public String encodeReply() {
+    return ChangeMessageCodec.encodeReply(reply, version);
+  }
+
+  @Benchmark
+  public ChangeReply decodeReply() throws ParseException {
+    return ChangeMessageCodec.decodeReply(replyJson);
+  }
+
+  @Benchmark
+  public String compressReply() {
+    return MessageCompression.compress(replyJson);
+  }
+
+  @Benchmark
+  public String decompressReply() throws ParseException {
+    return MessageCompression.decompress(replyCompressed);
+  }
+
+}
@@ -0,0 +1,90 @@
+package info.familyhistories.alliancep2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How long it takes to answer a change query from the index, on a tree that's already been scanned once,
+ * and from the shared listing that friends asking about the same path use.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class PathIndexBenchmark {
+
+  @Param({"wide", "deep"})
+  public String shape;
+
+  /** "none" asks from the newest time, "many" from halfway through the files */
+  @Param({"none", "many"})
+  public String changed;
+
+  private File workDir, baseDir;
+  private SubscribedPathIndex pathIndex;
+  private ChangeListingCache listingCache;
+  private long since;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    workDir = Files.createTempDirectory("pathIndexBenchmark").toFile();
+    baseDir = new File(workDir, "share");
+    int count = BenchmarkSupport.makeTree(baseDir, shape);
+    if ("none".equals(changed)) {
+      since = BenchmarkSupport.BASE_TIME + (count - 1) * BenchmarkSupport.TIME_STEP;
+    } else {
+      since = BenchmarkSupport.BASE_TIME + (count / 2) * BenchmarkSupport.TIME_STEP;
+    }
+    pathIndex = new SubscribedPathIndex(BenchmarkSupport.core(workDir), ScanBudget.UNLIMITED);
+    filesWithLatestTimestamps(0);
+    listingCache = new ChangeListingCache(pathIndex);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    pathIndex.shutdown();
+    BenchmarkSupport.deleteTree(workDir);
+  }
+
+  /** the way a query that the journal can't answer goes through the index */
+  @Benchmark
+  public List<CompactPathList> filesWithLatestTimestamps() {
+    return filesWithLatestTimestamps(since);
+  }
+
+  private List<CompactPathList> filesWithLatestTimestamps(long from) {
+    List<CompactPathList> changedFiles = new ArrayList<CompactPathList>();
+    changedFiles.add(new CompactPathList());
+    pathIndex.filesWithLatestTimestamps(baseDir, Collections.singletonList(""), new long[] { from }, changedFiles);
+    return changedFiles;
+  }
+
+  @Benchmark
+  public List<String> cachedListing() {
+    CompactPathList changedFiles = new CompactPathList();
+    listingCache.filesWithLatestTimestamp(0, "", baseDir, since, changedFiles);
+    return changedFiles;
+  }
+
+}
@@ -0,0 +1,141 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscription;
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscriptionPersistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.alliance.core.CoreSubsystem;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * How the subscription stores hold up when mostly looked up (as on every share-base list)
+ * and when mostly updated (as during a burst of downloads).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class SubscriptionPersistenceBenchmark {
+
+  static final int FRIENDS = 50;
+  static final int SUBSCRIPTIONS = 1000;
+  /** how many updates go in each batch for updateBatch */
+  static final int BATCH_SIZE = 100;
+
+  @Param({"serialized", "database"})
+  public String store;
+
+  private File workDir;
+  private FriendSubscriptionPersistence persistence;
+  private FriendSubscription[] subscriptions;
+  private int next = 0;
+  private long time = BenchmarkSupport.BASE_TIME;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException, SQLException {
+    workDir = Files.createTempDirectory("subscriptionPersistenceBenchmark").toFile();
+    CoreSubsystem core = BenchmarkSupport.core(workDir);
+    if ("serialized".equals(store)) {
+      persistence = new SerializedFriendSubscriptions(core);
+    } else if ("database".equals(store)) {
+      persistence = new DatabaseFriendSubscriptions(core);
+    } else {
+      throw new IllegalArgumentException("Unknown store: " + store);
+    }
+
+    // the same subscriptions, in the same shuffled order, every run
+    Random random = new Random(42);
+    subscriptions = new FriendSubscription[SUBSCRIPTIONS];
+    for (int i = 0; i < SUBSCRIPTIONS; i++) {
+      subscriptions[i] = new FriendSubscription(1000 + i % FRIENDS, "share" + (i % 3), "sub" + i + "/", "/tmp/local" + i, 0);
+      persistence.createFriendSubscription(subscriptions[i]);
+    }
+    for (int i = SUBSCRIPTIONS - 1; i > 0; i--) {
+      int j = random.nextInt(i + 1);
+      FriendSubscription swap = subscriptions[i];
+      subscriptions[i] = subscriptions[j];
+      subscriptions[j] = swap;
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    persistence.shutdown();
+    BenchmarkSupport.deleteTree(workDir);
+  }
+
+  private FriendSubscription nextSubscription() {
+    next = (next + 1) % SUBSCRIPTIONS;
+    return subscriptions[next];
+  }
+
+  /** nine lookups (one of them by friend) for every update */
+  @Benchmark
+  @OperationsPerInvocation(10)
+  public int lookupHeavy() throws SQLException {
+    int found = 0;
+    for (int i = 0; i < 8; i++) {
+      FriendSubscription fsub = nextSubscription();
+      if (persistence.getFriendSubscription(fsub.guid, fsub.shareBasePath, fsub.shareSubPath) != null) {
+        found++;
+      }
+    }
+    FriendSubscription fsub = nextSubscription();
+    found += persistence.getFriendSubscriptions(fsub.guid).size();
+    fsub = nextSubscription();
+    persistence.updateFriendSubscription(fsub.guid, fsub.shareBasePath, fsub.shareSubPath, ++time);
+    return found;
+  }
+
+  /** one lookup for every nine updates */
+  @Benchmark
+  @OperationsPerInvocation(10)
+  public int updateHeavy() throws SQLException {
+    int found = 0;
+    FriendSubscription fsub = nextSubscription();
+    if (persistence.getFriendSubscription(fsub.guid, fsub.shareBasePath, fsub.shareSubPath) != null) {
+      found++;
+    }
+    for (int i = 0; i < 9; i++) {
+      fsub = nextSubscription();
+      persistence.updateFriendSubscription(fsub.guid, fsub.shareBasePath, fsub.shareSubPath, ++time);
+    }
+    return found;
+  }
+
+  /** the same updates as updateHeavy would make, all in one batch */
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public int updateBatch() throws SQLException {
+    List<FriendSubscription> updates = new ArrayList<FriendSubscription>(BATCH_SIZE);
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      FriendSubscription fsub = nextSubscription();
+      updates.add(new FriendSubscription(fsub.guid, fsub.shareBasePath, fsub.shareSubPath, fsub.localPath, ++time));
+    }
+    return persistence.updateFriendSubscriptions(updates);
+  }
+
+}
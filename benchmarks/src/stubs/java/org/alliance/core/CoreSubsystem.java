@@ -0,0 +1,37 @@
+package org.alliance.core;
+
+import org.alliance.core.file.FileManager;
+import org.alliance.core.node.FriendManager;
+import org.alliance.core.settings.Settings;
+
+/**
+ * Stub of the Alliance core, with just what the plugin uses, so the benchmarks can run without Alliance.
+ *
+ * Tasks given to invokeLater are run right away.
+ */
+public class CoreSubsystem {
+
+  private final Settings settings = new Settings();
+  private final FileManager fileManager = new FileManager();
+  private final FriendManager friendManager = new FriendManager();
+
+  public FileManager getFileManager() {
+    return fileManager;
+  }
+
+  public Settings getSettings() {
+    return settings;
+  }
+
+  public FriendManager getFriendManager() {
+    return friendManager;
+  }
+
+  public void invokeLater(Runnable runnable) {
+    runnable.run();
+  }
+
+  public void addUICallback(UICallback callback) {
+  }
+
+}
@@ -0,0 +1,16 @@
+package org.alliance.core;
+
+import org.alliance.core.node.Friend;
+import org.alliance.core.node.Node;
+
+/**
+ * Stub of the Alliance callback that ignores everything.
+ */
+public class NonWindowUICallback implements UICallback {
+  public void nodeOrSubnodesUpdated(Node node) {
+  }
+  public void receivedShareBaseList(Friend friend, String[] shareBaseNames) {
+  }
+  public void pluginCommunicationReceived(Friend source, String data) {
+  }
+}
@@ -0,0 +1,13 @@
+package org.alliance.core;
+
+import org.alliance.core.node.Friend;
+import org.alliance.core.node.Node;
+
+/**
+ * Stub of the Alliance UI callback, with just the calls the plugin uses.
+ */
+public interface UICallback {
+  public void nodeOrSubnodesUpdated(Node node);
+  public void receivedShareBaseList(Friend friend, String[] shareBaseNames);
+  public void pluginCommunicationReceived(Friend source, String data);
+}
@@ -0,0 +1,20 @@
+package org.alliance.core.comm;
+
+import java.io.IOException;
+
+/**
+ * Stub of a connection to a friend, which just counts what's sent.
+ */
+public class FriendConnection {
+
+  private long sent = 0;
+
+  public void send(RPC rpc) throws IOException {
+    sent++;
+  }
+
+  public long getSent() {
+    return sent;
+  }
+
+}
@@ -0,0 +1,7 @@
+package org.alliance.core.comm;
+
+/**
+ * Stub of an Alliance RPC.
+ */
+public abstract class RPC {
+}
@@ -0,0 +1,13 @@
+package org.alliance.core.comm.rpc;
+
+import org.alliance.core.comm.RPC;
+
+/**
+ * Stub of the Alliance GetHashesForPath RPC.
+ */
+public class GetHashesForPath extends RPC {
+
+  public GetHashesForPath(int shareBaseIndex, String path) {
+  }
+
+}
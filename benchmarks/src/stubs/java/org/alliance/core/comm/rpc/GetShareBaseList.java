@@ -0,0 +1,13 @@
+package org.alliance.core.comm.rpc;
+
+import org.alliance.core.comm.RPC;
+
+/**
+ * Stub of the Alliance GetShareBaseList RPC.
+ */
+public class GetShareBaseList extends RPC {
+
+  public GetShareBaseList() {
+  }
+
+}
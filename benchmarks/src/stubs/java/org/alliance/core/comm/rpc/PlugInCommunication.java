@@ -0,0 +1,13 @@
+package org.alliance.core.comm.rpc;
+
+import org.alliance.core.comm.RPC;
+
+/**
+ * Stub of the Alliance PlugInCommunication RPC.
+ */
+public class PlugInCommunication extends RPC {
+
+  public PlugInCommunication(String data) {
+  }
+
+}
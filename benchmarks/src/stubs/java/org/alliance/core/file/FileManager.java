@@ -0,0 +1,28 @@
+package org.alliance.core.file;
+
+import org.alliance.core.file.h2database.DatabaseCore;
+import org.alliance.core.file.share.DownloadStorage;
+import org.alliance.core.file.share.ShareManager;
+
+/**
+ * Stub of the Alliance file manager.
+ */
+public class FileManager {
+
+  private final ShareManager shareManager = new ShareManager();
+  private final DownloadStorage downloadStorage = new DownloadStorage();
+  private final DatabaseCore dbCore = new DatabaseCore();
+
+  public ShareManager getShareManager() {
+    return shareManager;
+  }
+
+  public DownloadStorage getDownloadStorage() {
+    return downloadStorage;
+  }
+
+  public DatabaseCore getDbCore() {
+    return dbCore;
+  }
+
+}
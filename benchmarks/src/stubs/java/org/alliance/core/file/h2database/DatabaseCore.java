@@ -0,0 +1,20 @@
+package org.alliance.core.file.h2database;
+
+import java.sql.Connection;
+
+/**
+ * Stub of the Alliance database core, with the private fields that DatabaseFriendSubscriptions reads,
+ * set up for an embedded H2 file at the database file in the settings.
+ */
+public class DatabaseCore {
+
+  private static String DRIVER = "org.h2.Driver";
+  private static String DRIVERURL = "jdbc:h2:";
+  private static String TYPE = "file:";
+  private static String OPTIONS = "";
+  private static String USER = "sa";
+  private static String PASSWORD = "";
+
+  private Connection conn = null;
+
+}
@@ -0,0 +1,18 @@
+package org.alliance.core.file.share;
+
+/**
+ * Stub of the Alliance download queue, which just counts the downloads.
+ */
+public class DownloadStorage {
+
+  private long downloadsAdded = 0;
+
+  public void addCustomDownload(int guid, String localPath, String remotePath) {
+    downloadsAdded++;
+  }
+
+  public long getDownloadsAdded() {
+    return downloadsAdded;
+  }
+
+}
@@ -0,0 +1,18 @@
+package org.alliance.core.file.share;
+
+/**
+ * Stub of an Alliance share-base.
+ */
+public class ShareBase {
+
+  private final String path;
+
+  public ShareBase(String _path) {
+    this.path = _path;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+}
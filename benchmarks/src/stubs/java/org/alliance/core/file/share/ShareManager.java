@@ -0,0 +1,21 @@
+package org.alliance.core.file.share;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stub of the Alliance share manager: share-bases are whatever is added here.
+ */
+public class ShareManager {
+
+  private final List<ShareBase> bases = new ArrayList<ShareBase>();
+
+  public void addBase(ShareBase base) {
+    bases.add(base);
+  }
+
+  public ShareBase getBaseByIndex(int index) {
+    return index < bases.size() ? bases.get(index) : null;
+  }
+
+}
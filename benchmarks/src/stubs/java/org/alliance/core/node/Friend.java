@@ -0,0 +1,20 @@
+package org.alliance.core.node;
+
+import org.alliance.core.comm.FriendConnection;
+
+/**
+ * Stub of an Alliance friend, whose connection drops everything sent to it.
+ */
+public class Friend extends Node {
+
+  private final FriendConnection friendConnection = new FriendConnection();
+
+  public Friend(int _guid, String _nickname) {
+    super(_guid, _nickname);
+  }
+
+  public FriendConnection getFriendConnection() {
+    return friendConnection;
+  }
+
+}
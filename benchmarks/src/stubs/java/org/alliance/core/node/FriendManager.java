@@ -0,0 +1,30 @@
+package org.alliance.core.node;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stub of the Alliance friend manager: friends are whoever is added here.
+ */
+public class FriendManager {
+
+  private final Map<Integer, Friend> friends = new HashMap<Integer, Friend>();
+
+  public void addFriend(Friend friend) {
+    friends.put(friend.getGuid(), friend);
+  }
+
+  public Friend getFriend(int guid) {
+    return friends.get(guid);
+  }
+
+  public Friend getFriend(String nickname) {
+    for (Friend friend : friends.values()) {
+      if (friend.getNickname().equals(nickname)) {
+        return friend;
+      }
+    }
+    return null;
+  }
+
+}
@@ -0,0 +1,28 @@
+package org.alliance.core.node;
+
+/**
+ * Stub of an Alliance node.
+ */
+public abstract class Node {
+
+  private final int guid;
+  private final String nickname;
+
+  protected Node(int _guid, String _nickname) {
+    this.guid = _guid;
+    this.nickname = _nickname;
+  }
+
+  public int getGuid() {
+    return guid;
+  }
+
+  public String getNickname() {
+    return nickname;
+  }
+
+  public boolean isConnected() {
+    return true;
+  }
+
+}
@@ -0,0 +1,10 @@
+package org.alliance.core.plugins;
+
+import org.alliance.launchers.console.Console.Printer;
+
+/**
+ * Stub of the Alliance console extension interface.
+ */
+public interface ConsolePlugInExtension {
+  public boolean handleLine(String line, Printer printer);
+}
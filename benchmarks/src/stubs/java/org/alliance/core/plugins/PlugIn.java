@@ -0,0 +1,12 @@
+package org.alliance.core.plugins;
+
+import org.alliance.core.CoreSubsystem;
+
+/**
+ * Stub of the Alliance plugin interface.
+ */
+public interface PlugIn {
+  public void init(CoreSubsystem core) throws Exception;
+  public void shutdown() throws Exception;
+  public ConsolePlugInExtension getConsoleExtensions();
+}
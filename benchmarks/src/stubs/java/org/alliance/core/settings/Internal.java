@@ -0,0 +1,26 @@
+package org.alliance.core.settings;
+
+/**
+ * Stub of the Alliance internal settings, with the folders the plugin keeps its files beside.
+ */
+public class Internal {
+
+  private String downloadfolder, databasefile;
+
+  public String getDownloadfolder() {
+    return downloadfolder;
+  }
+
+  public void setDownloadfolder(String _downloadfolder) {
+    this.downloadfolder = _downloadfolder;
+  }
+
+  public String getDatabasefile() {
+    return databasefile;
+  }
+
+  public void setDatabasefile(String _databasefile) {
+    this.databasefile = _databasefile;
+  }
+
+}
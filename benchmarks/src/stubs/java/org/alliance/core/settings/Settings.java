@@ -0,0 +1,14 @@
+package org.alliance.core.settings;
+
+/**
+ * Stub of the Alliance settings.
+ */
+public class Settings {
+
+  private final Internal internal = new Internal();
+
+  public Internal getInternal() {
+    return internal;
+  }
+
+}
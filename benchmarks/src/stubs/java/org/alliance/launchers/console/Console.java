@@ -0,0 +1,12 @@
+package org.alliance.launchers.console;
+
+/**
+ * Stub of the Alliance debug console, for its Printer.
+ */
+public class Console {
+
+  public static interface Printer {
+    public void println(String line);
+  }
+
+}
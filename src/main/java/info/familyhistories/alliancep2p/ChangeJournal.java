@@ -0,0 +1,142 @@
+package info.familyhistories.alliancep2p;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Append-only record of the paths that changed under each watched subscribed path, numbered in order.
+ *
+ * This only lives in memory, so a token handed out to a friend carries the epoch (start time) of this journal;
+ * a token from an earlier run (or from before we started watching a path) can't be answered here,
+ * and the caller has to fall back to the file index.
+ *
+ * Listeners hear about each path as it's appended, eg. to tell friends right away.
+ */
+public class ChangeJournal {
+
+  /** when a path has more entries than this, we drop the older half (and queries from before then fall back) */
+  static final int MAX_ENTRIES_PER_PATH = 100000;
+
+  private static final String TOKEN_SEPARATOR = "-";
+
+  public static interface Listener {
+    /** called while the journal is locked, so be quick */
+    public void appended(String subscribedPath, String relativePath);
+  }
+
+  static class Entry {
+    final long sequence;
+    final String relativePath;
+    Entry(long _sequence, String _relativePath) {
+      this.sequence = _sequence;
+      this.relativePath = _relativePath;
+    }
+  }
+
+  private static class PathJournal {
+    final List<Entry> entries = new ArrayList<Entry>();
+    /** sequence before which we know nothing about this path */
+    long complete;
+    PathJournal(long _complete) {
+      this.complete = _complete;
+    }
+  }
+
+  private final long epoch = System.currentTimeMillis();
+  private long lastSequence = 0;
+
+  /** map from absolute subscribed path to the entries for it */
+  private final Map<String, PathJournal> journals = new HashMap<String, PathJournal>();
+
+  private final List<Listener> listeners = new ArrayList<Listener>();
+
+  public synchronized void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Start a journal for this path, if there isn't one already.
+   * @return true if this is a new journal
+   */
+  public synchronized boolean start(String subscribedPath) {
+    if (journals.containsKey(subscribedPath)) {
+      return false;
+    }
+    journals.put(subscribedPath, new PathJournal(lastSequence));
+    return true;
+  }
+
+  public synchronized long append(String subscribedPath, String relativePath) {
+    PathJournal journal = journals.get(subscribedPath);
+    lastSequence++;
+    if (journal != null) {
+      journal.entries.add(new Entry(lastSequence, relativePath));
+      if (journal.entries.size() > MAX_ENTRIES_PER_PATH) {
+        List<Entry> dropped = journal.entries.subList(0, journal.entries.size() / 2);
+        journal.complete = dropped.get(dropped.size() - 1).sequence;
+        dropped.clear();
+      }
+      for (Listener listener : listeners) {
+        listener.appended(subscribedPath, relativePath);
+      }
+    }
+    return lastSequence;
+  }
+
+  /**
+   * @return a token for everything recorded so far, to be sent back to us with the next query
+   */
+  public synchronized String currentToken() {
+    return epoch + TOKEN_SEPARATOR + lastSequence;
+  }
+
+  /**
+   * @return the sequence number in the token, or -1 if it's not from this journal
+   */
+  public long sequenceOf(String token) {
+    int sep = token.indexOf(TOKEN_SEPARATOR);
+    if (sep == -1) {
+      return -1;
+    }
+    try {
+      if (Long.parseLong(token.substring(0, sep)) != epoch) {
+        return -1;
+      }
+      return Long.parseLong(token.substring(sep + 1));
+    } catch (NumberFormatException e) {
+      System.err.println("Got a bad change journal token: " + token);
+      return -1;
+    }
+  }
+
+  /**
+   * @param changedPaths paths (relative to the subscribed path) recorded after that sequence, modified as we find more
+   * @return false if the journal doesn't reach back to that sequence for this path, in which case changedPaths is untouched
+   */
+  public synchronized boolean changedSince(String subscribedPath, long sequence, Set<String> changedPaths) {
+    PathJournal journal = journals.get(subscribedPath);
+    if (journal == null
+        || sequence < journal.complete
+        || sequence > lastSequence) {
+      return false;
+    }
+    // sequences only go up, so find the first one after the given sequence with a binary search
+    int low = 0, high = journal.entries.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (journal.entries.get(mid).sequence <= sequence) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    for (int i = low; i < journal.entries.size(); i++) {
+      changedPaths.add(journal.entries.get(i).relativePath);
+    }
+    return true;
+  }
+
+}
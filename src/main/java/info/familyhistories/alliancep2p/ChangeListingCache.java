@@ -0,0 +1,176 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.SubscribedPathIndex.FileEntry;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Answer change queries about a subscribed path from a listing of its files sorted by time, shared by every friend
+ * who asks about it within LISTING_TIMEOUT, so several friends subscribed to the same path don't each cost a walk.
+ *
+ * Any friend's last-known time is answered with a binary search.  When several queries need the same listing at once,
+ * only one of them builds it and the rest wait for it.  We keep at most MAX_LISTINGS of them, dropping the least
+ * recently used, and we drop a listing as soon as the ChangeJournal hears of a change under its path.
+ */
+public class ChangeListingCache implements ChangeJournal.Listener {
+
+  /** how long (in millis) a listing is used before we look at the index again */
+  static final long LISTING_TIMEOUT = 10 * 1000;
+  static final int MAX_LISTINGS = 32;
+
+  /** the files under a path sorted by time, oldest first */
+  static class Listing {
+    final String subscribedPath;
+    final long built = System.currentTimeMillis();
+    /** the paths with their times, oldest first (and by name when the times are the same, so more is shared) */
+    final CompactPathList files;
+    /** the latest time of the directories and files that the index can vouch for (see SubscribedPathIndex.allFiles) */
+    final long latestTime;
+    Listing(String _subscribedPath, CompactPathList _files, long _latestTime) {
+      this.subscribedPath = _subscribedPath;
+      this.files = _files;
+      this.latestTime = _latestTime;
+    }
+  }
+
+  private final SubscribedPathIndex pathIndex;
+  /** map from share-base index and sub-path to the listing, in order of use (guarded by itself) */
+  private final Map<String, Listing> listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+        return size() > MAX_LISTINGS;
+      }
+    };
+  /** listings being built, so others can wait for them (guarded by listings) */
+  private final Map<String, FutureTask<Listing>> building = new HashMap<String, FutureTask<Listing>>();
+  /** how many changes the journal has told us about, so a listing built across one isn't kept (guarded by listings) */
+  private long changeCount = 0;
+
+  ChangeListingCache(SubscribedPathIndex _pathIndex) {
+    this.pathIndex = _pathIndex;
+  }
+
+  private static String listingKey(int shareBaseIndex, String shareSubPath) {
+    return shareBaseIndex + File.pathSeparator + shareSubPath;
+  }
+
+  /**
+   * Like SubscribedPathIndex.filesWithLatestTimestamps for a single path, from a shared listing.
+   *
+   * @param changedFiles gets each changed file with its time
+   */
+  public long filesWithLatestTimestamp(int shareBaseIndex, String shareSubPath, File baseDir, long friendsLastKnownTimestamp,
+                                       CompactPathList changedFiles) {
+    Listing listing = listingFor(listingKey(shareBaseIndex, shareSubPath), baseDir);
+    CompactPathList files = listing.files;
+    // find the first file after their time
+    int low = 0, high = files.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (files.timeAt(mid) <= friendsLastKnownTimestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    int i = low;
+    for (Iterator<String> paths = files.iterator(low); paths.hasNext(); i++) {
+      changedFiles.add(paths.next(), files.timeAt(i));
+    }
+    return listing.latestTime;
+  }
+
+  private Listing listingFor(final String key, final File baseDir) {
+    FutureTask<Listing> task;
+    boolean ours = false;
+    long startCount;
+    synchronized (listings) {
+      startCount = changeCount;
+      Listing listing = listings.get(key);
+      if (listing != null
+          && listing.built + LISTING_TIMEOUT > System.currentTimeMillis()) {
+        return listing;
+      }
+      task = building.get(key);
+      if (task == null) {
+        task = new FutureTask<Listing>(new Callable<Listing>() {
+            public Listing call() {
+              return build(baseDir);
+            }
+          });
+        building.put(key, task);
+        ours = true;
+      }
+    }
+    if (ours) {
+      task.run();
+    }
+    try {
+      Listing listing = task.get();
+      if (ours) {
+        synchronized (listings) {
+          building.remove(key);
+          if (changeCount == startCount) {
+            listings.put(key, listing);
+          }
+        }
+      }
+      return listing;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return build(baseDir);
+    } catch (ExecutionException e) {
+      if (ours) {
+        synchronized (listings) {
+          building.remove(key);
+        }
+      }
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  private Listing build(File baseDir) {
+    Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+    long latestTime = pathIndex.allFiles(baseDir, files);
+    List<Map.Entry<String, FileEntry>> sorted = new ArrayList<Map.Entry<String, FileEntry>>(files.entrySet());
+    Collections.sort(sorted, new Comparator<Map.Entry<String, FileEntry>>() {
+        public int compare(Map.Entry<String, FileEntry> a, Map.Entry<String, FileEntry> b) {
+          int byTime = Long.compare(a.getValue().lastModified, b.getValue().lastModified);
+          return byTime != 0 ? byTime : a.getKey().compareTo(b.getKey());
+        }
+      });
+    CompactPathList sortedFiles = new CompactPathList();
+    for (Map.Entry<String, FileEntry> entry : sorted) {
+      sortedFiles.add(entry.getKey(), entry.getValue().lastModified);
+    }
+    return new Listing(baseDir.toPath().toAbsolutePath().toString(), sortedFiles, latestTime);
+  }
+
+  @Override
+  public void appended(String subscribedPath, String relativePath) {
+    synchronized (listings) {
+      changeCount++;
+      for (Iterator<Listing> listing = listings.values().iterator(); listing.hasNext(); ) {
+        if (listing.next().subscribedPath.equals(subscribedPath)) {
+          listing.remove();
+        }
+      }
+    }
+  }
+
+}
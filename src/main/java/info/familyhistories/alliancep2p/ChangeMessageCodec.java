@@ -0,0 +1,766 @@
+package info.familyhistories.alliancep2p;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write and read the JSON bodies of the .changes.query, .changes.reply, and .changes.notice messages,
+ * and of the .changes.batchquery and .changes.batchreply messages, which hold a list of those queries or replies.
+ *
+ * Since version 2 the "version" key comes first and strings are escaped properly, so paths may contain anything.
+ * Messages without a version are from older friends, who don't escape anything; we read those with every
+ * string running to the next quote, and we answer them in exactly the layout their positional parser expects.
+ *
+ * Parsing is one pass over the characters, straight into the message fields.
+ */
+public class ChangeMessageCodec {
+
+  // Remember: if you change these after some live in the wild, you'll have to handle versioning.
+  static final int VERSION_LEGACY = 1;
+  static final int VERSION_CURRENT = 2;
+
+  static final String KEY_VERSION = "version";
+  static final String KEY_SHARE_BASE_INDEX = "shareBaseIndex";
+  static final String KEY_SHARE_SUB_PATH = "shareSubPath";
+  static final String KEY_FILE_LIST = "fileList";
+  static final String KEY_LAST_MODIFIED_TIME = "lastModifiedTime";
+  static final String KEY_LAST_KNOWN_MODIFIED_TIME = "lastKnownModifiedTime";
+  static final String KEY_LAST_KNOWN_SEQUENCE = "lastKnownSequence";
+  static final String KEY_SEQUENCE = "sequence";
+  static final String KEY_PAGE_TOKEN = "pageToken";
+  static final String KEY_FILE_DIGESTS = "fileDigests";
+  static final String KEY_MANIFEST_VERSION = "manifestVersion";
+  static final String KEY_MANIFEST_DELTA = "manifestDelta";
+  static final String KEY_MERKLE_MODE = "merkleMode";
+  static final String KEY_MERKLE_PATH = "merklePath";
+  static final String KEY_MERKLE_HASH = "merkleHash";
+  static final String KEY_MERKLE_CHILDREN = "merkleChildren";
+  static final String KEY_RETRY_AFTER = "retryAfter";
+  static final String KEY_COMPRESSION = "compression";
+  static final String KEY_FILE_SIZES = "fileSizes";
+  static final String KEY_BATCH_QUERIES = "batchQueries";
+  static final String KEY_QUERIES = "queries";
+  static final String KEY_REPLIES = "replies";
+
+  public static class ChangeQuery {
+    int version = VERSION_CURRENT;
+    int shareBaseIndex = -1;
+    String shareSubPath;
+    long lastKnownModifiedTime = -1;
+    /** null if the friend doesn't know about journal sequences */
+    String lastKnownSequence;
+    /** null if the friend doesn't ask for pages */
+    String pageToken;
+    /** the version of our manifest the friend has ("" for none), or null if they don't take manifests */
+    String manifestVersion;
+    /** the kind of file hash in merkleHash (see MerkleSync), or null if they aren't comparing hash trees */
+    String merkleMode;
+    /** the directory they're asking about, relative to shareSubPath ("" for the top) */
+    String merklePath;
+    /** their hash of merklePath ("" if they have nothing there) */
+    String merkleHash;
+    /** the compressed reply bodies they can read (see MessageCompression), or null for none */
+    String compression;
+  }
+
+  /** sent (since version 2) to a friend who asked about a path, when something under it changes */
+  public static class ChangeNotice {
+    int version = VERSION_CURRENT;
+    int shareBaseIndex = -1;
+    String shareSubPath;
+  }
+
+  public static class ChangeReply {
+    int version = VERSION_CURRENT;
+    int shareBaseIndex = -1;
+    String shareSubPath;
+    long lastModifiedTime = -1;
+    String sequence;
+    List<String> fileList;
+    String pageToken;
+    /** the content digest of each file in fileList, or null if they didn't send any */
+    List<String> fileDigests;
+    /** the size of each file in fileList (-1 if it's gone), or null if they didn't send them */
+    List<Long> fileSizes;
+    /** the manifest version after manifestDelta, or null if this isn't a manifest reply */
+    String manifestVersion;
+    /** the encoded FileManifest.Delta, or null if this isn't a manifest reply */
+    String manifestDelta;
+    /** the kind of file hash in the hash tree, or null if this isn't a hash tree reply */
+    String merkleMode;
+    String merklePath;
+    /** our hash of merklePath */
+    String merkleHash;
+    /** the entries of merklePath (see MerkleSync.Tree), or null if the hashes were the same */
+    List<String> merkleChildren;
+    /** millis to wait before asking again because we were too busy to answer, or 0 if this is an answer */
+    long retryAfter = 0;
+    /** how many queries we'll take in one batch query, or 0 if we don't take them */
+    int batchQueries = 0;
+  }
+
+  public static String encodeQuery(ChangeQuery query) {
+    StringBuilder json = new StringBuilder();
+    json.append("{");
+    appendKey(json, KEY_VERSION, true).append(VERSION_CURRENT);
+    appendKey(json, KEY_SHARE_BASE_INDEX, false).append(query.shareBaseIndex);
+    appendString(appendKey(json, KEY_SHARE_SUB_PATH, false), query.shareSubPath, true);
+    appendKey(json, KEY_LAST_KNOWN_MODIFIED_TIME, false).append(query.lastKnownModifiedTime);
+    // these are always sent (even empty) so they know we can take a sequence and will ask for each page
+    appendString(appendKey(json, KEY_LAST_KNOWN_SEQUENCE, false), query.lastKnownSequence == null ? "" : query.lastKnownSequence, true);
+    appendString(appendKey(json, KEY_PAGE_TOKEN, false), query.pageToken == null ? "" : query.pageToken, true);
+    if (query.manifestVersion != null) {
+      appendString(appendKey(json, KEY_MANIFEST_VERSION, false), query.manifestVersion, true);
+    }
+    if (query.merklePath != null) {
+      appendString(appendKey(json, KEY_MERKLE_MODE, false), query.merkleMode, true);
+      appendString(appendKey(json, KEY_MERKLE_PATH, false), query.merklePath, true);
+      appendString(appendKey(json, KEY_MERKLE_HASH, false), query.merkleHash, true);
+    }
+    if (query.compression != null) {
+      appendString(appendKey(json, KEY_COMPRESSION, false), query.compression, true);
+    }
+    json.append("}");
+    return json.toString();
+  }
+
+  /**
+   * @param version the version of the query we're answering; legacy friends get just the keys they always had
+   */
+  public static String encodeReply(ChangeReply reply, int version) {
+    boolean escape = version >= VERSION_CURRENT;
+    StringBuilder json = new StringBuilder();
+    json.append("{");
+    if (escape) {
+      appendKey(json, KEY_VERSION, true).append(VERSION_CURRENT);
+    }
+    // legacy friends read these positionally, so keep this order
+    appendKey(json, KEY_SHARE_BASE_INDEX, !escape).append(reply.shareBaseIndex);
+    appendString(appendKey(json, KEY_SHARE_SUB_PATH, false), reply.shareSubPath, escape);
+    appendKey(json, KEY_LAST_MODIFIED_TIME, false).append(reply.lastModifiedTime);
+    if (reply.sequence != null
+        && escape) {
+      appendString(appendKey(json, KEY_SEQUENCE, false), reply.sequence, escape);
+    }
+    appendKey(json, KEY_FILE_LIST, false).append("[");
+    // in order, since a CompactPathList decodes each once that way
+    boolean firstFile = true;
+    for (String file : reply.fileList) {
+      if (!firstFile) {
+        json.append(",");
+      }
+      appendString(json, file, escape);
+      firstFile = false;
+    }
+    json.append("]");
+    if (reply.pageToken != null
+        && escape) {
+      appendString(appendKey(json, KEY_PAGE_TOKEN, false), reply.pageToken, escape);
+    }
+    if (reply.fileDigests != null
+        && escape) {
+      appendKey(json, KEY_FILE_DIGESTS, false).append("[");
+      for (int i = 0; i < reply.fileDigests.size(); i++) {
+        if (i > 0) {
+          json.append(",");
+        }
+        appendString(json, reply.fileDigests.get(i), escape);
+      }
+      json.append("]");
+    }
+    if (reply.fileSizes != null
+        && escape) {
+      appendKey(json, KEY_FILE_SIZES, false).append("[");
+      for (int i = 0; i < reply.fileSizes.size(); i++) {
+        if (i > 0) {
+          json.append(",");
+        }
+        json.append(reply.fileSizes.get(i).longValue());
+      }
+      json.append("]");
+    }
+    if (reply.manifestDelta != null
+        && escape) {
+      appendString(appendKey(json, KEY_MANIFEST_VERSION, false), reply.manifestVersion, escape);
+      appendString(appendKey(json, KEY_MANIFEST_DELTA, false), reply.manifestDelta, escape);
+    }
+    if (reply.retryAfter > 0
+        && escape) {
+      appendKey(json, KEY_RETRY_AFTER, false).append(reply.retryAfter);
+    }
+    if (reply.batchQueries > 0
+        && escape) {
+      appendKey(json, KEY_BATCH_QUERIES, false).append(reply.batchQueries);
+    }
+    if (reply.merklePath != null
+        && escape) {
+      appendString(appendKey(json, KEY_MERKLE_MODE, false), reply.merkleMode, escape);
+      appendString(appendKey(json, KEY_MERKLE_PATH, false), reply.merklePath, escape);
+      appendString(appendKey(json, KEY_MERKLE_HASH, false), reply.merkleHash, escape);
+      if (reply.merkleChildren != null) {
+        appendKey(json, KEY_MERKLE_CHILDREN, false).append("[");
+        for (int i = 0; i < reply.merkleChildren.size(); i++) {
+          if (i > 0) {
+            json.append(",");
+          }
+          appendString(json, reply.merkleChildren.get(i), escape);
+        }
+        json.append("]");
+      }
+    }
+    json.append("}");
+    return json.toString();
+  }
+
+  /**
+   * Only for friends who said they take them (see ChangeReply.batchQueries), so always in the current version.
+   */
+  public static String encodeBatchQuery(List<ChangeQuery> queries) {
+    StringBuilder json = new StringBuilder();
+    json.append("{");
+    appendKey(json, KEY_VERSION, true).append(VERSION_CURRENT);
+    appendKey(json, KEY_QUERIES, false).append("[");
+    for (int i = 0; i < queries.size(); i++) {
+      if (i > 0) {
+        json.append(",");
+      }
+      json.append(encodeQuery(queries.get(i)));
+    }
+    json.append("]}");
+    return json.toString();
+  }
+
+  /**
+   * The answer to a batch query, which only comes from friends in the current version.
+   */
+  public static String encodeBatchReply(List<ChangeReply> replies) {
+    StringBuilder json = new StringBuilder();
+    json.append("{");
+    appendKey(json, KEY_VERSION, true).append(VERSION_CURRENT);
+    appendKey(json, KEY_REPLIES, false).append("[");
+    for (int i = 0; i < replies.size(); i++) {
+      if (i > 0) {
+        json.append(",");
+      }
+      json.append(encodeReply(replies.get(i), VERSION_CURRENT));
+    }
+    json.append("]}");
+    return json.toString();
+  }
+
+  public static ChangeQuery decodeQuery(String json) throws ParseException {
+    return readQuery(new Reader(json));
+  }
+
+  public static List<ChangeQuery> decodeBatchQuery(String json) throws ParseException {
+    List<ChangeQuery> queries = null;
+    Reader reader = startBatch(json);
+    while (reader.hasMoreKeys()) {
+      if (reader.readKey().equals(KEY_QUERIES)) {
+        queries = new ArrayList<ChangeQuery>();
+        reader.expect('[');
+        if (!reader.endsList()) {
+          do {
+            queries.add(readQuery(reader));
+          } while (reader.nextInList());
+        }
+      } else {
+        reader.skipValue();
+      }
+    }
+    if (queries == null) {
+      throw new ParseException("Expected a list of queries.", 0);
+    }
+    return queries;
+  }
+
+  public static List<ChangeReply> decodeBatchReply(String json) throws ParseException {
+    List<ChangeReply> replies = null;
+    Reader reader = startBatch(json);
+    while (reader.hasMoreKeys()) {
+      if (reader.readKey().equals(KEY_REPLIES)) {
+        replies = new ArrayList<ChangeReply>();
+        reader.expect('[');
+        if (!reader.endsList()) {
+          do {
+            replies.add(readReply(reader));
+          } while (reader.nextInList());
+        }
+      } else {
+        reader.skipValue();
+      }
+    }
+    if (replies == null) {
+      throw new ParseException("Expected a list of replies.", 0);
+    }
+    return replies;
+  }
+
+  /**
+   * Read up to the version of a batch message, which has to be there, since only current friends send them.
+   */
+  private static Reader startBatch(String json) throws ParseException {
+    Reader reader = new Reader(json);
+    reader.expect('{');
+    if (!reader.hasMoreKeys()
+        || !reader.readKey().equals(KEY_VERSION)) {
+      throw new ParseException("Expected the version first in a batch.", 0);
+    }
+    if (startVersion(reader, KEY_VERSION) < VERSION_CURRENT) {
+      throw new ParseException("Expected a batch in version " + VERSION_CURRENT + " or later.", 0);
+    }
+    return reader;
+  }
+
+  /**
+   * Read one query object, from wherever the reader is.
+   */
+  private static ChangeQuery readQuery(Reader reader) throws ParseException {
+    ChangeQuery query = new ChangeQuery();
+    reader.expect('{');
+    boolean first = true;
+    while (reader.hasMoreKeys()) {
+      String key = reader.readKey();
+      if (first) {
+        query.version = startVersion(reader, key);
+        first = false;
+        if (key.equals(KEY_VERSION)) {
+          continue;
+        }
+      }
+      if (key.equals(KEY_SHARE_BASE_INDEX)) {
+        query.shareBaseIndex = (int) reader.readLong();
+      } else if (key.equals(KEY_SHARE_SUB_PATH)) {
+        query.shareSubPath = reader.readString();
+      } else if (key.equals(KEY_LAST_KNOWN_MODIFIED_TIME)) {
+        query.lastKnownModifiedTime = reader.readLong();
+      } else if (key.equals(KEY_LAST_KNOWN_SEQUENCE)) {
+        query.lastKnownSequence = reader.readString();
+      } else if (key.equals(KEY_PAGE_TOKEN)) {
+        query.pageToken = reader.readString();
+      } else if (key.equals(KEY_MANIFEST_VERSION)) {
+        query.manifestVersion = reader.readString();
+      } else if (key.equals(KEY_MERKLE_MODE)) {
+        query.merkleMode = reader.readString();
+      } else if (key.equals(KEY_MERKLE_PATH)) {
+        query.merklePath = reader.readString();
+      } else if (key.equals(KEY_MERKLE_HASH)) {
+        query.merkleHash = reader.readString();
+      } else if (key.equals(KEY_COMPRESSION)) {
+        query.compression = reader.readString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    if (query.shareBaseIndex == -1
+        || query.shareSubPath == null
+        || query.lastKnownModifiedTime == -1) {
+      throw new ParseException("Expected keys for share-base index & sub-path & modified time.", 0);
+    }
+    if (query.merklePath != null
+        && (query.merkleMode == null || query.merkleHash == null)) {
+      throw new ParseException("Expected keys for the hash tree mode & hash along with the path.", 0);
+    }
+    return query;
+  }
+
+  public static ChangeReply decodeReply(String json) throws ParseException {
+    return readReply(new Reader(json));
+  }
+
+  /**
+   * Read one reply object, from wherever the reader is.
+   */
+  private static ChangeReply readReply(Reader reader) throws ParseException {
+    ChangeReply reply = new ChangeReply();
+    reader.expect('{');
+    boolean first = true;
+    while (reader.hasMoreKeys()) {
+      String key = reader.readKey();
+      if (first) {
+        reply.version = startVersion(reader, key);
+        first = false;
+        if (key.equals(KEY_VERSION)) {
+          continue;
+        }
+      }
+      if (key.equals(KEY_SHARE_BASE_INDEX)) {
+        reply.shareBaseIndex = (int) reader.readLong();
+      } else if (key.equals(KEY_SHARE_SUB_PATH)) {
+        reply.shareSubPath = reader.readString();
+      } else if (key.equals(KEY_LAST_MODIFIED_TIME)) {
+        reply.lastModifiedTime = reader.readLong();
+      } else if (key.equals(KEY_SEQUENCE)) {
+        reply.sequence = reader.readString();
+      } else if (key.equals(KEY_FILE_LIST)) {
+        reply.fileList = reader.readStringList();
+      } else if (key.equals(KEY_PAGE_TOKEN)) {
+        reply.pageToken = reader.readString();
+      } else if (key.equals(KEY_FILE_DIGESTS)) {
+        reply.fileDigests = reader.readStringList();
+      } else if (key.equals(KEY_FILE_SIZES)) {
+        reply.fileSizes = reader.readLongList();
+      } else if (key.equals(KEY_MANIFEST_VERSION)) {
+        reply.manifestVersion = reader.readString();
+      } else if (key.equals(KEY_MANIFEST_DELTA)) {
+        reply.manifestDelta = reader.readString();
+      } else if (key.equals(KEY_MERKLE_MODE)) {
+        reply.merkleMode = reader.readString();
+      } else if (key.equals(KEY_MERKLE_PATH)) {
+        reply.merklePath = reader.readString();
+      } else if (key.equals(KEY_MERKLE_HASH)) {
+        reply.merkleHash = reader.readString();
+      } else if (key.equals(KEY_MERKLE_CHILDREN)) {
+        reply.merkleChildren = reader.readStringList();
+      } else if (key.equals(KEY_RETRY_AFTER)) {
+        reply.retryAfter = reader.readLong();
+      } else if (key.equals(KEY_BATCH_QUERIES)) {
+        reply.batchQueries = (int) reader.readLong();
+      } else {
+        reader.skipValue();
+      }
+    }
+    if (reply.shareBaseIndex == -1
+        || reply.shareSubPath == null
+        || reply.lastModifiedTime == -1
+        || reply.fileList == null) {
+      throw new ParseException("Expected keys for share-base index & sub-path & modified time & file list.", 0);
+    }
+    if (reply.merklePath != null
+        && (reply.merkleMode == null || reply.merkleHash == null)) {
+      throw new ParseException("Expected keys for the hash tree mode & hash along with the path.", 0);
+    }
+    if (reply.fileDigests != null
+        && reply.fileDigests.size() != reply.fileList.size()) {
+      // we can't tell which goes with which, so act like there weren't any
+      reply.fileDigests = null;
+    }
+    if (reply.fileSizes != null
+        && reply.fileSizes.size() != reply.fileList.size()) {
+      reply.fileSizes = null;
+    }
+    return reply;
+  }
+
+  public static String encodeNotice(ChangeNotice notice) {
+    StringBuilder json = new StringBuilder();
+    json.append("{");
+    appendKey(json, KEY_VERSION, true).append(VERSION_CURRENT);
+    appendKey(json, KEY_SHARE_BASE_INDEX, false).append(notice.shareBaseIndex);
+    appendString(appendKey(json, KEY_SHARE_SUB_PATH, false), notice.shareSubPath, true);
+    json.append("}");
+    return json.toString();
+  }
+
+  public static ChangeNotice decodeNotice(String json) throws ParseException {
+    ChangeNotice notice = new ChangeNotice();
+    Reader reader = new Reader(json);
+    reader.expect('{');
+    boolean first = true;
+    while (reader.hasMoreKeys()) {
+      String key = reader.readKey();
+      if (first) {
+        notice.version = startVersion(reader, key);
+        first = false;
+        if (key.equals(KEY_VERSION)) {
+          continue;
+        }
+      }
+      if (key.equals(KEY_SHARE_BASE_INDEX)) {
+        notice.shareBaseIndex = (int) reader.readLong();
+      } else if (key.equals(KEY_SHARE_SUB_PATH)) {
+        notice.shareSubPath = reader.readString();
+      } else {
+        reader.skipValue();
+      }
+    }
+    if (notice.shareBaseIndex == -1
+        || notice.shareSubPath == null) {
+      throw new ParseException("Expected keys for share-base index & sub-path.", 0);
+    }
+    return notice;
+  }
+
+  /**
+   * Read the version if it's the first key, and set the reader's escaping to match.
+   */
+  private static int startVersion(Reader reader, String firstKey) throws ParseException {
+    int version = VERSION_LEGACY;
+    if (firstKey.equals(KEY_VERSION)) {
+      version = (int) reader.readLong();
+    }
+    reader.escaped = version >= VERSION_CURRENT;
+    return version;
+  }
+
+  private static StringBuilder appendKey(StringBuilder json, String key, boolean first) {
+    if (!first) {
+      json.append(",");
+    }
+    return json.append("\"").append(key).append("\":");
+  }
+
+  private static StringBuilder appendString(StringBuilder json, String value, boolean escape) {
+    json.append("\"");
+    if (!escape) {
+      json.append(value);
+    } else {
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        switch (c) {
+        case '"': json.append("\\\""); break;
+        case '\\': json.append("\\\\"); break;
+        case '\n': json.append("\\n"); break;
+        case '\r': json.append("\\r"); break;
+        case '\t': json.append("\\t"); break;
+        case '\b': json.append("\\b"); break;
+        case '\f': json.append("\\f"); break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+        }
+      }
+    }
+    return json.append("\"");
+  }
+
+  /**
+   * Pull the pieces out of a JSON object, one character at a time.
+   */
+  static class Reader {
+    private final String json;
+    private int pos = 0;
+    /** false for legacy messages, where a string is everything up to the next quote */
+    boolean escaped = false;
+
+    Reader(String _json) {
+      this.json = _json;
+    }
+
+    private ParseException error(String message) {
+      return new ParseException(message + " at position " + pos + " of: " + json, pos);
+    }
+
+    private void skipWhitespace() {
+      while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+        pos++;
+      }
+    }
+
+    private char peek() throws ParseException {
+      skipWhitespace();
+      if (pos >= json.length()) {
+        throw error("Unexpected end");
+      }
+      return json.charAt(pos);
+    }
+
+    void expect(char c) throws ParseException {
+      if (peek() != c) {
+        throw error("Expected '" + c + "'");
+      }
+      pos++;
+    }
+
+    /**
+     * @return true if there's another key in this object, after moving past any separating comma
+     */
+    boolean hasMoreKeys() throws ParseException {
+      char c = peek();
+      if (c == '}') {
+        pos++;
+        return false;
+      }
+      if (c == ',') {
+        pos++;
+      }
+      return true;
+    }
+
+    String readKey() throws ParseException {
+      String key = readString();
+      expect(':');
+      return key;
+    }
+
+    long readLong() throws ParseException {
+      skipWhitespace();
+      int start = pos;
+      if (pos < json.length() && json.charAt(pos) == '-') {
+        pos++;
+      }
+      long result = 0;
+      while (pos < json.length() && Character.isDigit(json.charAt(pos))) {
+        result = result * 10 + (json.charAt(pos) - '0');
+        pos++;
+      }
+      if (pos == start || (pos == start + 1 && json.charAt(start) == '-')) {
+        throw error("Expected a number");
+      }
+      return json.charAt(start) == '-' ? -result : result;
+    }
+
+    String readString() throws ParseException {
+      expect('"');
+      int start = pos;
+      if (!escaped) {
+        int end = json.indexOf('"', pos);
+        if (end == -1) {
+          throw error("Unterminated string");
+        }
+        pos = end + 1;
+        return json.substring(start, end);
+      }
+      // only build a new string if there's actually an escape in there
+      StringBuilder unescaped = null;
+      while (pos < json.length()) {
+        char c = json.charAt(pos);
+        if (c == '"') {
+          String result = unescaped == null ? json.substring(start, pos) : unescaped.toString();
+          pos++;
+          return result;
+        }
+        if (c == '\\') {
+          if (unescaped == null) {
+            unescaped = new StringBuilder(json.substring(start, pos));
+          }
+          if (pos + 1 >= json.length()) {
+            break;
+          }
+          char escapedChar = json.charAt(pos + 1);
+          pos += 2;
+          switch (escapedChar) {
+          case '"': unescaped.append('"'); break;
+          case '\\': unescaped.append('\\'); break;
+          case '/': unescaped.append('/'); break;
+          case 'n': unescaped.append('\n'); break;
+          case 'r': unescaped.append('\r'); break;
+          case 't': unescaped.append('\t'); break;
+          case 'b': unescaped.append('\b'); break;
+          case 'f': unescaped.append('\f'); break;
+          case 'u':
+            if (pos + 4 > json.length()) {
+              throw error("Bad unicode escape");
+            }
+            try {
+              unescaped.append((char) Integer.parseInt(json.substring(pos, pos + 4), 16));
+            } catch (NumberFormatException e) {
+              throw error("Bad unicode escape");
+            }
+            pos += 4;
+            break;
+          default:
+            throw error("Bad escape '" + escapedChar + "'");
+          }
+        } else {
+          if (unescaped != null) {
+            unescaped.append(c);
+          }
+          pos++;
+        }
+      }
+      throw error("Unterminated string");
+    }
+
+    List<String> readStringList() throws ParseException {
+      List<String> result = new ArrayList<String>();
+      expect('[');
+      if (peek() == ']') {
+        pos++;
+        return result;
+      }
+      while (true) {
+        result.add(readString());
+        char c = peek();
+        pos++;
+        if (c == ']') {
+          return result;
+        } else if (c != ',') {
+          throw error("Expected ',' or ']'");
+        }
+      }
+    }
+
+    /**
+     * @return true if the list that was just opened is empty, after moving past its end
+     */
+    boolean endsList() throws ParseException {
+      if (peek() == ']') {
+        pos++;
+        return true;
+      }
+      return false;
+    }
+
+    /**
+     * @return true if there's another element in this list, after moving past the separating comma (or the end)
+     */
+    boolean nextInList() throws ParseException {
+      char c = peek();
+      pos++;
+      if (c == ']') {
+        return false;
+      } else if (c != ',') {
+        throw error("Expected ',' or ']'");
+      }
+      return true;
+    }
+
+    List<Long> readLongList() throws ParseException {
+      List<Long> result = new ArrayList<Long>();
+      expect('[');
+      if (peek() == ']') {
+        pos++;
+        return result;
+      }
+      while (true) {
+        result.add(readLong());
+        char c = peek();
+        pos++;
+        if (c == ']') {
+          return result;
+        } else if (c != ',') {
+          throw error("Expected ',' or ']'");
+        }
+      }
+    }
+
+    /** skip over a value we don't know about, eg. from a newer version */
+    void skipValue() throws ParseException {
+      char c = peek();
+      if (c == '"') {
+        readString();
+      } else if (c == '[' || c == '{') {
+        char close = c == '[' ? ']' : '}';
+        pos++;
+        if (peek() == close) {
+          pos++;
+          return;
+        }
+        while (true) {
+          if (close == '}') {
+            readKey();
+          }
+          skipValue();
+          char next = peek();
+          pos++;
+          if (next == close) {
+            return;
+          } else if (next != ',') {
+            throw error("Expected ',' or '" + close + "'");
+          }
+        }
+      } else {
+        // number, true, false, or null
+        while (pos < json.length() && ",}] \t\r\n".indexOf(json.charAt(pos)) == -1) {
+          pos++;
+        }
+      }
+    }
+  }
+
+}
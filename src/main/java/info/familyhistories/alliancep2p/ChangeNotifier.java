@@ -0,0 +1,204 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeNotice;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alliance.core.CoreSubsystem;
+import org.alliance.core.node.Friend;
+
+/**
+ * Tell friends right away when something changes under a path they've asked about (on the publishing side),
+ * so they can ask for the changes then instead of at their next check.
+ *
+ * We remember each connected friend who asks about a subscribed directory (if they're new enough to take notices),
+ * and watch that directory with the SubscribedPathWatcher.  When the ChangeJournal gets something for it, we wait
+ * NOTICE_DELAY for the rest of the burst and then send one notice to each of those friends.
+ * The notice only names the path; the friend sends their usual query, which the journal can answer cheaply.
+ * Each friend gets notices for at most MAX_PATHS_PER_FRIEND paths, so they can't have us watching the whole disk.
+ */
+public class ChangeNotifier implements ChangeJournal.Listener {
+
+  /** how long (in millis) to gather changes before sending a notice */
+  static final long NOTICE_DELAY = 2 * 1000;
+  static final int MAX_PATHS_PER_FRIEND = 256;
+
+  /** how to send a notice, since the message prefix belongs to the plugin */
+  public static interface NoticeSender {
+    public void sendNotice(Friend friend, ChangeNotice notice) throws IOException;
+  }
+
+  private static class Subscriber {
+    final int guid, shareBaseIndex;
+    final String shareSubPath;
+    Subscriber(int _guid, int _shareBaseIndex, String _shareSubPath) {
+      this.guid = _guid;
+      this.shareBaseIndex = _shareBaseIndex;
+      this.shareSubPath = _shareSubPath;
+    }
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Subscriber
+        && guid == ((Subscriber) other).guid
+        && shareBaseIndex == ((Subscriber) other).shareBaseIndex
+        && shareSubPath.equals(((Subscriber) other).shareSubPath);
+    }
+    @Override
+    public int hashCode() {
+      return (guid * 31 + shareBaseIndex) * 31 + shareSubPath.hashCode();
+    }
+  }
+
+  private final CoreSubsystem core;
+  private final SubscribedPathWatcher pathWatcher;
+  private final ScanBudget budget;
+  private final NoticeSender noticeSender;
+  /** map from absolute subscribed path to the friends who asked about it (guarded by this) */
+  private final Map<String, Set<Subscriber>> subscribers = new HashMap<String, Set<Subscriber>>();
+  /** map from friend GUID to how many subscribers they are in subscribers (guarded by this) */
+  private final Map<Integer, Integer> countsByFriend = new HashMap<Integer, Integer>();
+  /** subscribed paths with changes that haven't been sent yet (guarded by this) */
+  private final Set<String> changedPaths = new LinkedHashSet<String>();
+  private final ScheduledExecutorService noticeThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "FriendFileChangeDetector notices");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  ChangeNotifier(CoreSubsystem _core, SubscribedPathWatcher _pathWatcher, ScanBudget _budget, NoticeSender _noticeSender) {
+    this.core = _core;
+    this.pathWatcher = _pathWatcher;
+    this.budget = _budget;
+    this.noticeSender = _noticeSender;
+  }
+
+  public void shutdown() {
+    noticeThread.shutdownNow();
+  }
+
+  /**
+   * Remember that this friend asked about this path, so we'll tell them when it changes.
+   * This may start watching the whole tree, so call it from a query worker.
+   */
+  public void subscribed(int guid, int shareBaseIndex, String shareSubPath) {
+    File subPathFile = SafePaths.sharedPath(core, shareBaseIndex, shareSubPath);
+    if (subPathFile == null
+        || !budget.isDirectory(subPathFile.toPath())) {
+      return;
+    }
+    // the journal uses the same path
+    String subscribedPath = subPathFile.toPath().toAbsolutePath().toString();
+    boolean added;
+    synchronized (this) {
+      Subscriber subscriber = new Subscriber(guid, shareBaseIndex, shareSubPath);
+      Set<Subscriber> pathSubscribers = subscribers.get(subscribedPath);
+      if (pathSubscribers != null
+          && pathSubscribers.contains(subscriber)) {
+        return;
+      }
+      Integer count = countsByFriend.get(guid);
+      if (count != null
+          && count.intValue() >= MAX_PATHS_PER_FRIEND) {
+        Log.info("ChangeNotifier: friend %d already gets notices for %d paths, so not for %s.", guid, count, subscribedPath);
+        return;
+      }
+      if (pathSubscribers == null) {
+        pathSubscribers = new HashSet<Subscriber>();
+        subscribers.put(subscribedPath, pathSubscribers);
+      }
+      added = pathSubscribers.add(subscriber);
+      countsByFriend.put(guid, count == null ? 1 : count.intValue() + 1);
+    }
+    if (added) {
+      if (pathWatcher.watch(subPathFile) == null) {
+        Log.info("ChangeNotifier: can't watch %s, so friend %d won't get notices for it.", subscribedPath, guid);
+      }
+    }
+  }
+
+  /**
+   * Stop telling this friend about changes (eg. because they disconnected).
+   */
+  public synchronized void forget(int guid) {
+    countsByFriend.remove(guid);
+    for (Iterator<Set<Subscriber>> pathSubscribers = subscribers.values().iterator(); pathSubscribers.hasNext(); ) {
+      Set<Subscriber> subscribersOfPath = pathSubscribers.next();
+      for (Iterator<Subscriber> subscriber = subscribersOfPath.iterator(); subscriber.hasNext(); ) {
+        if (subscriber.next().guid == guid) {
+          subscriber.remove();
+        }
+      }
+      if (subscribersOfPath.isEmpty()) {
+        pathSubscribers.remove();
+      }
+    }
+  }
+
+  @Override
+  public synchronized void appended(String subscribedPath, String relativePath) {
+    if (!subscribers.containsKey(subscribedPath)) {
+      return;
+    }
+    if (changedPaths.isEmpty()) {
+      noticeThread.schedule(new Runnable() {
+          public void run() {
+            sendNotices();
+          }
+        }, NOTICE_DELAY, TimeUnit.MILLISECONDS);
+    }
+    changedPaths.add(subscribedPath);
+  }
+
+  private void sendNotices() {
+    final List<Subscriber> toTell = new ArrayList<Subscriber>();
+    synchronized (this) {
+      for (String subscribedPath : changedPaths) {
+        Set<Subscriber> pathSubscribers = subscribers.get(subscribedPath);
+        if (pathSubscribers != null) {
+          toTell.addAll(pathSubscribers);
+        }
+      }
+      changedPaths.clear();
+    }
+    if (toTell.isEmpty()) {
+      return;
+    }
+    core.invokeLater(new Runnable() {
+        public void run() {
+          for (Subscriber subscriber : toTell) {
+            Friend friend = core.getFriendManager().getFriend(subscriber.guid);
+            if (friend == null
+                || !friend.isConnected()) {
+              forget(subscriber.guid);
+              continue;
+            }
+            ChangeNotice notice = new ChangeNotice();
+            notice.shareBaseIndex = subscriber.shareBaseIndex;
+            notice.shareSubPath = subscriber.shareSubPath;
+            try {
+              noticeSender.sendNotice(friend, notice);
+            } catch (IOException e) {
+              System.err.println("Failed to tell friend " + subscriber.guid + " about changes in " + subscriber.shareSubPath + "; they'll see them at their next check.");
+              e.printStackTrace();
+            }
+          }
+        }
+      });
+  }
+
+}
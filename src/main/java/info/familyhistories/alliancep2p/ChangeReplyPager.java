@@ -0,0 +1,203 @@
+package info.familyhistories.alliancep2p;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Split the files for a change reply into pages of bounded size, oldest first,
+ * and hold on to the rest until the friend asks for the next page.
+ *
+ * Each page comes with its own high-water time: the friend can record it as soon as they've taken that page,
+ * and a plain query from that time (eg. after a disconnect) will get everything after that page.
+ */
+public class ChangeReplyPager {
+
+  /** roughly how many characters of file names go in one page */
+  static final int MAX_PAGE_CHARS = 32 * 1024;
+  static final int MAX_PAGE_FILES = 1000;
+  /** how long (in millis) we keep the rest of a reply waiting for the friend to ask for the next page */
+  static final long CURSOR_TIMEOUT = 5 * 60 * 1000;
+  static final int MAX_CURSORS = 100;
+
+  static class Page {
+    final List<String> files;
+    final long lastModifiedTime;
+    /** token to ask for the next page, or null if this is the last one */
+    final String pageToken;
+    /** the journal sequence to record, only on the last page */
+    final String sequence;
+    Page(List<String> _files, long _lastModifiedTime, String _pageToken, String _sequence) {
+      this.files = _files;
+      this.lastModifiedTime = _lastModifiedTime;
+      this.pageToken = _pageToken;
+      this.sequence = _sequence;
+    }
+  }
+
+  private static class Cursor {
+    final int guid;
+    final int shareBaseIndex;
+    final String shareSubPath;
+    /** the files with their times, oldest first */
+    final CompactPathList files;
+    final long lastKnownModifiedTime, lastModifiedTime;
+    final String sequence;
+    int next = 0;
+    long expires;
+    Cursor(int _guid, int _shareBaseIndex, String _shareSubPath, CompactPathList _files, long _lastKnownModifiedTime, long _lastModifiedTime, String _sequence) {
+      this.guid = _guid;
+      this.shareBaseIndex = _shareBaseIndex;
+      this.shareSubPath = _shareSubPath;
+      this.files = _files;
+      this.lastKnownModifiedTime = _lastKnownModifiedTime;
+      this.lastModifiedTime = _lastModifiedTime;
+      this.sequence = _sequence;
+    }
+  }
+
+  /** map from page token to what's left of that reply, oldest first */
+  private final Map<String, Cursor> cursors = new LinkedHashMap<String, Cursor>();
+  private long lastTokenNumber = 0;
+  private final ScanBudget budget;
+
+  ChangeReplyPager(ScanBudget _budget) {
+    this.budget = _budget;
+  }
+
+  /**
+   * @param changedFiles files relative to subscribedDir, each with the time it changed (or without, to use its modified time)
+   * @param lastModifiedTime the time for the friend to record after the last page
+   * @param sequence the journal sequence for the friend to record after the last page (may be null)
+   * @return the first page, which may be the last
+   */
+  public Page firstPage(int guid, int shareBaseIndex, String shareSubPath, File subscribedDir, CompactPathList changedFiles,
+                        long lastKnownModifiedTime, long lastModifiedTime, String sequence) {
+    final long[] fileTimes = new long[changedFiles.size()];
+    boolean inOrder = true;
+    int i = 0;
+    for (Iterator<String> files = changedFiles.iterator(); files.hasNext(); i++) {
+      String file = files.next();
+      fileTimes[i] = changedFiles.timeAt(i);
+      if (fileTimes[i] == CompactPathList.NO_TIME) {
+        fileTimes[i] = lastModified(new File(subscribedDir, file));
+        inOrder = false;
+      } else if (i > 0
+                 && fileTimes[i] < fileTimes[i - 1]) {
+        inOrder = false;
+      }
+    }
+    CompactPathList sortedFiles = changedFiles;
+    if (!inOrder) {
+      Integer[] order = new Integer[fileTimes.length];
+      for (i = 0; i < order.length; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+        public int compare(Integer a, Integer b) {
+          return fileTimes[a] < fileTimes[b] ? -1 : fileTimes[a] > fileTimes[b] ? 1 : 0;
+        }
+      });
+      sortedFiles = new CompactPathList();
+      for (i = 0; i < order.length; i++) {
+        sortedFiles.add(changedFiles.get(order[i]), fileTimes[order[i]]);
+      }
+    }
+
+    Cursor cursor = new Cursor(guid, shareBaseIndex, shareSubPath, sortedFiles, lastKnownModifiedTime, lastModifiedTime, sequence);
+    synchronized (cursors) {
+      return nextPage(cursor);
+    }
+  }
+
+  /**
+   * @return the page after the one with that token, or null if we don't have it (anymore)
+   */
+  public Page nextPage(String pageToken, int guid, int shareBaseIndex, String shareSubPath) {
+    synchronized (cursors) {
+      Cursor cursor = cursors.remove(pageToken);
+      if (cursor == null
+          || cursor.expires < System.currentTimeMillis()
+          || cursor.guid != guid
+          || cursor.shareBaseIndex != shareBaseIndex
+          || !cursor.shareSubPath.equals(shareSubPath)) {
+        return null;
+      }
+      return nextPage(cursor);
+    }
+  }
+
+  private Page nextPage(Cursor cursor) {
+    CompactPathList pageFiles = new CompactPathList();
+    int chars = 0;
+    long maxTime = cursor.lastKnownModifiedTime;
+    for (Iterator<String> files = cursor.files.iterator(cursor.next); files.hasNext(); ) {
+      String file = files.next();
+      if (pageFiles.size() >= MAX_PAGE_FILES
+          || (!pageFiles.isEmpty() && chars + file.length() > MAX_PAGE_CHARS)) {
+        break;
+      }
+      pageFiles.add(file);
+      chars += file.length() + 3; // quotes & comma
+      maxTime = Math.max(maxTime, cursor.files.timeAt(cursor.next));
+      cursor.next++;
+    }
+
+    if (cursor.next == cursor.files.size()) {
+      return new Page(pageFiles, cursor.lastModifiedTime, null, cursor.sequence);
+    }
+
+    // the rest have to come after this time, even when they share a time with the end of this page
+    long highWater = Math.max(cursor.lastKnownModifiedTime, Math.min(maxTime, cursor.files.timeAt(cursor.next) - 1));
+    purgeCursors();
+    String pageToken = "p" + (++lastTokenNumber);
+    cursor.expires = System.currentTimeMillis() + CURSOR_TIMEOUT;
+    cursors.put(pageToken, cursor);
+    return new Page(pageFiles, highWater, pageToken, null);
+  }
+
+  /** drop the expired cursors, and the oldest if there are too many */
+  private void purgeCursors() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Cursor> iter = cursors.values().iterator(); iter.hasNext(); ) {
+      Cursor cursor = iter.next();
+      if (cursor.expires < now
+          || cursors.size() >= MAX_CURSORS) {
+        iter.remove();
+      }
+    }
+  }
+
+  /**
+   * Take all the remaining pages for this cursor right away, eg. for a friend who doesn't ask for pages.
+   */
+  public List<Page> remainingPages(Page page, int guid, int shareBaseIndex, String shareSubPath) {
+    List<Page> pages = new ArrayList<Page>();
+    while (page.pageToken != null) {
+      page = nextPage(page.pageToken, guid, shareBaseIndex, shareSubPath);
+      if (page == null) {
+        break;
+      }
+      pages.add(page);
+    }
+    return pages;
+  }
+
+  /**
+   * @return the modified time of the file, or 0 if it can't be read (like File.lastModified)
+   */
+  private long lastModified(File file) {
+    try {
+      return budget.readAttributes(file.toPath()).lastModifiedTime().toMillis();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+}
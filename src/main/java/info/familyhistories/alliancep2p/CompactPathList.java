@@ -0,0 +1,259 @@
+package info.familyhistories.alliancep2p;
+
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * A list of relative paths (each with an optional time) kept as front-coded UTF-8 in one byte array, since the
+ * paths in a change list mostly share their directories with the one before.
+ *
+ * The paths are in blocks of BLOCK_SIZE: the first in a block is written whole, and each of the rest as the number
+ * of bytes it shares with the one before and then the bytes that differ.  Reading one path decodes at most a block;
+ * going through them in order (eg. with the iterator, which is how a reply is written) decodes each once.
+ * Paths can only be added at the end.  If they're added in order, indexOf is a binary search over the blocks.
+ *
+ * For a tree of photos this takes several times less memory than a list of Strings and a map of their times.
+ */
+public class CompactPathList extends AbstractList<String> implements RandomAccess {
+
+  static final int BLOCK_SIZE = 16;
+  /** the time of a path added without one */
+  static final long NO_TIME = -1;
+
+  private byte[] bytes = new byte[256];
+  private int byteCount = 0;
+  /** where each block starts in bytes */
+  private int[] blockStarts = new int[4];
+  private long[] times = new long[16];
+  private int size = 0;
+  /** the bytes of the last path added, to front-code the next one */
+  private byte[] last = new byte[0];
+  /** whether each path was added after the one before it (in String order) */
+  private boolean sorted = true;
+  private String lastPath = null;
+
+  public CompactPathList() {
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public boolean add(String path) {
+    add(path, NO_TIME);
+    return true;
+  }
+
+  public void add(String path, long time) {
+    if (lastPath != null
+        && sorted
+        && lastPath.compareTo(path) > 0) {
+      sorted = false;
+    }
+    lastPath = path;
+
+    byte[] pathBytes = path.getBytes(StandardCharsets.UTF_8);
+    if (size % BLOCK_SIZE == 0) {
+      int block = size / BLOCK_SIZE;
+      if (block == blockStarts.length) {
+        blockStarts = Arrays.copyOf(blockStarts, block * 2);
+      }
+      blockStarts[block] = byteCount;
+      writeVarInt(pathBytes.length);
+      writeBytes(pathBytes, 0, pathBytes.length);
+    } else {
+      int shared = 0;
+      int maxShared = Math.min(last.length, pathBytes.length);
+      while (shared < maxShared
+             && last[shared] == pathBytes[shared]) {
+        shared++;
+      }
+      writeVarInt(shared);
+      writeVarInt(pathBytes.length - shared);
+      writeBytes(pathBytes, shared, pathBytes.length - shared);
+    }
+    last = pathBytes;
+
+    if (size == times.length) {
+      times = Arrays.copyOf(times, size * 2);
+    }
+    times[size] = time;
+    size++;
+    modCount++;
+  }
+
+  @Override
+  public String get(int index) {
+    checkIndex(index);
+    Decoder decoder = new Decoder(index - index % BLOCK_SIZE);
+    String result = decoder.next();
+    while (decoder.index <= index) {
+      result = decoder.next();
+    }
+    return result;
+  }
+
+  /**
+   * @return the time added with the path at index, or NO_TIME if there wasn't one
+   */
+  public long timeAt(int index) {
+    checkIndex(index);
+    return times[index];
+  }
+
+  @Override
+  public Iterator<String> iterator() {
+    return iterator(0);
+  }
+
+  /**
+   * @return the paths from index to the end, decoding each once
+   */
+  public Iterator<String> iterator(final int index) {
+    if (index < 0 || index > size) {
+      throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+    }
+    final Decoder decoder = new Decoder(index - index % BLOCK_SIZE);
+    while (decoder.index < index) {
+      decoder.next();
+    }
+    return new Iterator<String>() {
+        public boolean hasNext() {
+          return decoder.index < size;
+        }
+        public String next() {
+          if (decoder.index >= size) {
+            throw new NoSuchElementException();
+          }
+          return decoder.next();
+        }
+        public void remove() {
+          throw new UnsupportedOperationException();
+        }
+      };
+  }
+
+  @Override
+  public int indexOf(Object o) {
+    if (!(o instanceof String)) {
+      return -1;
+    }
+    String path = (String) o;
+    int from = 0;
+    if (sorted
+        && size > 0) {
+      // find the last block that starts at or before the path
+      int low = 0, high = (size - 1) / BLOCK_SIZE;
+      while (low < high) {
+        int mid = (low + high + 1) >>> 1;
+        if (new Decoder(mid * BLOCK_SIZE).next().compareTo(path) <= 0) {
+          low = mid;
+        } else {
+          high = mid - 1;
+        }
+      }
+      from = low * BLOCK_SIZE;
+    }
+    Decoder decoder = new Decoder(from);
+    while (decoder.index < size) {
+      int index = decoder.index;
+      int compared = decoder.next().compareTo(path);
+      if (compared == 0) {
+        return index;
+      } else if (sorted
+                 && compared > 0) {
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return indexOf(o) != -1;
+  }
+
+  /**
+   * @return roughly how many bytes of memory the paths and times take
+   */
+  public long memoryBytes() {
+    return bytes.length + 4L * blockStarts.length + 8L * times.length + last.length;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("Index " + index + " of " + size);
+    }
+  }
+
+  private void writeVarInt(int value) {
+    while ((value & ~0x7f) != 0) {
+      writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    writeByte(value);
+  }
+
+  private void writeByte(int value) {
+    if (byteCount == bytes.length) {
+      bytes = Arrays.copyOf(bytes, bytes.length * 2);
+    }
+    bytes[byteCount++] = (byte) value;
+  }
+
+  private void writeBytes(byte[] source, int offset, int length) {
+    if (byteCount + length > bytes.length) {
+      bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, byteCount + length));
+    }
+    System.arraycopy(source, offset, bytes, byteCount, length);
+    byteCount += length;
+  }
+
+  /**
+   * Reads the paths in order from the start of a block.
+   */
+  private class Decoder {
+    /** the index of the next path */
+    int index;
+    private int pos;
+    private byte[] current = new byte[64];
+
+    Decoder(int blockFirstIndex) {
+      this.index = blockFirstIndex;
+      this.pos = blockFirstIndex < size ? blockStarts[blockFirstIndex / BLOCK_SIZE] : byteCount;
+    }
+
+    String next() {
+      int shared = 0;
+      if (index % BLOCK_SIZE != 0) {
+        shared = readVarInt();
+      }
+      int length = readVarInt();
+      if (shared + length > current.length) {
+        current = Arrays.copyOf(current, Math.max(current.length * 2, shared + length));
+      }
+      System.arraycopy(bytes, pos, current, shared, length);
+      pos += length;
+      index++;
+      return new String(current, 0, shared + length, StandardCharsets.UTF_8);
+    }
+
+    private int readVarInt() {
+      int result = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = bytes[pos++];
+        result |= (b & 0x7f) << shift;
+        if ((b & 0x80) == 0) {
+          return result;
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,354 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.SubscribedPathIndex.FileEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alliance.core.CoreSubsystem;
+
+/**
+ * Keep a digest of the contents of each file, so we can tell real changes from files that were only touched
+ * (and so a subscriber can skip downloading what it already has).
+ *
+ * This is optional: set the system property named by ENABLED_PROPERTY to "true" to use it.
+ *
+ * A digest is only computed again when the file's size or modified time changes.  Each digest also records
+ * when we first saw that content: on the first pass over a subscribed path that's just the file's time,
+ * but after that it's when we noticed it, so a file copied in with an old time still counts as new.
+ * A file touched without changing keeps its old content time, so it isn't reported again.
+ *
+ * Like the SubscribedPathIndex, the digests are saved every so often when they've changed, and you can remove the
+ * file to erase them, and they'll be computed again.  Digests of files that are gone are dropped when we notice: when
+ * one is looked up, and (at most once each PRUNE_INTERVAL) when a whole subscribed path is gone through.
+ */
+public class ContentDigestStore {
+
+  static final String ENABLED_PROPERTY = "info.familyhistories.alliancep2p.contentDigests";
+  static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  static final String ALGORITHM = "SHA-1";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  /** how often (in millis) we save the digests, if they changed */
+  static final long SAVE_INTERVAL = 5 * 60 * 1000;
+  /** how often (in millis) we drop the digests of files that are gone from a subscribed path */
+  static final long PRUNE_INTERVAL = 60 * 60 * 1000;
+
+  static class DigestEntry implements Serializable {
+    private static final long serialVersionUID = -6183047461592837201L;
+
+    final long size, lastModified;
+    final String digest;
+    /** when we first saw this content */
+    final long contentTime;
+    DigestEntry(long _size, long _lastModified, String _digest, long _contentTime) {
+      this.size = _size;
+      this.lastModified = _lastModified;
+      this.digest = _digest;
+      this.contentTime = _contentTime;
+    }
+  }
+
+  private static class Digests implements Serializable {
+    private static final long serialVersionUID = 4720391685523109437L;
+
+    /** map from absolute file path to the digest of its contents */
+    final Map<String, DigestEntry> files = new HashMap<String, DigestEntry>();
+    /** absolute paths of the subscribed directories we've been through once */
+    final Set<String> seeded = new HashSet<String>();
+  }
+
+  private final String filename;
+  private Digests digests = new Digests();
+  /** map from absolute subscribed path to when we last dropped the digests of its files that are gone (guarded by this) */
+  private final Map<String, Long> lastPruned = new HashMap<String, Long>();
+  private final ScanBudget budget;
+  private volatile boolean changed = false;
+  private final ScheduledExecutorService saveThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "FriendFileChangeDetector digests");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  ContentDigestStore(CoreSubsystem core, ScanBudget _budget) {
+    this.budget = _budget;
+    String downloadFolder = core.getSettings().getInternal().getDownloadfolder();
+    String settingsFolder = downloadFolder.substring(0, downloadFolder.lastIndexOf(File.separator) + 1);
+    filename = settingsFolder + File.separator + "friendFileChangeDetectorDigests.ser";
+
+    if (new File(filename).exists()) {
+      load();
+    }
+
+    saveThread.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          if (changed) {
+            save();
+          }
+        }
+      }, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    saveThread.shutdown();
+    try {
+      saveThread.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    save();
+  }
+
+  /**
+   * Replace the file only when it's all written, so a crash in the middle leaves the last one.
+   */
+  private synchronized void save() {
+    changed = false;
+    File tempFile = new File(filename + ".saving");
+    ObjectOutputStream out = null;
+    try {
+      out = new ObjectOutputStream(new FileOutputStream(tempFile));
+      out.writeObject(digests);
+      out.close();
+      out = null;
+      Files.move(tempFile.toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Due to the following error, we could not save the file digests.");
+      e.printStackTrace();
+    } finally {
+      if (out != null) try { out.close(); } catch (IOException e) {}
+    }
+  }
+
+  private synchronized void load() {
+    ObjectInputStream in = null;
+    try {
+      in = new ObjectInputStream(new FileInputStream(filename));
+      digests = (Digests) in.readObject();
+    } catch (IOException e) {
+      System.err.println("Due to the following error, we could not load the file digests, so they will be computed again.");
+      e.printStackTrace();
+    } catch (ClassNotFoundException e) {
+      System.err.println("Due to the following error, we could not load the file digests, so they will be computed again.");
+      e.printStackTrace();
+    } finally {
+      if (in != null) try { in.close(); } catch (IOException e) {}
+    }
+  }
+
+  /**
+   * Find the files whose contents changed after a time.
+   *
+   * @param files every file under baseDir (relative to it), eg. from the SubscribedPathIndex
+   * @param changedFiles gets each file (relative to baseDir) whose contents changed since friendsLastKnownTimestamp,
+   * with when its contents changed
+   * @return the latest content time of all the files
+   */
+  public long filesWithLatestContentTime(File baseDir, Map<String, FileEntry> files, long friendsLastKnownTimestamp,
+                                         CompactPathList changedFiles) {
+    String basePath = baseDir.getAbsolutePath();
+    boolean seeding;
+    synchronized (this) {
+      seeding = !digests.seeded.contains(basePath);
+    }
+    long result = 0;
+    int computed = 0;
+    for (Map.Entry<String, FileEntry> fileEntry : files.entrySet()) {
+      File file = new File(baseDir, fileEntry.getKey());
+      DigestEntry entry;
+      synchronized (this) {
+        entry = digests.files.get(file.getAbsolutePath());
+      }
+      if (entry == null
+          || entry.size != fileEntry.getValue().size
+          || entry.lastModified != fileEntry.getValue().lastModified) {
+        try {
+          entry = update(file, fileEntry.getValue().size, fileEntry.getValue().lastModified, seeding);
+          computed++;
+        } catch (IOException e) {
+          // probably removed since it was listed, so it'll be dropped from the index at the next query
+          continue;
+        }
+      }
+      result = Math.max(result, entry.contentTime);
+      if (entry.contentTime > friendsLastKnownTimestamp) {
+        changedFiles.add(fileEntry.getKey(), entry.contentTime);
+      }
+    }
+    if (seeding) {
+      synchronized (this) {
+        digests.seeded.add(basePath);
+        changed = true;
+      }
+    }
+    prune(basePath, files);
+    Log.info("ContentDigestStore: checked %d file(s) under %s and computed %d digest(s); %d changed.", files.size(), baseDir, computed, changedFiles.size());
+    return result;
+  }
+
+  /**
+   * Drop the digests of files under basePath that aren't there any more, if we haven't lately.
+   *
+   * @param files every file under basePath (relative to it)
+   */
+  private synchronized void prune(String basePath, Map<String, FileEntry> files) {
+    Long last = lastPruned.get(basePath);
+    long now = System.currentTimeMillis();
+    if (last != null
+        && now - last.longValue() < PRUNE_INTERVAL) {
+      return;
+    }
+    lastPruned.put(basePath, now);
+    String prefix = basePath.endsWith(File.separator) ? basePath : basePath + File.separator;
+    int pruned = 0;
+    for (Iterator<String> paths = digests.files.keySet().iterator(); paths.hasNext(); ) {
+      String path = paths.next();
+      if (path.startsWith(prefix)
+          && !files.containsKey(path.substring(prefix.length()))) {
+        paths.remove();
+        pruned++;
+      }
+    }
+    if (pruned > 0) {
+      changed = true;
+      Log.info("ContentDigestStore: dropped the digests of %d file(s) that are gone from %s.", pruned, basePath);
+    }
+  }
+
+  /**
+   * @return the digest of each of these files (relative to baseDir), or "" for any we can't read
+   */
+  public List<String> digestsFor(File baseDir, List<String> files) {
+    List<String> result = new ArrayList<String>(files.size());
+    for (String name : files) {
+      DigestEntry entry = digestFor(new File(baseDir, name));
+      result.add(entry == null ? "" : entry.digest);
+    }
+    return result;
+  }
+
+  /**
+   * @return true if the file exists and has that digest
+   */
+  public boolean matches(File file, String digest) {
+    if (digest == null
+        || digest.length() == 0) {
+      return false;
+    }
+    DigestEntry entry = digestFor(file);
+    return entry != null && entry.digest.equals(digest);
+  }
+
+  /**
+   * @return the digest of the file, from the cache if it hasn't changed, or null if it can't be read
+   */
+  private DigestEntry digestFor(File file) {
+    try {
+      BasicFileAttributes attrs = budget.readAttributes(file.toPath());
+      if (!attrs.isRegularFile()) {
+        return null;
+      }
+      DigestEntry entry;
+      synchronized (this) {
+        entry = digests.files.get(file.getAbsolutePath());
+      }
+      if (entry != null
+          && entry.size == attrs.size()
+          && entry.lastModified == attrs.lastModifiedTime().toMillis()) {
+        return entry;
+      }
+      return update(file, attrs.size(), attrs.lastModifiedTime().toMillis(), false);
+    } catch (NoSuchFileException e) {
+      synchronized (this) {
+        if (digests.files.remove(file.getAbsolutePath()) != null) {
+          changed = true;
+        }
+      }
+      return null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Compute the digest (outside the lock, since it reads the whole file) and record it.
+   */
+  private DigestEntry update(File file, long size, long lastModified, boolean seeding) throws IOException {
+    String digest = digest(file.toPath(), budget);
+    String path = file.getAbsolutePath();
+    synchronized (this) {
+      DigestEntry old = digests.files.get(path);
+      long contentTime;
+      if (old != null
+          && old.digest.equals(digest)) {
+        // only touched
+        contentTime = old.contentTime;
+      } else if (seeding) {
+        contentTime = lastModified;
+      } else {
+        contentTime = Math.max(lastModified, System.currentTimeMillis());
+      }
+      DigestEntry entry = new DigestEntry(size, lastModified, digest, contentTime);
+      digests.files.put(path, entry);
+      changed = true;
+      return entry;
+    }
+  }
+
+  /**
+   * @param budget every buffer we read is a call on this
+   */
+  static String digest(Path path, ScanBudget budget) throws IOException {
+    MessageDigest messageDigest;
+    try {
+      messageDigest = MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("No " + ALGORITHM + " digest available.", e);
+    }
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      while (budget.read(channel, buffer) > -1) {
+        buffer.flip();
+        messageDigest.update(buffer);
+        buffer.clear();
+      }
+    } finally {
+      channel.close();
+    }
+    StringBuilder hex = new StringBuilder();
+    for (byte b : messageDigest.digest()) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+}
@@ -5,12 +5,17 @@ import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSub
 
 import java.lang.reflect.Field;
 import java.sql.Connection;
+import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.alliance.core.CoreSubsystem;
 import org.alliance.core.file.h2database.DatabaseCore;
@@ -24,60 +29,114 @@ import org.alliance.core.file.h2database.DatabaseCore;
  * The one way I've found to force it to download at least one file is to set the 
  * LAST_MODIFIED_TIME to 0... which seems to indicate that it's a problem with my plugin,
  * but it gets to the download queueing code just fine.  Very strange.
+ *
+ * We open a few connections of our own to the same database (with the DB settings in the DatabaseCore)
+ * so we don't hold up Alliance on its connection, and each one keeps its prepared statements.
+ * If we can't open our own, we fall back to borrowing the connection used in the DatabaseCore.
  */
 public class DatabaseFriendSubscriptions implements FriendSubscriptionPersistence {
 
-  private Connection conn = null;
+  static final int POOL_SIZE = 2;
+
+  private static final String SQL_INSERT = "INSERT INTO friend_subscriptions (friend_guid, share_base_path, share_sub_path, local_path, last_any_modified) VALUES (?, ?, ?, ?, ?);";
+  private static final String SQL_SELECT_ALL = "SELECT friend_guid, share_base_path, share_sub_path, local_path, last_any_modified FROM friend_subscriptions;";
+  private static final String SQL_SELECT_BY_GUID = "SELECT friend_guid, share_base_path, share_sub_path, local_path, last_any_modified FROM friend_subscriptions WHERE friend_guid = ?;";
+  private static final String SQL_SELECT_ONE = "SELECT friend_guid, share_base_path, share_sub_path, local_path, last_any_modified FROM friend_subscriptions WHERE friend_guid = ? AND share_base_path = ? AND share_sub_path = ?;";
+  private static final String SQL_UPDATE = "UPDATE friend_subscriptions SET last_any_modified = ? WHERE friend_guid = ? and share_base_path = ? and share_sub_path = ?;";
+
+  /** a connection with the statements already prepared on it */
+  private static class PooledConnection {
+    final Connection conn;
+    /** whether this is the DatabaseCore connection, which we mustn't close or put in a transaction */
+    final boolean shared;
+    private final Map<String, PreparedStatement> statements = new HashMap<String, PreparedStatement>();
+    PooledConnection(Connection _conn, boolean _shared) {
+      this.conn = _conn;
+      this.shared = _shared;
+    }
+    PreparedStatement prepare(String sql) throws SQLException {
+      PreparedStatement pstmt = statements.get(sql);
+      if (pstmt == null) {
+        pstmt = conn.prepareStatement(sql);
+        statements.put(sql, pstmt);
+      }
+      return pstmt;
+    }
+    void close() {
+      for (PreparedStatement pstmt : statements.values()) {
+        try { pstmt.close(); } catch (SQLException e) {}
+      }
+      statements.clear();
+      if (!shared) {
+        try { conn.close(); } catch (SQLException e) {}
+      }
+    }
+  }
+
+  private final BlockingQueue<PooledConnection> pool = new LinkedBlockingQueue<PooledConnection>();
+  private final List<PooledConnection> allConnections = new ArrayList<PooledConnection>();
 
   public DatabaseFriendSubscriptions(CoreSubsystem core) throws SQLException {
 
-    // grab a connection to the same database
-    /**
-     * 
-     * This approach grabs the connection used in the DatabaseCore.
-     * 
-     **/
-    conn = (Connection) getFieldVal("conn", core.getFileManager().getDbCore());
-
-    /**
-    // grab a connection to the same database
-     * 
-     * This approach creates our own connection with the DB settings.
-     * It actually seems to work, which surprises me because other programs
-     * give errors when I try to open another DB connection while the app
-     * has one open already.
-     *
-     * Put this line at the beginning of the class:
-     * 
-    private static String DRIVER, DRIVERURL, TYPE, OPTIONS, USER, PASSWORD;
-
-     * 
-     * ... and put this line inside the shutdown() method:
-     * 
-    if (conn != null) try { conn.close(); } catch (SQLException e) {}
-
-     * 
-     * ... and just uncomment the rest of this here:
-     * 
-    DRIVER = (String) getFieldVal("DRIVER");
-    DRIVERURL = (String) getFieldVal("DRIVERURL");
-    TYPE = (String) getFieldVal("TYPE");
-    OPTIONS = (String) getFieldVal("OPTIONS");
-    USER = (String) getFieldVal("USER");
-    PASSWORD = (String) getFieldVal("PASSWORD");
-    String path = core.getSettings().getInternal().getDatabasefile();
+    // grab connections to the same database
+    DatabaseCore dbCore = core.getFileManager().getDbCore();
     try {
-      Class.forName(DRIVER);
-    } catch (ClassNotFoundException e) {
-      throw new SQLException(e);
+      String driver = (String) getFieldVal("DRIVER", null);
+      String driverUrl = (String) getFieldVal("DRIVERURL", null);
+      String type = (String) getFieldVal("TYPE", null);
+      String options = (String) getFieldVal("OPTIONS", null);
+      String user = (String) getFieldVal("USER", null);
+      String password = (String) getFieldVal("PASSWORD", null);
+      String path = core.getSettings().getInternal().getDatabasefile();
+      if (driver == null || driverUrl == null) {
+        throw new SQLException("Could not find the database settings in the DatabaseCore.");
+      }
+      try {
+        Class.forName(driver);
+      } catch (ClassNotFoundException e) {
+        throw new SQLException(e);
+      }
+      for (int i = 0; i < POOL_SIZE; i++) {
+        Connection conn = DriverManager.getConnection(driverUrl + type + path + (options == null ? "" : options), user, password);
+        allConnections.add(new PooledConnection(conn, false));
+      }
+    } catch (SQLException e) {
+      System.err.println("Unable to open our own connections to the database, so we'll use the one in the DatabaseCore.  The reason: " + e.getMessage());
+      for (PooledConnection pooled : allConnections) {
+        pooled.close();
+      }
+      allConnections.clear();
+      allConnections.add(new PooledConnection((Connection) getFieldVal("conn", dbCore), true));
     }
-    conn = DriverManager.getConnection(DRIVERURL + TYPE + path + OPTIONS, USER, PASSWORD);
-     **/
+    pool.addAll(allConnections);
 
-    createTable(conn);
+    PooledConnection pooled = borrow();
+    try {
+      createTable(pooled.conn);
+    } finally {
+      giveBack(pooled);
+    }
   }
 
   public void shutdown() {
+    for (PooledConnection pooled : allConnections) {
+      pooled.close();
+    }
+    allConnections.clear();
+    pool.clear();
+  }
+
+  private PooledConnection borrow() throws SQLException {
+    try {
+      return pool.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new SQLException("Interrupted while waiting for a database connection.", e);
+    }
+  }
+
+  private void giveBack(PooledConnection pooled) {
+    pool.add(pooled);
   }
 
   private void createTable(Connection conn) throws SQLException {
@@ -110,52 +169,43 @@ public class DatabaseFriendSubscriptions implements FriendSubscriptionPersistenc
 
 
   public boolean createFriendSubscription(FriendSubscription fsub) throws SQLException {
-    boolean result = false;
-    PreparedStatement pstmt = null;
-    ResultSet rset = null;
+    PooledConnection pooled = borrow();
     try {
-      String sql = "INSERT INTO friend_subscriptions (friend_guid, share_base_path, share_sub_path, local_path, last_any_modified) VALUES (?, ?, ?, ?, ?);";
-      pstmt = conn.prepareStatement(sql);
-      pstmt = conn.prepareStatement(sql);
+      PreparedStatement pstmt = pooled.prepare(SQL_INSERT);
       pstmt.setInt(1, fsub.guid);
       pstmt.setString(2, fsub.shareBasePath);
       pstmt.setString(3, fsub.shareSubPath);
       pstmt.setString(4, fsub.localPath);
       pstmt.setLong(5, fsub.lastKnownModified);
-      result = pstmt.execute();
+      return pstmt.execute();
     } finally {
-      if (rset != null) try { rset.close(); } catch (SQLException e) {}
-      if (pstmt != null) try { pstmt.close(); } catch (SQLException e) {}
+      giveBack(pooled);
     }
-    return result;
   }
 
   public List<FriendSubscription> getFriendSubscriptions() throws SQLException {
     List<FriendSubscription> result = new ArrayList<FriendSubscription>();
-    PreparedStatement pstmt = null;
+    PooledConnection pooled = borrow();
     ResultSet rset = null;
     try {
-      String sql = "SELECT friend_guid, share_base_path, share_sub_path, local_path, last_any_modified FROM friend_subscriptions;";
-      pstmt = conn.prepareStatement(sql);
-      rset = pstmt.executeQuery();
+      rset = pooled.prepare(SQL_SELECT_ALL).executeQuery();
       while (rset.next()) {
         FriendSubscription fsub = new FriendSubscription(rset.getInt(1), rset.getString(2), rset.getString(3), rset.getString(4), rset.getLong(5));
         result.add(fsub);
       }
     } finally {
       if (rset != null) try { rset.close(); } catch (SQLException e) {}
-      if (pstmt != null) try { pstmt.close(); } catch (SQLException e) {}
+      giveBack(pooled);
     }
     return result;
   }
 
   public List<FriendSubscription> getFriendSubscriptions(Integer guid) throws SQLException {
     List<FriendSubscription> result = new ArrayList<FriendSubscription>();
-    PreparedStatement pstmt = null;
+    PooledConnection pooled = borrow();
     ResultSet rset = null;
     try {
-      String sql = "SELECT friend_guid, share_base_path, share_sub_path, local_path, last_any_modified FROM friend_subscriptions WHERE friend_guid = ?;";
-      pstmt = conn.prepareStatement(sql);
+      PreparedStatement pstmt = pooled.prepare(SQL_SELECT_BY_GUID);
       pstmt.setInt(1, guid);
       rset = pstmt.executeQuery();
       while (rset.next()) {
@@ -164,7 +214,7 @@ public class DatabaseFriendSubscriptions implements FriendSubscriptionPersistenc
       }
     } finally {
       if (rset != null) try { rset.close(); } catch (SQLException e) {}
-      if (pstmt != null) try { pstmt.close(); } catch (SQLException e) {}
+      giveBack(pooled);
     }
     return result;
   }
@@ -181,11 +231,10 @@ public class DatabaseFriendSubscriptions implements FriendSubscriptionPersistenc
    */
   public FriendSubscription getFriendSubscription(Integer guid, String shareBasePath, String shareSubPath) throws SQLException {
     FriendSubscription result = null;
-    PreparedStatement pstmt = null;
+    PooledConnection pooled = borrow();
     ResultSet rset = null;
     try {
-      String sql = "SELECT friend_guid, share_base_path, share_sub_path, local_path, last_any_modified FROM friend_subscriptions WHERE friend_guid = ? AND share_base_path = ? AND share_sub_path = ?;";
-      pstmt = conn.prepareStatement(sql);
+      PreparedStatement pstmt = pooled.prepare(SQL_SELECT_ONE);
       pstmt.setInt(1, guid);
       pstmt.setString(2, shareBasePath);
       pstmt.setString(3, shareSubPath);
@@ -198,7 +247,7 @@ public class DatabaseFriendSubscriptions implements FriendSubscriptionPersistenc
       }
     } finally {
       if (rset != null) try { rset.close(); } catch (SQLException e) {}
-      if (pstmt != null) try { pstmt.close(); } catch (SQLException e) {}
+      giveBack(pooled);
     }
     return result;
   }
@@ -207,26 +256,70 @@ public class DatabaseFriendSubscriptions implements FriendSubscriptionPersistenc
    * Set the lastModifiedTime of this friend subscription.
    */
   public boolean updateFriendSubscription(Integer friendGuid, String shareBasePath, String shareSubPath, long lastModifiedTime) throws SQLException {
-    boolean result = false;
-    PreparedStatement pstmt = null;
-    ResultSet rset = null;
+    PooledConnection pooled = borrow();
     try {
-      String sql = "UPDATE friend_subscriptions SET last_any_modified = ? WHERE friend_guid = ? and share_base_path = ? and share_sub_path = ?;";
-      pstmt = conn.prepareStatement(sql);
+      PreparedStatement pstmt = pooled.prepare(SQL_UPDATE);
       pstmt.setLong(1, lastModifiedTime);
       pstmt.setInt(2, friendGuid);
       pstmt.setString(3, shareBasePath);
       pstmt.setString(4, shareSubPath);
-      result = pstmt.execute();
+      return pstmt.execute();
     } finally {
-      if (rset != null) try { rset.close(); } catch (SQLException e) {}
-      if (pstmt != null) try { pstmt.close(); } catch (SQLException e) {}
+      giveBack(pooled);
+    }
+  }
+
+  /**
+   * Set the lastModifiedTime of all these friend subscriptions in one batch and one transaction.
+   */
+  public int updateFriendSubscriptions(List<FriendSubscription> updates) throws SQLException {
+    if (updates.isEmpty()) {
+      return 0;
+    }
+    PooledConnection pooled = borrow();
+    boolean inTransaction = false;
+    try {
+      if (!pooled.shared) {
+        pooled.conn.setAutoCommit(false);
+        inTransaction = true;
+      }
+      PreparedStatement pstmt = pooled.prepare(SQL_UPDATE);
+      for (FriendSubscription update : updates) {
+        pstmt.setLong(1, update.lastKnownModified);
+        pstmt.setInt(2, update.guid);
+        pstmt.setString(3, update.shareBasePath);
+        pstmt.setString(4, update.shareSubPath);
+        pstmt.addBatch();
+      }
+      int[] counts = pstmt.executeBatch();
+      if (inTransaction) {
+        pooled.conn.commit();
+      }
+      int result = 0;
+      for (int count : counts) {
+        if (count > 0 || count == Statement.SUCCESS_NO_INFO) {
+          result++;
+        }
+      }
+      return result;
+    } catch (SQLException e) {
+      if (inTransaction) {
+        try { pooled.conn.rollback(); } catch (SQLException e2) {}
+      }
+      throw e;
+    } finally {
+      if (inTransaction) {
+        try { pooled.conn.setAutoCommit(true); } catch (SQLException e) {}
+      }
+      giveBack(pooled);
     }
-    return result;
   }
 
 
 
+  /**
+   * @param dbCore the DatabaseCore to read from, or null for a static field
+   */
   private Object getFieldVal(String fieldName, DatabaseCore dbCore) {
     try {
       Field coreField = DatabaseCore.class.getDeclaredField(fieldName);
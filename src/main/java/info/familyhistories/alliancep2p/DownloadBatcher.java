@@ -0,0 +1,180 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscription;
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscriptionPersistence;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.alliance.core.CoreSubsystem;
+import org.alliance.core.node.Friend;
+
+/**
+ * Queue all the downloads from one change reply (or page of one) in a single task on the core thread:
+ * the subscription is looked up once, every file goes to the DownloadPipeline, and once the pipeline has handed
+ * them all to Alliance the new time is recorded once.
+ *
+ * When the friend sends content digests (and we keep them too), files whose local copy already matches are skipped.
+ * Checking that can mean reading whole files, so it's done on our own thread first, and only the queueing is left
+ * for the core thread.
+ */
+public class DownloadBatcher {
+
+  private final CoreSubsystem core;
+  private final FriendSubscriptionPersistence dbFriendSub;
+  /** null if we're not checking content digests */
+  private final ContentDigestStore digestStore;
+  private final SyncMetrics metrics;
+  private final DownloadPipeline pipeline;
+  private final ExecutorService digestThread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "FriendFileChangeDetector download digests");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  DownloadBatcher(CoreSubsystem _core, FriendSubscriptionPersistence _dbFriendSub, ContentDigestStore _digestStore, SyncMetrics _metrics, DownloadPipeline _pipeline) {
+    this.core = _core;
+    this.dbFriendSub = _dbFriendSub;
+    this.digestStore = _digestStore;
+    this.metrics = _metrics;
+    this.pipeline = _pipeline;
+  }
+
+  public void shutdown() {
+    digestThread.shutdownNow();
+  }
+
+  /**
+   * @param shareBase the name of the friend's share-base at shareBaseIndex
+   * @param files paths relative to shareSubPath
+   * @param fileDigests the content digest of each of the files, or null if the friend didn't send them
+   * @param fileSizes the size of each of the files, or null if the friend didn't send them
+   * @param lastModifiedTime the time to record once all the files are handed to Alliance
+   * @param whenAccepted run on the core thread after the time is recorded (may be null)
+   */
+  public void schedule(final Friend friend, final int shareBaseIndex, final String shareBase, final String shareSubPath,
+                       final List<String> files, final List<String> fileDigests, final List<Long> fileSizes,
+                       final long lastModifiedTime, final Runnable whenAccepted) {
+    if (digestStore == null
+        || fileDigests == null) {
+      core.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            queue(friend, shareBaseIndex, shareBase, shareSubPath, files, fileSizes, Collections.<String>emptySet(), lastModifiedTime, whenAccepted);
+          }
+        });
+      return;
+    }
+    digestThread.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            FriendSubscription fsub = subscription(friend, shareBase, shareSubPath);
+            if (fsub == null) {
+              return;
+            }
+            final Set<String> alreadyHave = new HashSet<String>();
+            for (int i = 0; i < files.size(); i++) {
+              // queue drops (and reports) the ones outside the local path
+              File localFile = SafePaths.under(new File(fsub.localPath), files.get(i));
+              if (localFile != null
+                  && digestStore.matches(localFile, fileDigests.get(i))) {
+                alreadyHave.add(files.get(i));
+              }
+            }
+            core.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                  queue(friend, shareBaseIndex, shareBase, shareSubPath, files, fileSizes, alreadyHave, lastModifiedTime, whenAccepted);
+                }
+              });
+          } catch (Exception e) {
+            e.printStackTrace();
+          }
+        }
+      });
+  }
+
+  /**
+   * @return the subscription, to get the right download directory, or null if we don't have it
+   */
+  private FriendSubscription subscription(Friend friend, String shareBase, String shareSubPath) throws SQLException {
+    FriendSubscription fsub = dbFriendSub.getFriendSubscription(friend.getGuid(), shareBase, shareSubPath);
+    if (fsub == null) {
+      System.err.println("Got changes from friend " + friend.getGuid() + " for share-base " + shareBase + " and path " + shareSubPath + ", but we have no subscription for that.");
+    }
+    return fsub;
+  }
+
+  /**
+   * Hand the files to the pipeline, on the core thread.
+   *
+   * @param alreadyHave the files whose local copy already matches their digest
+   */
+  private void queue(final Friend friend, int shareBaseIndex, final String shareBase, final String shareSubPath,
+                     List<String> files, List<Long> fileSizes, Set<String> alreadyHave,
+                     final long lastModifiedTime, final Runnable whenAccepted) {
+    try {
+      FriendSubscription fsub = subscription(friend, shareBase, shareSubPath);
+      if (fsub == null) {
+        return;
+      }
+
+      // the same file can show up twice, eg. from the journal and a page boundary
+      Set<String> toDownload = new LinkedHashSet<String>();
+      List<Long> sizes = fileSizes == null ? null : new ArrayList<Long>();
+      List<File> localFiles = new ArrayList<File>();
+      for (int i = 0; i < files.size(); i++) {
+        if (alreadyHave.contains(files.get(i))) {
+          continue;
+        }
+        File localFile = SafePaths.under(new File(fsub.localPath), files.get(i));
+        if (localFile == null) {
+          System.err.println("Got " + files.get(i) + " from friend " + friend.getGuid() + " for " + shareBase + " " + shareSubPath + ", which isn't inside " + fsub.localPath + ", so we'll skip it.");
+          continue;
+        }
+        if (toDownload.add(files.get(i))) {
+          localFiles.add(localFile);
+          if (sizes != null) {
+            sizes.add(fileSizes.get(i));
+          }
+        }
+      }
+      if (!alreadyHave.isEmpty()) {
+        Log.info("Skipping %d file(s) from friend %d that we already have in %s", alreadyHave.size(), friend.getGuid(), fsub.localPath);
+      }
+
+      Log.info("Queueing %d download(s) from friend %d into %s", toDownload.size(), friend.getGuid(), fsub.localPath);
+      metrics.downloadsScheduled(friend.getGuid(), shareBase, shareSubPath, localFiles);
+      pipeline.enqueue(shareBaseIndex, fsub, new ArrayList<String>(toDownload), sizes, new Runnable() {
+          public void run() {
+            // now update our data to record the new time
+            try {
+              dbFriendSub.updateFriendSubscription(friend.getGuid(), shareBase, shareSubPath, lastModifiedTime);
+            } catch (SQLException e) {
+              System.err.println("Unable to update friend subscription for change on friend " + friend.getGuid() + " and share-base " + shareBase + " and path " + shareSubPath);
+              e.printStackTrace();
+              return;
+            }
+            if (whenAccepted != null) {
+              whenAccepted.run();
+            }
+          }
+        });
+    } catch (Exception e) {
+      e.printStackTrace();
+    }
+  }
+
+}
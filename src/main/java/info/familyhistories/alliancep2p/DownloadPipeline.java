@@ -0,0 +1,427 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscription;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alliance.core.CoreSubsystem;
+import org.alliance.core.comm.rpc.GetHashesForPath;
+import org.alliance.core.node.Friend;
+
+/**
+ * Hand a subscription's downloads to Alliance a few at a time, smallest first, instead of all at once.
+ *
+ * Each subscription has its own queue of batches (one for each change reply or page), taken in order; in a batch
+ * the smallest files go first, so the most files are done soonest.  Each friend can have PER_FRIEND downloads that
+ * we've handed over and haven't seen arrive, and everyone IN_CORE together, so Alliance's download queue stays
+ * short; the rest wait here.  A friend's subscriptions take turns at their free slots, so one huge subscription
+ * can't starve the others.  A download is done when its file in the local directory has a different size or time
+ * from when we handed it over (and has its size, if we know it), or stalled after STALL_TIMEOUT, which frees its
+ * slot but leaves it in Alliance's queue.  The disk and the friend's connection are only touched outside our lock,
+ * so enqueue and progress never wait on them.
+ *
+ * When the last file of a batch is handed over we run the batch's whenHandedOff (eg. to record the new time and ask
+ * for the next page), so whatever is still waiting here when we stop or they disconnect is asked for again later.
+ *
+ * Set the system properties named by PER_FRIEND_PROPERTY and IN_CORE_PROPERTY to change the limits (default: 4 and 32).
+ */
+public class DownloadPipeline {
+
+  static final String PER_FRIEND_PROPERTY = "info.familyhistories.alliancep2p.downloadsPerFriend";
+  static final int PER_FRIEND = Math.max(1, Integer.getInteger(PER_FRIEND_PROPERTY, 4));
+  static final String IN_CORE_PROPERTY = "info.familyhistories.alliancep2p.downloadsInCore";
+  static final int IN_CORE = Math.max(1, Integer.getInteger(IN_CORE_PROPERTY, 32));
+
+  /** how often (in millis) we look for finished downloads */
+  static final long CHECK_INTERVAL = 5 * 1000;
+  /** how long (in millis) a download can take before we stop counting it against the limits */
+  static final long STALL_TIMEOUT = 30 * 60 * 1000;
+
+  private static class Download {
+    final SubscriptionQueue queue;
+    /** relative to the subscribed path */
+    final String file;
+    /** where it goes, checked to be inside the subscription's local path */
+    final File localFile;
+    /** -1 if we don't know */
+    final long size;
+    /** the order it was queued, for files of the same size */
+    final long sequence;
+    long started;
+    /** the local file's size & time when we handed it over, or -1 if it wasn't there (only used on the core thread) */
+    long handedOffLength = -1, handedOffModified = -1;
+    Download(SubscriptionQueue _queue, String _file, File _localFile, long _size, long _sequence) {
+      this.queue = _queue;
+      this.file = _file;
+      this.localFile = _localFile;
+      this.size = _size;
+      this.sequence = _sequence;
+    }
+    /** @return true if its file has changed since we handed it over, and has its size if we know it */
+    boolean arrived() {
+      if (!localFile.isFile()) {
+        return false;
+      }
+      long length = localFile.length();
+      return (length != handedOffLength || localFile.lastModified() != handedOffModified)
+        && (size < 0 || length == size);
+    }
+  }
+
+  private static final Comparator<Download> SMALLEST_FIRST = new Comparator<Download>() {
+      public int compare(Download a, Download b) {
+        int bySize = Long.compare(a.size, b.size);
+        return bySize != 0 ? bySize : Long.compare(a.sequence, b.sequence);
+      }
+    };
+
+  private static class Batch {
+    final PriorityQueue<Download> waiting = new PriorityQueue<Download>(16, SMALLEST_FIRST);
+    /** may be null */
+    final Runnable whenHandedOff;
+    Batch(Runnable _whenHandedOff) {
+      this.whenHandedOff = _whenHandedOff;
+    }
+  }
+
+  private static class SubscriptionQueue {
+    final FriendSubscription fsub;
+    final int shareBaseIndex;
+    final LinkedList<Batch> batches = new LinkedList<Batch>();
+    /** files waiting or handed over, so the same file isn't queued twice */
+    final Set<String> pending = new HashSet<String>();
+    int waiting = 0, inFlight = 0, done = 0, stalled = 0;
+    long waitingBytes = 0;
+    SubscriptionQueue(FriendSubscription _fsub, int _shareBaseIndex) {
+      this.fsub = _fsub;
+      this.shareBaseIndex = _shareBaseIndex;
+    }
+  }
+
+  private static class FriendQueue {
+    /** map from subscription key to its queue, in turn order (each goes to the back after its turn) */
+    final LinkedHashMap<String, SubscriptionQueue> subscriptions = new LinkedHashMap<String, SubscriptionQueue>();
+    final List<Download> inFlight = new ArrayList<Download>();
+  }
+
+  private final CoreSubsystem core;
+  /** map from friend GUID to their queues (guarded by this) */
+  private final Map<Integer, FriendQueue> friends = new HashMap<Integer, FriendQueue>();
+  private int inCore = 0;
+  private long lastSequence = 0;
+  private final ScheduledExecutorService checkThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "FriendFileChangeDetector downloads");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  DownloadPipeline(CoreSubsystem _core) {
+    this.core = _core;
+    checkThread.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          if (hasWork()) {
+            core.invokeLater(new Runnable() {
+                public void run() {
+                  pump();
+                }
+              });
+          }
+        }
+      }, CHECK_INTERVAL, CHECK_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    checkThread.shutdownNow();
+  }
+
+  private static String subscriptionKey(FriendSubscription fsub) {
+    return fsub.shareBasePath + File.pathSeparator + fsub.shareSubPath;
+  }
+
+  private synchronized boolean hasWork() {
+    return !friends.isEmpty();
+  }
+
+  /**
+   * Queue the downloads from one reply (on the core thread).
+   *
+   * @param files paths relative to fsub.shareSubPath; any that would land outside fsub.localPath are dropped
+   * @param fileSizes the size of each of the files, or null if we don't know them
+   * @param whenHandedOff run on the core thread once every file is handed to Alliance (may be null)
+   */
+  public void enqueue(int shareBaseIndex, FriendSubscription fsub, List<String> files, List<Long> fileSizes, Runnable whenHandedOff) {
+    // resolved outside the lock, since it looks at the disk
+    List<File> localFiles = new ArrayList<File>(files.size());
+    for (String file : files) {
+      File localFile = SafePaths.under(new File(fsub.localPath), file);
+      if (localFile == null) {
+        System.err.println("Not downloading " + file + " from friend " + fsub.guid + ", since it isn't inside " + fsub.localPath + ".");
+      }
+      localFiles.add(localFile);
+    }
+    synchronized (this) {
+      FriendQueue friendQueue = friends.get(fsub.guid);
+      if (friendQueue == null) {
+        friendQueue = new FriendQueue();
+        friends.put(fsub.guid, friendQueue);
+      }
+      String key = subscriptionKey(fsub);
+      SubscriptionQueue queue = friendQueue.subscriptions.get(key);
+      if (queue == null) {
+        queue = new SubscriptionQueue(fsub, shareBaseIndex);
+        friendQueue.subscriptions.put(key, queue);
+      }
+      Batch batch = new Batch(whenHandedOff);
+      for (int i = 0; i < files.size(); i++) {
+        if (localFiles.get(i) != null
+            && queue.pending.add(files.get(i))) {
+          long size = fileSizes == null ? -1 : fileSizes.get(i).longValue();
+          batch.waiting.add(new Download(queue, files.get(i), localFiles.get(i), size, ++lastSequence));
+          queue.waiting++;
+          queue.waitingBytes += Math.max(0, size);
+        }
+      }
+      queue.batches.add(batch);
+    }
+    pump();
+  }
+
+  /**
+   * Drop what this friend has waiting (eg. because they disconnected); what Alliance has stays there.
+   */
+  public synchronized void cancel(int guid) {
+    FriendQueue friendQueue = friends.remove(guid);
+    if (friendQueue != null) {
+      inCore -= friendQueue.inFlight.size();
+    }
+  }
+
+  /**
+   * Hand over what we can and run what's done (on the core thread).
+   */
+  private void pump() {
+    // look at the disk before taking the lock
+    List<Download> handedOver = new ArrayList<Download>();
+    synchronized (this) {
+      for (FriendQueue friendQueue : friends.values()) {
+        handedOver.addAll(friendQueue.inFlight);
+      }
+    }
+    Set<Download> arrived = new HashSet<Download>();
+    for (Download download : handedOver) {
+      if (download.arrived()) {
+        arrived.add(download);
+      }
+    }
+
+    List<Download> toHandOff = new ArrayList<Download>();
+    // map from friend GUID to the whenHandedOff of their batches that are all handed over
+    Map<Integer, List<Runnable>> handedOff = new LinkedHashMap<Integer, List<Runnable>>();
+    Set<Integer> lost = new HashSet<Integer>();
+    synchronized (this) {
+      long now = System.currentTimeMillis();
+      for (Map.Entry<Integer, FriendQueue> entry : friends.entrySet()) {
+        FriendQueue friendQueue = entry.getValue();
+        for (Iterator<Download> downloads = friendQueue.inFlight.iterator(); downloads.hasNext(); ) {
+          Download download = downloads.next();
+          boolean isArrived = arrived.contains(download);
+          if (isArrived
+              || download.started + STALL_TIMEOUT < now) {
+            downloads.remove();
+            inCore--;
+            download.queue.inFlight--;
+            download.queue.pending.remove(download.file);
+            if (isArrived) {
+              download.queue.done++;
+            } else {
+              download.queue.stalled++;
+            }
+          }
+        }
+      }
+      for (Map.Entry<Integer, FriendQueue> entry : friends.entrySet()) {
+        if (!fill(entry.getKey(), entry.getValue(), now, toHandOff, handedOffFor(handedOff, entry.getKey()))) {
+          lost.add(entry.getKey());
+        }
+      }
+      for (Iterator<Map.Entry<Integer, FriendQueue>> friendQueues = friends.entrySet().iterator(); friendQueues.hasNext(); ) {
+        Map.Entry<Integer, FriendQueue> entry = friendQueues.next();
+        FriendQueue friendQueue = entry.getValue();
+        for (Iterator<SubscriptionQueue> queues = friendQueue.subscriptions.values().iterator(); queues.hasNext(); ) {
+          SubscriptionQueue queue = queues.next();
+          finishHandedOff(queue, handedOffFor(handedOff, entry.getKey()));
+          if (queue.batches.isEmpty()
+              && queue.inFlight == 0) {
+            queues.remove();
+          }
+        }
+        if (friendQueue.subscriptions.isEmpty()
+            && friendQueue.inFlight.isEmpty()) {
+          friendQueues.remove();
+        }
+      }
+    }
+
+    for (Download download : toHandOff) {
+      if (!lost.contains(download.queue.fsub.guid)
+          && !handOff(download)) {
+        lost.add(download.queue.fsub.guid);
+      }
+    }
+    for (Integer guid : lost) {
+      cancel(guid);
+    }
+    for (Map.Entry<Integer, List<Runnable>> entry : handedOff.entrySet()) {
+      // if we lost them, don't record anything, and we'll get these again next time
+      if (!lost.contains(entry.getKey())) {
+        for (Runnable runnable : entry.getValue()) {
+          runnable.run();
+        }
+      }
+    }
+  }
+
+  private static List<Runnable> handedOffFor(Map<Integer, List<Runnable>> handedOff, int guid) {
+    List<Runnable> result = handedOff.get(guid);
+    if (result == null) {
+      result = new ArrayList<Runnable>();
+      handedOff.put(guid, result);
+    }
+    return result;
+  }
+
+  /**
+   * Take this friend's downloads while they have free slots, one from each subscription in turn, counting them as
+   * handed over (the caller does that once the lock is released).
+   *
+   * @param toHandOff gets the downloads to hand over
+   * @param handedOff gets the whenHandedOff of each batch that's all handed over
+   * @return false if we can't reach them, so their queue should be dropped
+   */
+  private boolean fill(int guid, FriendQueue friendQueue, long now, List<Download> toHandOff, List<Runnable> handedOff) {
+    boolean connected = false;
+    while (friendQueue.inFlight.size() < PER_FRIEND
+           && inCore < IN_CORE) {
+      SubscriptionQueue queue = nextTurn(friendQueue, handedOff);
+      if (queue == null) {
+        return true;
+      }
+      if (!connected) {
+        Friend friend = core.getFriendManager().getFriend(guid);
+        if (friend == null
+            || !friend.isConnected()) {
+          return false;
+        }
+        connected = true;
+      }
+      Download download = queue.batches.getFirst().waiting.poll();
+      download.started = now;
+      toHandOff.add(download);
+      friendQueue.inFlight.add(download);
+      inCore++;
+      queue.waiting--;
+      queue.waitingBytes -= Math.max(0, download.size);
+      queue.inFlight++;
+    }
+    return true;
+  }
+
+  /**
+   * Give a download to Alliance, first noting what's in its place so we can tell when it arrives (on the core
+   * thread, without the lock).
+   *
+   * @return false if we couldn't reach the friend
+   */
+  private boolean handOff(Download download) {
+    int guid = download.queue.fsub.guid;
+    Friend friend = core.getFriendManager().getFriend(guid);
+    if (friend == null) {
+      return false;
+    }
+    File localFile = download.localFile;
+    if (localFile.exists()) {
+      download.handedOffLength = localFile.length();
+      download.handedOffModified = localFile.lastModified();
+    }
+    String remotePath = download.queue.fsub.shareSubPath + download.file;
+    core.getFileManager().getDownloadStorage().addCustomDownload(guid, download.queue.fsub.localPath, remotePath);
+    try {
+      friend.getFriendConnection().send(new GetHashesForPath(download.queue.shareBaseIndex, remotePath));
+    } catch (IOException e) {
+      // the connection is probably gone, so don't record the time and we'll get these again next time
+      System.err.println("Got an error trying to GetHashesForPath of file " + remotePath + ", so we'll drop what's waiting for friend " + guid + " without recording the new time.");
+      e.printStackTrace();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the next subscription with something to hand over (moving it to the back), or null if there's none
+   */
+  private SubscriptionQueue nextTurn(FriendQueue friendQueue, List<Runnable> handedOff) {
+    for (int tries = friendQueue.subscriptions.size(); tries > 0; tries--) {
+      Iterator<Map.Entry<String, SubscriptionQueue>> first = friendQueue.subscriptions.entrySet().iterator();
+      Map.Entry<String, SubscriptionQueue> entry = first.next();
+      first.remove();
+      friendQueue.subscriptions.put(entry.getKey(), entry.getValue());
+      SubscriptionQueue queue = entry.getValue();
+      finishHandedOff(queue, handedOff);
+      if (!queue.batches.isEmpty()) {
+        return queue;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Take the batches at the front of the queue that are all handed over.
+   */
+  private static void finishHandedOff(SubscriptionQueue queue, List<Runnable> handedOff) {
+    while (!queue.batches.isEmpty()
+           && queue.batches.getFirst().waiting.isEmpty()) {
+      Batch batch = queue.batches.removeFirst();
+      if (batch.whenHandedOff != null) {
+        handedOff.add(batch.whenHandedOff);
+      }
+    }
+  }
+
+  /**
+   * @return a line for each subscription with downloads waiting or handed over
+   */
+  public synchronized List<String> progress() {
+    Map<String, String> lines = new TreeMap<String, String>();
+    for (Map.Entry<Integer, FriendQueue> entry : friends.entrySet()) {
+      for (SubscriptionQueue queue : entry.getValue().subscriptions.values()) {
+        lines.put(entry.getKey() + " " + subscriptionKey(queue.fsub),
+                  "friend " + entry.getKey() + " " + queue.fsub.shareBasePath + " " + queue.fsub.shareSubPath + " into " + queue.fsub.localPath + ": "
+                  + queue.waiting + " waiting (" + queue.waitingBytes + " bytes known), " + queue.inFlight + " downloading, "
+                  + queue.done + " done, " + queue.stalled + " stalled");
+      }
+    }
+    List<String> result = new ArrayList<String>(lines.values());
+    result.add(inCore + " of " + IN_CORE + " downloads handed to Alliance, at most " + PER_FRIEND + " for each friend.");
+    return result;
+  }
+
+}
@@ -0,0 +1,350 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.SubscribedPathIndex.FileEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The size, time, and (if we keep digests) hash of every file under a subscribed path, with a version number
+ * that goes up each time something changes, so a friend who has one version can be sent just what's different.
+ *
+ * On the publishing side we also remember the version in which each path last changed, including paths that were
+ * removed, so we can tell a friend about deletes and renames too.  When too many removed paths pile up we forget
+ * the oldest, and a friend from before that gets the whole manifest again.
+ *
+ * The version token is the epoch and the version ("epoch-version"); the epoch changes whenever a manifest is
+ * started from nothing (eg. when the file is removed), so old versions are never mistaken for new ones.
+ */
+public class FileManifest implements Serializable {
+  private static final long serialVersionUID = 2093658147730528109L;
+
+  static final String ENABLED_PROPERTY = "info.familyhistories.alliancep2p.manifests";
+  static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  static final int MAX_REMOVED_PATHS = 10000;
+
+  private static final byte DELTA_FORMAT = 1;
+
+  static class ManifestEntry implements Serializable {
+    private static final long serialVersionUID = -3359815601826613830L;
+
+    final long size, lastModified;
+    /** content digest, or "" if we don't keep them */
+    final String hash;
+    ManifestEntry(long _size, long _lastModified, String _hash) {
+      this.size = _size;
+      this.lastModified = _lastModified;
+      this.hash = _hash;
+    }
+    boolean sameAs(ManifestEntry other) {
+      return other != null
+        && size == other.size
+        && lastModified == other.lastModified
+        && hash.equals(other.hash);
+    }
+  }
+
+  /** what changed between two versions */
+  static class Delta {
+    String epoch;
+    /** -1 if this is the whole manifest rather than the changes since a version */
+    long baseVersion = -1;
+    long newVersion;
+    final Map<String, ManifestEntry> changed = new LinkedHashMap<String, ManifestEntry>();
+    final List<String> removed = new ArrayList<String>();
+
+    boolean isWhole() {
+      return baseVersion == -1;
+    }
+    String newVersionToken() {
+      return epoch + "-" + newVersion;
+    }
+
+    /**
+     * @return the delta as deflated bytes in base-64, to go in a JSON string
+     */
+    String encode() {
+      try {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(DELTA_FORMAT);
+        out.writeUTF(epoch);
+        out.writeLong(baseVersion);
+        out.writeLong(newVersion);
+        out.writeInt(changed.size());
+        for (Map.Entry<String, ManifestEntry> entry : changed.entrySet()) {
+          out.writeUTF(entry.getKey());
+          out.writeLong(entry.getValue().size);
+          out.writeLong(entry.getValue().lastModified);
+          out.writeUTF(entry.getValue().hash);
+        }
+        out.writeInt(removed.size());
+        for (String path : removed) {
+          out.writeUTF(path);
+        }
+        out.close();
+
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+        deflater.setInput(bytes.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!deflater.finished()) {
+          deflated.write(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        return Base64.getEncoder().encodeToString(deflated.toByteArray());
+      } catch (IOException e) {
+        // we're only writing to memory
+        throw new IllegalStateException(e);
+      }
+    }
+
+    static Delta decode(String encoded) throws ParseException {
+      Inflater inflater = new Inflater();
+      try {
+        inflater.setInput(Base64.getDecoder().decode(encoded));
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (!inflater.finished()) {
+          int count = inflater.inflate(buffer);
+          if (count == 0
+              && (inflater.needsInput() || inflater.needsDictionary())) {
+            throw new ParseException("The manifest delta ended early.", 0);
+          }
+          inflated.write(buffer, 0, count);
+          if (inflated.size() > MessageCompression.MAX_INFLATED) {
+            throw new ParseException("The manifest delta is more than " + MessageCompression.MAX_INFLATED + " bytes.", 0);
+          }
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(inflated.toByteArray()));
+        byte format = in.readByte();
+        if (format != DELTA_FORMAT) {
+          throw new ParseException("Unknown manifest delta format " + format + ".", 0);
+        }
+        Delta delta = new Delta();
+        delta.epoch = in.readUTF();
+        delta.baseVersion = in.readLong();
+        delta.newVersion = in.readLong();
+        int changedCount = in.readInt();
+        for (int i = 0; i < changedCount; i++) {
+          String path = in.readUTF();
+          delta.changed.put(path, new ManifestEntry(in.readLong(), in.readLong(), in.readUTF()));
+        }
+        int removedCount = in.readInt();
+        for (int i = 0; i < removedCount; i++) {
+          delta.removed.add(in.readUTF());
+        }
+        return delta;
+      } catch (IllegalArgumentException e) {
+        throw new ParseException("The manifest delta isn't base-64: " + e.getMessage(), 0);
+      } catch (DataFormatException e) {
+        throw new ParseException("The manifest delta isn't deflated: " + e.getMessage(), 0);
+      } catch (IOException e) {
+        throw new ParseException("The manifest delta ended early.", 0);
+      } finally {
+        inflater.end();
+      }
+    }
+  }
+
+  private String epoch;
+  private long version = 0;
+  /** versions before this may have lost removed paths, so friends with them get the whole manifest */
+  private long oldestVersion = 0;
+  private final Map<String, ManifestEntry> entries = new HashMap<String, ManifestEntry>();
+  /** map from path to the version in which it last changed (including removed paths), only on the publishing side */
+  private final Map<String, Long> changedIn = new HashMap<String, Long>();
+  private int removedCount = 0;
+
+  FileManifest() {
+    this.epoch = Long.toString(System.currentTimeMillis(), 36);
+  }
+
+  /** hold the lock while it's saved, since it may be changing */
+  private synchronized void writeObject(ObjectOutputStream out) throws IOException {
+    out.defaultWriteObject();
+  }
+
+  public synchronized String versionToken() {
+    return epoch + "-" + version;
+  }
+
+  /** @return the entry for that path, or null if there isn't one */
+  public synchronized ManifestEntry get(String path) {
+    return entries.get(path);
+  }
+
+  /** @return all the paths in the manifest */
+  public synchronized Set<String> paths() {
+    return new HashSet<String>(entries.keySet());
+  }
+
+  /** @return the latest modified time of all the entries, or 0 if there are none */
+  public synchronized long latestModified() {
+    long result = 0;
+    for (ManifestEntry entry : entries.values()) {
+      result = Math.max(result, entry.lastModified);
+    }
+    return result;
+  }
+
+  /**
+   * Bring the manifest up to date with these files, making a new version if anything changed.
+   *
+   * @param baseDir the subscribed path
+   * @param files every file under baseDir (relative to it), eg. from the SubscribedPathIndex
+   * @param digestStore to get the hash of files whose size or time changed, or null to leave hashes out
+   * @return true if anything changed
+   */
+  public synchronized boolean refresh(File baseDir, Map<String, FileEntry> files, ContentDigestStore digestStore) {
+    long nextVersion = version + 1;
+    boolean changed = false;
+    for (Map.Entry<String, FileEntry> file : files.entrySet()) {
+      ManifestEntry known = entries.get(file.getKey());
+      if (known != null
+          && known.size == file.getValue().size
+          && known.lastModified == file.getValue().lastModified) {
+        continue;
+      }
+      String hash = "";
+      if (digestStore != null) {
+        hash = digestStore.digestsFor(baseDir, Collections.singletonList(file.getKey())).get(0);
+      }
+      ManifestEntry entry = new ManifestEntry(file.getValue().size, file.getValue().lastModified, hash);
+      if (!entry.sameAs(known)) {
+        if (known == null && changedIn.containsKey(file.getKey())) {
+          removedCount--;
+        }
+        entries.put(file.getKey(), entry);
+        changedIn.put(file.getKey(), nextVersion);
+        changed = true;
+      }
+    }
+    for (Iterator<String> paths = entries.keySet().iterator(); paths.hasNext(); ) {
+      String path = paths.next();
+      if (!files.containsKey(path)) {
+        paths.remove();
+        changedIn.put(path, nextVersion);
+        removedCount++;
+        changed = true;
+      }
+    }
+    if (changed) {
+      version = nextVersion;
+      if (removedCount > MAX_REMOVED_PATHS) {
+        forgetOldRemovedPaths();
+      }
+    }
+    return changed;
+  }
+
+  /** drop the older half of the removed paths, and remember that versions before what's left are incomplete */
+  private void forgetOldRemovedPaths() {
+    List<Long> removedVersions = new ArrayList<Long>();
+    for (Map.Entry<String, Long> change : changedIn.entrySet()) {
+      if (!entries.containsKey(change.getKey())) {
+        removedVersions.add(change.getValue());
+      }
+    }
+    Collections.sort(removedVersions);
+    long cutoff = removedVersions.get(removedVersions.size() / 2);
+    for (Iterator<Map.Entry<String, Long>> changes = changedIn.entrySet().iterator(); changes.hasNext(); ) {
+      Map.Entry<String, Long> change = changes.next();
+      if (!entries.containsKey(change.getKey())
+          && change.getValue() <= cutoff) {
+        changes.remove();
+        removedCount--;
+      }
+    }
+    oldestVersion = cutoff;
+  }
+
+  /**
+   * @param knownVersionToken the friend's version token, or "" if they have none
+   * @return what changed since that version, or the whole manifest if we can't tell
+   */
+  public synchronized Delta deltaSince(String knownVersionToken) {
+    Delta delta = new Delta();
+    delta.epoch = epoch;
+    delta.newVersion = version;
+    long known = -1;
+    int dash = knownVersionToken.lastIndexOf('-');
+    if (dash > 0
+        && knownVersionToken.substring(0, dash).equals(epoch)) {
+      try {
+        known = Long.parseLong(knownVersionToken.substring(dash + 1));
+      } catch (NumberFormatException e) {
+        known = -1;
+      }
+    }
+    if (known < oldestVersion
+        || known > version) {
+      delta.changed.putAll(entries);
+      return delta;
+    }
+    delta.baseVersion = known;
+    for (Map.Entry<String, Long> change : changedIn.entrySet()) {
+      if (change.getValue() > known) {
+        ManifestEntry entry = entries.get(change.getKey());
+        if (entry != null) {
+          delta.changed.put(change.getKey(), entry);
+        } else {
+          delta.removed.add(change.getKey());
+        }
+      }
+    }
+    return delta;
+  }
+
+  /**
+   * Take a delta from the friend's manifest (on the subscribing side).
+   *
+   * @param localDir where the subscription goes, so entries whose paths would land outside it are left out
+   * @return false if it's not based on the version we have, so nothing was changed
+   */
+  public synchronized boolean apply(Delta delta, File localDir) {
+    if (delta.isWhole()) {
+      entries.clear();
+    } else if (!delta.epoch.equals(epoch)
+               || delta.baseVersion != version) {
+      return false;
+    }
+    for (Map.Entry<String, ManifestEntry> entry : delta.changed.entrySet()) {
+      if (SafePaths.isUnder(localDir, entry.getKey())) {
+        entries.put(entry.getKey(), entry.getValue());
+      } else {
+        System.err.println("FileManifest: ignoring the manifest entry " + entry.getKey() + ", which isn't inside " + localDir + ".");
+      }
+    }
+    for (String path : delta.removed) {
+      entries.remove(path);
+    }
+    epoch = delta.epoch;
+    version = delta.newVersion;
+    return true;
+  }
+
+}
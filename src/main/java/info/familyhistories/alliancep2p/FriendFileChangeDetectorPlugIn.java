@@ -1,20 +1,27 @@
 package info.familyhistories.alliancep2p;
 
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeNotice;
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeQuery;
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeReply;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.sql.SQLException;
+import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
 
 import org.alliance.core.CoreSubsystem;
 import org.alliance.core.NonWindowUICallback;
-import org.alliance.core.comm.rpc.GetHashesForPath;
 import org.alliance.core.comm.rpc.GetShareBaseList;
 import org.alliance.core.comm.rpc.PlugInCommunication;
 import org.alliance.core.node.Friend;
@@ -41,11 +48,15 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
   private static final String COMM_CHANGES_PREFIX_AND_QUERY = COMM_PREFIX + COMM_CHANGES_QUERY;
   private static final String COMM_CHANGES_REPLY = ".changes.reply";
   private static final String COMM_CHANGES_PREFIX_AND_REPLY = COMM_PREFIX + COMM_CHANGES_REPLY;
-  private static final String KEY_SHARE_BASE_INDEX = "shareBaseIndex";
-  private static final String KEY_SHARE_SUB_PATH = "shareSubPath";
-  private static final String KEY_FILE_LIST = "fileList";
-  private static final String KEY_LAST_MODIFIED_TIME = "lastModifiedTime";
-  private static final String KEY_LAST_KNOWN_MODIFIED_TIME = "lastKnownModifiedTime";
+  private static final String COMM_CHANGES_NOTICE = ".changes.notice";
+  private static final String COMM_CHANGES_PREFIX_AND_NOTICE = COMM_PREFIX + COMM_CHANGES_NOTICE;
+  private static final String COMM_CHANGES_BATCH_QUERY = ".changes.batchquery";
+  private static final String COMM_CHANGES_PREFIX_AND_BATCH_QUERY = COMM_PREFIX + COMM_CHANGES_BATCH_QUERY;
+  private static final String COMM_CHANGES_BATCH_REPLY = ".changes.batchreply";
+  private static final String COMM_CHANGES_PREFIX_AND_BATCH_REPLY = COMM_PREFIX + COMM_CHANGES_BATCH_REPLY;
+
+  /** the most queries we answer from one batch query (the rest are told to ask again) */
+  static final int MAX_BATCH_QUERIES = 32;
   
   /**
    * Map from Friend GUID to list of their sharebases, each in the array at the index of their share base number.
@@ -53,6 +64,22 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
    * We will do all communications with share indexes to avoid the security problems of passing whole paths around.
    */
   private static final Map<Integer, String[]> shareBasesForFriend = Collections.synchronizedMap(new HashMap<Integer, String[]>());
+
+  /**
+   * Map from subscription (see journalTokenKey) to the change-journal token in the last reply from that friend,
+   * which lets them answer our next query from their journal instead of checking the whole sub-path.
+   * 
+   * Their journal doesn't survive a restart, so neither does this.
+   */
+  private static final Map<String, String> journalTokens = Collections.synchronizedMap(new HashMap<String, String>());
+
+  /**
+   * Map from Friend GUID to how many queries they'll take in one batch query, for the friends who've said so.
+   *
+   * This is kept when they disconnect, so the first check after they come back (when they're most likely to be
+   * busy with everyone else reconnecting too) can be a batch.
+   */
+  private static final Map<Integer, Integer> batchQueriesForFriend = Collections.synchronizedMap(new HashMap<Integer, Integer>());
   
   
   
@@ -62,7 +89,8 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
     
     final int guid;
     final String shareBasePath, shareSubPath, localPath;
-    final long lastKnownModified;
+    /** updated in place by the persistence when a reply is taken, so it may be read from any thread */
+    volatile long lastKnownModified;
     public FriendSubscription(int _guid, String _shareBasePath, String _shareSubPath, String _localPath, long _lastKnownModified) {
       this.guid = _guid;
       this.shareBasePath = _shareBasePath;
@@ -81,6 +109,11 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
     public List<FriendSubscription> getFriendSubscriptions(Integer guid) throws SQLException;
     public FriendSubscription getFriendSubscription(Integer guid, String shareBasePath, String shareSubPath) throws SQLException;
     public boolean updateFriendSubscription(Integer friendGuid, String shareBasePath, String shareSubPath, long lastModifiedTime) throws SQLException;
+    /**
+     * Record the lastKnownModified of each of these (the localPath is ignored) all at once.
+     * @return how many were found and updated
+     */
+    public int updateFriendSubscriptions(List<FriendSubscription> updates) throws SQLException;
     public void shutdown();
   }
   
@@ -89,6 +122,23 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
   
   CoreSubsystem core;
   FriendSubscriptionPersistence dbFriendSub;
+  SubscribedPathIndex pathIndex;
+  DownloadBatcher downloadBatcher;
+  SubscribedPathWatcher pathWatcher;
+  /** every scan on the publishing side goes through this (see ScanBudget.OPS_PROPERTY) */
+  ScanBudget scanBudget = new ScanBudget(ScanBudget.OPS_PER_SECOND, ScanBudget.LATENCY_MILLIS);
+  ChangeReplyPager replyPager = new ChangeReplyPager(scanBudget);
+  /** null unless we're detecting changes by content (see ContentDigestStore.ENABLED_PROPERTY) */
+  ContentDigestStore digestStore;
+  ManifestSync manifestSync;
+  MerkleSync merkleSync;
+  SubscriptionPoller poller;
+  ChangeNotifier changeNotifier;
+  ChangeListingCache listingCache;
+  QueryWorkers queryWorkers;
+  PlugInMessageDispatcher messageDispatcher;
+  SyncMetrics metrics;
+  DownloadPipeline downloadPipeline;
 
   @Override
   public void init(CoreSubsystem _core) throws SQLException {
@@ -96,7 +146,93 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
 
     // I've tried each to see if they can get past this download problem; no success.
     //this.dbFriendSub = new DatabaseFriendSubscriptions(_core);
-    this.dbFriendSub = new SerializedFriendSubscriptions(_core);
+    this.metrics = new SyncMetrics();
+    this.dbFriendSub = metrics.timed(new SerializedFriendSubscriptions(_core));
+    if (ContentDigestStore.ENABLED) {
+      this.digestStore = new ContentDigestStore(_core, scanBudget);
+    }
+    this.downloadPipeline = new DownloadPipeline(_core);
+    this.downloadBatcher = new DownloadBatcher(_core, dbFriendSub, digestStore, metrics, downloadPipeline);
+    this.pathIndex = new SubscribedPathIndex(_core, scanBudget);
+    ChangeJournal journal = new ChangeJournal();
+    this.pathWatcher = new SubscribedPathWatcher(journal, pathIndex, scanBudget);
+    this.changeNotifier = new ChangeNotifier(_core, pathWatcher, scanBudget, new ChangeNotifier.NoticeSender() {
+        public void sendNotice(Friend friend, ChangeNotice notice) throws IOException {
+          String commNotice = ChangeMessageCodec.encodeNotice(notice);
+          Log.debug("Sending %s to friend %d: %s", COMM_CHANGES_NOTICE, friend.getGuid(), commNotice);
+          friend.getFriendConnection().send(new PlugInCommunication(COMM_CHANGES_PREFIX_AND_NOTICE + "=" + commNotice));
+        }
+      });
+    journal.addListener(changeNotifier);
+    this.listingCache = new ChangeListingCache(pathIndex);
+    journal.addListener(listingCache);
+    journal.addListener(pathIndex);
+    this.queryWorkers = new QueryWorkers();
+    this.manifestSync = new ManifestSync(_core, dbFriendSub, pathIndex, digestStore, downloadBatcher, scanBudget);
+    this.merkleSync = new MerkleSync(_core, dbFriendSub, pathIndex, digestStore, downloadBatcher, scanBudget, new MerkleSync.QuerySender() {
+        public void queueQuery(final Friend friend, String shareBase, final ChangeQuery query) {
+          poller.followUp(friend.getGuid(), shareBase, query.shareSubPath, query.merklePath, new SubscriptionPoller.FollowUp() {
+              public boolean send() {
+                try {
+                  sendQuery(friend, query);
+                  return true;
+                } catch (IOException e) {
+                  System.err.println("Failed to ask friend " + friend.getGuid() + " about " + query.merklePath + "; we'll look again at the next check.");
+                  e.printStackTrace();
+                  return false;
+                }
+              }
+            });
+        }
+      });
+    this.poller = new SubscriptionPoller(_core, new SubscriptionPoller.Querier() {
+        public List<FriendSubscription> subscriptions(Friend friend) throws SQLException {
+          return dbFriendSub.getFriendSubscriptions(friend.getGuid());
+        }
+        public boolean query(Friend friend, FriendSubscription fsub) {
+          try {
+            int shareBaseIndex = shareBaseIndex(fsub.shareBasePath, shareBasesForFriend.get(friend.getGuid()));
+            if (shareBaseIndex > -1) {
+              sendLastModifiedQuery(friend, shareBaseIndex, fsub.shareSubPath, fsub.lastKnownModified, null);
+              return true;
+            } else {
+              System.err.println("FriendSubscription share-base '" + fsub.shareBasePath + "' is no longer in share-bases for Friend " + friend.getGuid() + ".");
+            }
+          } catch (IOException e) {
+            System.err.println("Failed to send modification request.");
+            e.printStackTrace();
+          }
+          return false;
+        }
+        public int batchSize(int guid) {
+          Integer batchQueries = batchQueriesForFriend.get(guid);
+          return batchQueries == null ? 1 : Math.min(batchQueries.intValue(), MAX_BATCH_QUERIES);
+        }
+        public List<FriendSubscription> queryBatch(Friend friend, List<FriendSubscription> fsubs) {
+          List<FriendSubscription> notAsked = new ArrayList<FriendSubscription>();
+          List<ChangeQuery> queries = new ArrayList<ChangeQuery>();
+          String[] shareBases = shareBasesForFriend.get(friend.getGuid());
+          for (FriendSubscription fsub : fsubs) {
+            int shareBaseIndex = shareBaseIndex(fsub.shareBasePath, shareBases);
+            if (shareBaseIndex > -1) {
+              queries.add(lastModifiedQuery(friend, shareBaseIndex, fsub.shareSubPath, fsub.lastKnownModified, null));
+            } else {
+              System.err.println("FriendSubscription share-base '" + fsub.shareBasePath + "' is no longer in share-bases for Friend " + friend.getGuid() + ".");
+              notAsked.add(fsub);
+            }
+          }
+          if (!queries.isEmpty()) {
+            try {
+              sendBatchQuery(friend, queries);
+            } catch (IOException e) {
+              System.err.println("Failed to send modification request.");
+              e.printStackTrace();
+              return fsubs;
+            }
+          }
+          return notAsked;
+        }
+      });
 
 
     /**
@@ -117,18 +253,26 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
     core.addUICallback(new NonWindowUICallback() {
       @Override
       public void nodeOrSubnodesUpdated(Node node) {
-        System.out.println("The node " + node.getNickname() + " was updated.");
+        Log.debug("The node %s was updated.", node.getNickname());
         if (node instanceof Friend
             && node.isConnected()
             && !shareBasesForFriend.containsKey(node.getGuid())) {
           Friend friend = (Friend) node;
-          System.out.println("They're a friend, so let's ask for their share bases in preparation for subscription update checks.");
+          Log.info("They're a friend, so let's ask for their share bases in preparation for subscription update checks.");
           try {
             friend.getFriendConnection().send(new GetShareBaseList());
           } catch (IOException e) {
             System.err.println("Problem asking for share-bases from " + friend.getGuid() + ", so we probably won't do any subscription updates.");
             e.printStackTrace();
           }
+        } else if (node instanceof Friend
+                   && !node.isConnected()) {
+          // forget their share-bases so we ask again (and check their subscriptions) when they reconnect
+          shareBasesForFriend.remove(node.getGuid());
+          poller.forget(node.getGuid());
+          changeNotifier.forget(node.getGuid());
+          queryWorkers.cancel(node.getGuid());
+          downloadPipeline.cancel(node.getGuid());
         }
       }
     });
@@ -139,221 +283,77 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
       public void receivedShareBaseList(Friend friend, String[] shareBaseNames) {
         // when we receive a list of our friends share-bases, we need to record the numerical index for later requests
         shareBasesForFriend.put(friend.getGuid(), shareBaseNames);
-        System.out.println("Received this list of the share-bases for friend " + friend.getGuid() + ": " + Arrays.asList(shareBaseNames));
+        Log.info("Received this list of the share-bases for friend %d: %s", friend.getGuid(), Arrays.asList(shareBaseNames));
         // optimization: remove any FriendSubsciptions with share-bases that are no longer available
 
-        // now let's check for subscription changes
-        try {
-          List<FriendSubscription> fsubs = dbFriendSub.getFriendSubscriptions(friend.getGuid());
-          for (FriendSubscription fsub : fsubs) {
-            try {
-              int shareBaseIndex = shareBaseIndex(fsub.shareBasePath, shareBasesForFriend.get(friend.getGuid()));
-              if (shareBaseIndex > -1) {
-                sendLastModifiedQuery(friend, shareBaseIndex, fsub.shareSubPath, fsub.lastKnownModified);
-              } else {
-                System.err.println("FriendSubscription share-base '" + fsub.shareBasePath + "' is no longer in share-bases for Friend " + friend.getGuid() + ".");
-              }
-            } catch (IOException e) {
-              System.err.println("Failed to send modification request.");
-              e.printStackTrace();
-            }
-          }
-        } catch (SQLException e) {
-          System.err.println("Failed to get the friend subscription info.");
-          e.printStackTrace();
-        }
+        // now let's check for subscription changes, and keep checking while they're connected
+        poller.pollNow(friend.getGuid());
       }
     });
 
-    // add listener for subscription-change replies, and reply with the list of files to download
-    core.addUICallback(new NonWindowUICallback() {
-      @Override
-      public void pluginCommunicationReceived(Friend source, String data) {
-        System.out.println("Received plugin comm from " + source + ": " + data);
-        if (data.startsWith(COMM_CHANGES_PREFIX_AND_QUERY)) {
-          String paramString = data.substring(COMM_CHANGES_PREFIX_AND_QUERY.length());
-          // strip off the "=" and the curly braces
-          String allKeyVals = paramString.substring(2, paramString.length() - 1);
-          // parse out each "key":"value"
-          String[] keyVals = allKeyVals.split(",");
-          // retrieve the values
-          int shareBaseIndex = -1;
-          String shareSubPath = null;
-          long lastKnownModifiedTime = -1;
-          for (String keyVal : keyVals) {
-            String[] elems = keyVal.split(":");
-            // strip the quotes off the key names
-            String key = elems[0].substring(1, elems[0].length()-1);
-            if (key.equals(KEY_SHARE_BASE_INDEX)) {
-              shareBaseIndex = new Integer(elems[1]).intValue();
-            } else if (key.equals(KEY_SHARE_SUB_PATH)) {
-              shareSubPath = elems[1].substring(1, elems[1].length()-1);
-            } else if (key.equals(KEY_LAST_KNOWN_MODIFIED_TIME)) {
-              lastKnownModifiedTime = new Long(elems[1]).longValue();
-            } else {
-              System.err.println("Got some unknown data for plugin " + COMM_CHANGES_PREFIX_AND_QUERY + ".  Expected JSON with keys for shareBaseIndex & pathTofile, but got this key: " + key);
-            }
-          }
-          if (shareBaseIndex == -1
-              || shareSubPath == null
-              || lastKnownModifiedTime == -1) {
-            System.err.println("Got some bad data for plugin " + COMM_CHANGES_PREFIX_AND_QUERY + ".  Expected JSON with keys for share-base index & sub-path & modified time, but got this: " + paramString);
-          } else {
-            System.out.println("Will get times for shareBaseIndex " + shareBaseIndex + " & path " + shareSubPath);
-            try {
-              String shareBasePath = core.getFileManager().getShareManager().getBaseByIndex(shareBaseIndex).getPath();
-              String subscribedPath = shareBasePath + File.separator + shareSubPath;
-              File subPathFile = new File(subscribedPath);
-              if (!subPathFile.exists()) {
-                System.err.println("The subscribed path does not exist with share-base " + shareBasePath + " and path " + shareSubPath);
-              } else {
-                long lastModifiedTime = lastKnownModifiedTime;
-                List<String> changedFiles = new ArrayList<String>();
-                System.out.println("Subscribed path '" + subPathFile.getAbsolutePath() + "' dir?" + subPathFile.isDirectory() + " file?" + subPathFile.isFile() + " canRead?" + subPathFile.canRead() + " exists?" + subPathFile.exists());
-                System.out.println("Checking for updates to subscribed path " + subscribedPath + " since " + lastKnownModifiedTime + ".");
-                if (subPathFile.isDirectory()) {
-                  long lastTimeOfAll = filesWithLatestTimestamp(subPathFile, lastKnownModifiedTime, subPathFile.getAbsolutePath() + File.separator, changedFiles);
-                  lastModifiedTime = Math.max(lastModifiedTime, lastTimeOfAll);
-                } else if (subPathFile.isFile()) {
-                  lastModifiedTime = Math.max(lastModifiedTime, subPathFile.lastModified());
-                }
-                String changedFilesStr = "[";
-                for (String file : changedFiles) {
-                  if (changedFilesStr.length() > 1) {
-                    changedFilesStr += ",";
-                  }
-                  changedFilesStr += "\"" + file + "\"";
-                }
-                changedFilesStr += "]";
-                // Remember: if you change these after some live in the wild, you'll have to handle versioning.
-                String commReply = 
-                  "{"
-                  + "\"" + KEY_SHARE_BASE_INDEX + "\":" + shareBaseIndex
-                  + ",\"" + KEY_SHARE_SUB_PATH + "\":\"" + shareSubPath + "\"" 
-                  + ",\"" + KEY_LAST_MODIFIED_TIME + "\":" + lastModifiedTime 
-                  + ",\"" + KEY_FILE_LIST + "\":" + changedFilesStr
-                  + "}";
-                System.out.println("Sending " + COMM_CHANGES_REPLY + " to friend " + source.getGuid() + ": " + commReply);
-                source.getFriendConnection().send(new PlugInCommunication(COMM_CHANGES_PREFIX_AND_REPLY + "=" + commReply));
-              }
-            } catch (IOException e) {
-              e.printStackTrace();
-            }
-          }
+    // route our plugin messages to the handler for each type
+    PlugInMessageDispatcher dispatcher = new PlugInMessageDispatcher(COMM_PREFIX);
+    // subscription-change queries: reply with the list of files to download
+    dispatcher.register(COMM_CHANGES_QUERY, new PlugInMessageDispatcher.MessageHandler() {
+        public void handle(Friend source, String body) {
+          receivedQuery(source, body);
         }
-      }
-    });
-
-    // add listener for file timestamp replies, and schedule the download for each file
-    core.addUICallback(new NonWindowUICallback() {
-      @Override
-      public void pluginCommunicationReceived(Friend source, String data) {
-        System.out.println("Received plugin comm from " + source + ": " + data);
-        if (data.startsWith(COMM_CHANGES_PREFIX_AND_REPLY)) {
-          String paramString = data.substring(COMM_CHANGES_PREFIX_AND_REPLY.length());
-          // strip off the "=" and the curly braces
-          String allKeyVals = paramString.substring(2, paramString.length() - 1);
-          // retrieve the share-base index
-          int nextComma = allKeyVals.indexOf(",");
-          int shareBaseIndex = new Integer(allKeyVals.substring(allKeyVals.indexOf(":") + 1, nextComma)).intValue();
-          // retrieve the share sub-path
-          String rest = allKeyVals.substring(nextComma + 1);
-          nextComma = rest.indexOf(",");
-          String shareSubPath = rest.substring(rest.indexOf(":") + 2, nextComma - 1); // without the quotes
-          //retrieve the last modified time
-          rest = rest.substring(nextComma + 1);
-          nextComma = rest.indexOf(",");
-          long lastModifiedTime = new Long(rest.substring(rest.indexOf(":") + 1, nextComma)).longValue();
-          // retrieve the file list
-          rest = rest.substring(nextComma + 1);
-          rest = rest.substring(rest.indexOf(":") + 1); // entire string array
-          rest = rest.substring(1, rest.length() - 1); // without the beginning/ending []
-          String[] fileList = {};
-          if (rest.length() > 0) {
-            rest = rest.substring(1, rest.length() - 1); // without the beginning/ending ""
-            fileList = rest.split("\",\"");
-          }
-
-          if (shareBaseIndex == -1
-              || shareSubPath == null
-              || lastModifiedTime == -1
-              || fileList == null) {
-            System.err.println("Got some bad data for plugin " + COMM_CHANGES_PREFIX_AND_REPLY + ".  Expected JSON with keys for share-base index & sub-path & modified time & file list, but got this: " + paramString);
-          } else {
-            System.out.println("Got file list: " + Arrays.asList(fileList));
-            System.out.println("Got other stuff: " + shareBaseIndex + " " + shareSubPath + " " + lastModifiedTime);
-            for (String file : fileList) {
-              System.out.println("FriendFileChangeDetector plugin trying to download sharebase index " + shareBaseIndex + " and file or dir/ " + shareSubPath + file);
-
-              final Friend subFriend = source;
-              final int remoteShareBaseIndex = shareBaseIndex;
-              final String remotePath = shareSubPath;
-              final String remoteFile = file;
-              final long remoteModTime = lastModifiedTime;
-              core.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                  try {
-                    // find the subscription to get the right download directory
-                    FriendSubscription fsub = dbFriendSub.getFriendSubscription
-                    (subFriend.getGuid(),
-                        shareBasesForFriend.get(subFriend.getGuid())[remoteShareBaseIndex],
-                        remotePath);
-
-                    // schedule the download
-                    System.out.println("Trying the ViewShareMDIWindow.download() approach for " + remotePath + remoteFile);
-                    //core.getFileManager().getDownloadStorage().addCustomDownload(subFriend.getGuid(), null, remotePath + remoteFile);
-                    core.getFileManager().getDownloadStorage().addCustomDownload(subFriend.getGuid(), fsub.localPath, remotePath + remoteFile);
-                    try {
-                      subFriend.getFriendConnection().send(new GetHashesForPath(remoteShareBaseIndex, remotePath + remoteFile));
-                    } catch (IOException e) {
-                      System.err.println("Got an error trying to GetHashesForPath of file " + remoteFile);
-                      e.printStackTrace();
-                    }
-
-                    //System.out.println("Trying the SearchMDIWindow.EVENT_download() approach.");
-                    //core.getNetworkManager().getDownloadManager().queDownload(n.getSh().getRoot(), name, n.getUserGuids());
-
-                    // now update our data to record the new time
-                    String[] shareBases = shareBasesForFriend.get(subFriend.getGuid());
-                    if (shareBases == null) {
-                      System.err.println("Strange: we got a timestamp reply from friend " + subFriend.getGuid() + ", but we have no share-bases recorded for them.");
-                    } else if (remoteShareBaseIndex >= shareBases.length) {
-                      System.err.println("Strange: we got a timestamp reply from friend " + subFriend.getGuid() + ", but the share-base index of " + remoteShareBaseIndex + " isn't in our list of share-bases: " + Arrays.asList(shareBases) + ".");
-                    } else {
-                      String shareBase = shareBases[remoteShareBaseIndex];
-                      try {
-                        dbFriendSub.updateFriendSubscription(subFriend.getGuid(), shareBase, remotePath, remoteModTime);
-                      } catch (SQLException e) {
-                        System.err.println("Unable to update friend subscription for change on friend " + subFriend.getGuid() + " and share-base " + shareBase + " and path " + remotePath);
-                        e.printStackTrace();
-                      }
-                    }
-                  } catch (Exception e) {
-                    e.printStackTrace();
-                  }
-                }
-              });
-
-            }
-          }
+      });
+    // change notices: ask for the changes right away
+    dispatcher.register(COMM_CHANGES_NOTICE, new PlugInMessageDispatcher.MessageHandler() {
+        public void handle(Friend source, String body) {
+          receivedNotice(source, body);
         }
-      }
-    });
+      });
+    // file timestamp replies: schedule the downloads for all the files at once
+    dispatcher.register(COMM_CHANGES_REPLY, new PlugInMessageDispatcher.MessageHandler() {
+        public void handle(Friend source, String body) {
+          receivedReply(source, body);
+        }
+      });
+    // queries for several subscriptions: answer them all in one reply
+    dispatcher.register(COMM_CHANGES_BATCH_QUERY, new PlugInMessageDispatcher.MessageHandler() {
+        public void handle(Friend source, String body) {
+          receivedBatchQuery(source, body);
+        }
+      });
+    // replies for several subscriptions: take each like its own reply
+    dispatcher.register(COMM_CHANGES_BATCH_REPLY, new PlugInMessageDispatcher.MessageHandler() {
+        public void handle(Friend source, String body) {
+          receivedBatchReply(source, body);
+        }
+      });
+    this.messageDispatcher = dispatcher;
+    core.addUICallback(dispatcher);
 
-    System.out.println("Done initializing plugin for " + getClass().getName() + ".");
+    Log.info("Done initializing plugin for %s.", getClass().getName());
 
   }
 
   @Override
   public void shutdown() throws Exception {
+    poller.shutdown();
+    queryWorkers.shutdown();
+    downloadBatcher.shutdown();
+    downloadPipeline.shutdown();
+    changeNotifier.shutdown();
     dbFriendSub.shutdown();
+    pathWatcher.shutdown();
+    pathIndex.shutdown();
+    manifestSync.shutdown();
+    if (digestStore != null) {
+      digestStore.shutdown();
+    }
+    metrics.shutdown();
   }
 
   @Override
   public ConsolePlugInExtension getConsoleExtensions() {
     return new ConsolePlugInExtension() {
       public static final String TIMES_COMMAND = "times";
+      public static final String LOGLEVEL_COMMAND = "loglevel";
+      public static final String METRICS_COMMAND = "metrics";
+      public static final String DOWNLOADS_COMMAND = "downloads";
       @Override
       public boolean handleLine(String line, Printer printer) {
         if (line.startsWith("newfsub")) {
@@ -402,7 +402,7 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
               printer.println(f.getNickname() + " is not connected.");
             } else {
               try {
-                sendLastModifiedQuery(f, Integer.valueOf(params.get(1)).intValue(), params.get(2), Long.valueOf(params.get(3)).longValue());
+                sendLastModifiedQuery(f, Integer.valueOf(params.get(1)).intValue(), params.get(2), Long.valueOf(params.get(3)).longValue(), null);
                 printer.println("Request sent.");
               } catch (IOException e) {
                 printer.println("Got an IOException: " + e.getMessage());
@@ -411,6 +411,42 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
               }
             }
           }
+
+        } else if (line.startsWith(LOGLEVEL_COMMAND)) {
+          String name = line.substring(LOGLEVEL_COMMAND.length()).trim();
+          if (name.length() > 0) {
+            Log.Level level = Log.parse(name, null);
+            if (level == null) {
+              printer.println("usage: " + LOGLEVEL_COMMAND + " [" + Arrays.asList(Log.Level.values()) + "]");
+              return true;
+            }
+            Log.setLevel(level);
+          }
+          printer.println("Log level is " + Log.getLevel() + ".");
+
+        } else if (line.startsWith(DOWNLOADS_COMMAND)) {
+          for (String progress : downloadPipeline.progress()) {
+            printer.println(progress);
+          }
+
+        } else if (line.startsWith(METRICS_COMMAND)) {
+          if (line.substring(METRICS_COMMAND.length()).trim().equals("reset")) {
+            metrics.reset();
+            scanBudget.reset();
+            printer.println("Metrics reset.");
+          } else {
+            for (Map.Entry<String, PlugInMessageDispatcher.MessageCounter> entry : messageDispatcher.counters().entrySet()) {
+              PlugInMessageDispatcher.MessageCounter counter = entry.getValue();
+              printer.println("messages " + entry.getKey() + ": " + counter.getMessages() + " (" + counter.getBytes() + " bytes, " + counter.getFailures() + " failed)");
+            }
+            printer.println("messages for other plugins: " + messageDispatcher.othersDropped());
+            for (String report : metrics.report()) {
+              printer.println(report);
+            }
+            for (String report : scanBudget.report()) {
+              printer.println(report);
+            }
+          }
         }
         // I could return for these commands because the API says I should, but I don't see any reason to stop another plugin from using the same string.
         return true;
@@ -435,49 +471,684 @@ public class FriendFileChangeDetectorPlugIn implements PlugIn {
     return result;
   }
 
-  private void sendLastModifiedQuery(Friend friend, int shareBaseIndex, String shareSubPath, long lastKnownModified) throws IOException {
-    // Remember: if you change these after some live in the wild, you'll have to handle versioning.
-    String commQuery = 
-      "{" 
-      + "\"" + KEY_SHARE_BASE_INDEX + "\":" + shareBaseIndex 
-      + ",\"" + KEY_SHARE_SUB_PATH + "\":\"" + shareSubPath + "\""
-      + ",\"" + KEY_LAST_KNOWN_MODIFIED_TIME + "\":" + lastKnownModified
-      + "}";
-    System.out.println("Sending " + COMM_CHANGES_QUERY + " to friend " + friend.getGuid() + ": " + commQuery);
+  private static String journalTokenKey(int guid, String shareBase, String shareSubPath) {
+    return guid + File.pathSeparator + shareBase + File.pathSeparator + shareSubPath;
+  }
+
+  /**
+   * @param pageToken the token from the last page of a reply, to ask for the next page; null to start a new check
+   */
+  private void sendLastModifiedQuery(Friend friend, int shareBaseIndex, String shareSubPath, long lastKnownModified, String pageToken) throws IOException {
+    sendQuery(friend, lastModifiedQuery(friend, shareBaseIndex, shareSubPath, lastKnownModified, pageToken));
+  }
+
+  /**
+   * @param pageToken the token from the last page of a reply, to ask for the next page; null to start a new check
+   */
+  private ChangeQuery lastModifiedQuery(Friend friend, int shareBaseIndex, String shareSubPath, long lastKnownModified, String pageToken) {
+    ChangeQuery query = new ChangeQuery();
+    query.shareBaseIndex = shareBaseIndex;
+    query.shareSubPath = shareSubPath;
+    query.lastKnownModifiedTime = lastKnownModified;
+    query.pageToken = pageToken;
+    String[] shareBases = shareBasesForFriend.get(friend.getGuid());
+    if (shareBases != null
+        && shareBaseIndex < shareBases.length) {
+      query.lastKnownSequence = journalTokens.get(journalTokenKey(friend.getGuid(), shareBases[shareBaseIndex], shareSubPath));
+      if (FileManifest.ENABLED) {
+        query.manifestVersion = manifestSync.knownVersion(friend.getGuid(), shareBases[shareBaseIndex], shareSubPath);
+      } else if (MerkleSync.ENABLED
+                 && pageToken == null) {
+        try {
+          FriendSubscription fsub = dbFriendSub.getFriendSubscription(friend.getGuid(), shareBases[shareBaseIndex], shareSubPath);
+          if (fsub != null) {
+            merkleSync.startQuery(query, fsub);
+          }
+        } catch (SQLException e) {
+          System.err.println("Failed to get the friend subscription info, so we'll ask for changes by time.");
+          e.printStackTrace();
+        }
+      }
+    }
+    return query;
+  }
+
+  private void sendQuery(Friend friend, ChangeQuery query) throws IOException {
+    if (MessageCompression.ENABLED) {
+      query.compression = MessageCompression.MODE;
+    }
+    String commQuery = ChangeMessageCodec.encodeQuery(query);
+    Log.debug("Sending %s to friend %d: %s", COMM_CHANGES_QUERY, friend.getGuid(), commQuery);
     friend.getFriendConnection().send(new PlugInCommunication(COMM_CHANGES_PREFIX_AND_QUERY + "=" + commQuery));
   }
 
   /**
+   * Ask about several subscriptions in one message, for a friend who said they take batches.
+   */
+  private void sendBatchQuery(Friend friend, List<ChangeQuery> queries) throws IOException {
+    if (MessageCompression.ENABLED) {
+      for (ChangeQuery query : queries) {
+        query.compression = MessageCompression.MODE;
+      }
+    }
+    String commQuery = ChangeMessageCodec.encodeBatchQuery(queries);
+    Log.debug("Sending %s to friend %d: %s", COMM_CHANGES_BATCH_QUERY, friend.getGuid(), commQuery);
+    friend.getFriendConnection().send(new PlugInCommunication(COMM_CHANGES_PREFIX_AND_BATCH_QUERY + "=" + commQuery));
+  }
+
+  private void receivedQuery(Friend source, String body) {
+    ChangeQuery query = null;
+    long parseStart = System.nanoTime();
+    try {
+      query = ChangeMessageCodec.decodeQuery(body);
+    } catch (ParseException e) {
+      System.err.println("Got some bad data for plugin " + COMM_CHANGES_PREFIX_AND_QUERY + ".  " + e.getMessage());
+    }
+    metrics.parsed(source.getGuid(), query == null ? null : SyncMetrics.servedPath(query.shareBaseIndex, query.shareSubPath), System.nanoTime() - parseStart);
+    if (query != null) {
+      // answer on a worker, so a big walk doesn't hold up everyone else's messages
+      final Friend subSource = source;
+      final ChangeQuery subQuery = query;
+      boolean taken = queryWorkers.submit(source.getGuid(), new Runnable() {
+          @Override
+          public void run() {
+            subscribeToNotices(subSource, subQuery);
+            answerQuery(subSource, subQuery);
+          }
+        });
+      if (!taken) {
+        sendBusyReply(source, query);
+      }
+    }
+  }
+
+  private void receivedBatchQuery(Friend source, String body) {
+    List<ChangeQuery> queries = null;
+    long parseStart = System.nanoTime();
+    try {
+      queries = ChangeMessageCodec.decodeBatchQuery(body);
+    } catch (ParseException e) {
+      System.err.println("Got some bad data for plugin " + COMM_CHANGES_PREFIX_AND_BATCH_QUERY + ".  " + e.getMessage());
+    }
+    metrics.parsed(source.getGuid(), null, System.nanoTime() - parseStart);
+    if (queries != null
+        && !queries.isEmpty()) {
+      // answer on a worker like a single query, all at once
+      final Friend subSource = source;
+      final List<ChangeQuery> subQueries = new ArrayList<ChangeQuery>(queries.subList(0, Math.min(queries.size(), MAX_BATCH_QUERIES)));
+      boolean taken = queryWorkers.submit(source.getGuid(), new Runnable() {
+          @Override
+          public void run() {
+            for (ChangeQuery query : subQueries) {
+              subscribeToNotices(subSource, query);
+            }
+            answerBatch(subSource, subQueries);
+          }
+        });
+      List<ChangeReply> busyReplies = new ArrayList<ChangeReply>();
+      for (ChangeQuery query : taken ? queries.subList(subQueries.size(), queries.size()) : queries) {
+        busyReplies.add(busyReply(source, query));
+      }
+      if (!busyReplies.isEmpty()) {
+        try {
+          sendBatchReply(source, busyReplies, queries.get(0).compression);
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  /**
+   * If they can take notices, tell them when the path in this query changes (on a query worker, since the first
+   * time may start watching the whole tree).
+   */
+  private void subscribeToNotices(Friend source, ChangeQuery query) {
+    if (query.version >= ChangeMessageCodec.VERSION_CURRENT
+        && (query.pageToken == null || query.pageToken.length() == 0)
+        && (query.merklePath == null || query.merklePath.length() == 0)) {
+      changeNotifier.subscribed(source.getGuid(), query.shareBaseIndex, query.shareSubPath);
+    }
+  }
+
+  private void receivedNotice(Friend source, String body) {
+    ChangeNotice notice = null;
+    long parseStart = System.nanoTime();
+    try {
+      notice = ChangeMessageCodec.decodeNotice(body);
+    } catch (ParseException e) {
+      System.err.println("Got some bad data for plugin " + COMM_CHANGES_PREFIX_AND_NOTICE + ".  " + e.getMessage());
+    }
+    metrics.parsed(source.getGuid(), null, System.nanoTime() - parseStart);
+    if (notice != null) {
+      String[] shareBases = shareBasesForFriend.get(source.getGuid());
+      if (shareBases == null
+          || notice.shareBaseIndex >= shareBases.length) {
+        System.err.println("Got a change notice from friend " + source.getGuid() + " for share-base index " + notice.shareBaseIndex + ", but we don't have that share-base recorded for them.");
+        return;
+      }
+      final Friend subSource = source;
+      final int shareBaseIndex = notice.shareBaseIndex;
+      final String shareBase = shareBases[notice.shareBaseIndex];
+      final String shareSubPath = notice.shareSubPath;
+      // through the poller, so a friend who changes lots of paths doesn't get a flood of queries back
+      poller.noticed(source.getGuid(), shareBase, shareSubPath, new SubscriptionPoller.FollowUp() {
+          public boolean send() {
+            try {
+              FriendSubscription fsub = dbFriendSub.getFriendSubscription(subSource.getGuid(), shareBase, shareSubPath);
+              if (fsub == null) {
+                Log.info("Got a change notice from friend %d for %s %s, but we no longer subscribe to it.", subSource.getGuid(), shareBase, shareSubPath);
+                return false;
+              }
+              sendLastModifiedQuery(subSource, shareBaseIndex, fsub.shareSubPath, fsub.lastKnownModified, null);
+              return true;
+            } catch (SQLException e) {
+              System.err.println("Failed to get the friend subscription info.");
+              e.printStackTrace();
+              return false;
+            } catch (IOException e) {
+              System.err.println("Failed to ask for the changes in the notice; we'll see them at our next check.");
+              e.printStackTrace();
+              return false;
+            }
+          }
+        });
+    }
+  }
+
+  private void receivedReply(Friend source, String body) {
+    ChangeReply reply = null;
+    long parseStart = System.nanoTime();
+    try {
+      if (MessageCompression.isCompressed(body)) {
+        String compressed = body;
+        body = MessageCompression.decompress(compressed);
+        metrics.compressed(source.getGuid(), null, body.length(), compressed.length(), System.nanoTime() - parseStart);
+      }
+      reply = ChangeMessageCodec.decodeReply(body);
+    } catch (ParseException e) {
+      System.err.println("Got some bad data for plugin " + COMM_CHANGES_PREFIX_AND_REPLY + ".  " + e.getMessage());
+    }
+    long parseNanos = System.nanoTime() - parseStart;
+    if (reply != null) {
+      takeReply(source, reply, parseNanos);
+    }
+  }
+
+  private void receivedBatchReply(Friend source, String body) {
+    List<ChangeReply> replies = null;
+    long parseStart = System.nanoTime();
+    try {
+      if (MessageCompression.isCompressed(body)) {
+        String compressed = body;
+        body = MessageCompression.decompress(compressed);
+        metrics.compressed(source.getGuid(), null, body.length(), compressed.length(), System.nanoTime() - parseStart);
+      }
+      replies = ChangeMessageCodec.decodeBatchReply(body);
+    } catch (ParseException e) {
+      System.err.println("Got some bad data for plugin " + COMM_CHANGES_PREFIX_AND_BATCH_REPLY + ".  " + e.getMessage());
+    }
+    long parseNanos = System.nanoTime() - parseStart;
+    if (replies != null) {
+      for (ChangeReply reply : replies) {
+        // each gets its share of the parsing
+        takeReply(source, reply, parseNanos / replies.size());
+      }
+    }
+  }
+
+  /**
+   * Record what a reply says and schedule its downloads (or ask again, if they were busy).
+   */
+  private void takeReply(Friend source, ChangeReply reply, long parseNanos) {
+    if (reply.version >= ChangeMessageCodec.VERSION_CURRENT) {
+      if (reply.batchQueries > 0) {
+        batchQueriesForFriend.put(source.getGuid(), reply.batchQueries);
+      } else {
+        batchQueriesForFriend.remove(source.getGuid());
+      }
+    }
+    Log.trace("Got file list: %s", reply.fileList);
+    Log.debug("Got other stuff: %d %s %d %s", reply.shareBaseIndex, reply.shareSubPath, reply.lastModifiedTime, reply.sequence);
+    String[] shareBases = shareBasesForFriend.get(source.getGuid());
+    metrics.parsed(source.getGuid(),
+                   shareBases == null || reply.shareBaseIndex >= shareBases.length ? null : SyncMetrics.subscribedPath(source.getGuid(), shareBases[reply.shareBaseIndex], reply.shareSubPath),
+                   parseNanos);
+    if (shareBases == null) {
+      System.err.println("Strange: we got a timestamp reply from friend " + source.getGuid() + ", but we have no share-bases recorded for them.");
+    } else if (reply.shareBaseIndex >= shareBases.length) {
+      System.err.println("Strange: we got a timestamp reply from friend " + source.getGuid() + ", but the share-base index of " + reply.shareBaseIndex + " isn't in our list of share-bases: " + Arrays.asList(shareBases) + ".");
+    } else {
+      String shareBase = shareBases[reply.shareBaseIndex];
+      // the top of a hash tree is the subscription's own query; anything further down is a follow-up
+      String followUpPart = reply.merklePath != null && reply.merklePath.length() > 0 ? reply.merklePath : null;
+      if (reply.retryAfter > 0) {
+        poller.busy(source.getGuid(), shareBase, reply.shareSubPath, followUpPart, reply.retryAfter);
+        return;
+      }
+      if (reply.sequence != null) {
+        journalTokens.put(journalTokenKey(source.getGuid(), shareBase, reply.shareSubPath), reply.sequence);
+      }
+      boolean changed = !reply.fileList.isEmpty()
+        || reply.merkleChildren != null
+        || (reply.manifestVersion != null
+            && !reply.manifestVersion.equals(manifestSync.knownVersion(source.getGuid(), shareBase, reply.shareSubPath)));
+      poller.replied(source.getGuid(), shareBase, reply.shareSubPath, followUpPart, changed);
+
+      if (reply.manifestDelta != null) {
+        manifestSync.applyReply(source, reply.shareBaseIndex, shareBase, reply);
+        return;
+      }
+      if (reply.merklePath != null) {
+        merkleSync.applyReply(source, reply.shareBaseIndex, shareBase, reply);
+        return;
+      }
+
+      final Friend subFriend = source;
+      final ChangeReply subReply = reply;
+      Runnable askForNextPage = null;
+      if (reply.pageToken != null) {
+        // once we've taken this page, ask for the next one
+        askForNextPage = new Runnable() {
+          @Override
+          public void run() {
+            try {
+              sendLastModifiedQuery(subFriend, subReply.shareBaseIndex, subReply.shareSubPath, subReply.lastModifiedTime, subReply.pageToken);
+            } catch (IOException e) {
+              System.err.println("Failed to ask for the next page of changes; we'll get the rest from " + subReply.lastModifiedTime + " next time.");
+              e.printStackTrace();
+            }
+          }
+        };
+      }
+      if (!reply.fileList.isEmpty()) {
+        downloadBatcher.schedule(source, reply.shareBaseIndex, shareBase, reply.shareSubPath, reply.fileList, reply.fileDigests, reply.fileSizes, reply.lastModifiedTime, askForNextPage);
+      } else if (askForNextPage != null) {
+        askForNextPage.run();
+      }
+    }
+  }
+
+  /**
+   * Answer a change query, on one of the queryWorkers.
+   */
+  private void answerQuery(Friend source, ChangeQuery query) {
+    long start = System.nanoTime();
+    try {
+      for (ChangeReply reply : repliesFor(source, query, null)) {
+        sendReply(source, reply, query);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    metrics.queryServed(source.getGuid(), query.shareBaseIndex, query.shareSubPath, System.nanoTime() - start);
+  }
+
+  /**
+   * Answer a batch of change queries in one reply, on one of the queryWorkers.
+   */
+  private void answerBatch(Friend source, List<ChangeQuery> queries) {
+    long start = System.nanoTime();
+    Map<ChangeQuery, ChangeReplyPager.Page> firstPages = sharedFirstPages(source, queries);
+    // each gets its share of the time spent going through them together
+    long sharedNanos = (System.nanoTime() - start) / queries.size();
+    List<ChangeReply> replies = new ArrayList<ChangeReply>();
+    for (ChangeQuery query : queries) {
+      long queryStart = System.nanoTime();
+      replies.addAll(repliesFor(source, query, firstPages.get(query)));
+      metrics.queryServed(source.getGuid(), query.shareBaseIndex, query.shareSubPath, sharedNanos + System.nanoTime() - queryStart);
+    }
+    try {
+      sendBatchReply(source, replies, queries.get(0).compression);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Answer one change query: from the manifest or the hash tree if that's what they asked about, or else with
+   * the changes (every page of them, if they don't ask for pages).
+   *
+   * @param firstPage the first page of changes if it's been found already (see sharedFirstPages), or null
+   */
+  private List<ChangeReply> repliesFor(Friend source, ChangeQuery query, ChangeReplyPager.Page firstPage) {
+    List<ChangeReply> replies = new ArrayList<ChangeReply>();
+    if (query.manifestVersion != null) {
+      // they keep our manifest, so send what changed in it (unless it's not a directory, and then answer the old way)
+      ChangeReply reply = manifestSync.replyFor(query);
+      if (reply != null) {
+        replies.add(reply);
+        return replies;
+      }
+    } else if (query.merklePath != null) {
+      // they're comparing hash trees, so send ours for that directory (unless it's not a directory, and then answer the old way)
+      ChangeReply reply = merkleSync.replyFor(query);
+      if (reply != null) {
+        replies.add(reply);
+        return replies;
+      }
+    }
+    ChangeReplyPager.Page page = firstPage;
+    if (page == null
+        && query.pageToken != null
+        && query.pageToken.length() > 0) {
+      page = replyPager.nextPage(query.pageToken, source.getGuid(), query.shareBaseIndex, query.shareSubPath);
+      if (page == null) {
+        Log.info("We no longer have page %s for friend %d, so we'll check again from %d.", query.pageToken, source.getGuid(), query.lastKnownModifiedTime);
+      }
+    }
+    if (page == null) {
+      page = changesFirstPage(source, query.shareBaseIndex, query.shareSubPath, query.lastKnownModifiedTime, query.lastKnownSequence);
+    }
+    if (page != null) {
+      replies.add(changesReply(query, page));
+      if (query.pageToken == null) {
+        // they don't ask for pages, so send them all now; each one still stands on its own
+        for (ChangeReplyPager.Page nextPage : replyPager.remainingPages(page, source.getGuid(), query.shareBaseIndex, query.shareSubPath)) {
+          replies.add(changesReply(query, nextPage));
+        }
+      }
+    }
+    return replies;
+  }
+
+  /**
+   * Tell them we're too busy to answer now, leaving their time as it was.
+   */
+  private void sendBusyReply(Friend source, ChangeQuery query) {
+    try {
+      sendReply(source, busyReply(source, query), query);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private ChangeReply busyReply(Friend source, ChangeQuery query) {
+    Log.info("Too many change queries are waiting, so friend %d will have to ask again.", source.getGuid());
+    ChangeReply reply = new ChangeReply();
+    reply.shareBaseIndex = query.shareBaseIndex;
+    reply.shareSubPath = query.shareSubPath;
+    reply.lastModifiedTime = query.lastKnownModifiedTime;
+    reply.fileList = new ArrayList<String>();
+    reply.retryAfter = QueryWorkers.RETRY_AFTER;
+    if (query.merklePath != null) {
+      // so they know which of their queries it was
+      reply.merkleMode = query.merkleMode;
+      reply.merklePath = query.merklePath;
+      reply.merkleHash = query.merkleHash;
+    }
+    metrics.busyReplySent(source.getGuid(), query.shareBaseIndex, query.shareSubPath);
+    return reply;
+  }
+
+  /**
+   * Find the changes under a subscribed path and hold them for paging.
    * 
-   * @param baseDir directory underneath which to look for file updates
-   * @param friendsLastKnownTimestamp time that friend was last updated
-   * @param pathBelowSubPath is the path where the search started, and is used to truncate the paths of the changedFiles
-   * @param changedFiles all the files that have changed since friendsLastKnownTimestamp, modified as we find more
-   * @return the latest timestamp of the collected files
+   * @return the first page of changes, or null if there's no such path (or it isn't inside the share-base)
    */
-  private long filesWithLatestTimestamp(File baseDir, long friendsLastKnownTimestamp, String pathBelowSubPath, List<String> changedFiles) {
-    long result = baseDir.lastModified();
-    File[] nestedFiles = baseDir.listFiles();
-    System.out.println("FileSubSearch: working on dir " + baseDir.getName() + " with contents " + Arrays.asList(nestedFiles));
-    for (File file : nestedFiles) {
-      if (file.isDirectory()) {
-        System.out.println("FileSubSearch: " + file.getName() + " is dir, so will recurse.");
-        long nestedResult = filesWithLatestTimestamp(file, friendsLastKnownTimestamp, pathBelowSubPath, changedFiles);
-        result = Math.max(result, nestedResult);
-        System.out.println("FileSubSearch: latest time from recursion is now " + result);
-      } else if (file.isFile()) {
-        System.out.println("FileSubSearch: " + file.getName() + " is a file.");
-        if (file.lastModified() > friendsLastKnownTimestamp) {
-          System.out.println("FileSubSearch: " + file.getName() + " is a file that is newer, so we're adding it.");
-          changedFiles.add(file.getAbsolutePath().substring(pathBelowSubPath.length()));
-          result = Math.max(result, file.lastModified());
-          System.out.println("FileSubSearch: latest time is now " + result);
+  private ChangeReplyPager.Page changesFirstPage(Friend source, int shareBaseIndex, String shareSubPath, long lastKnownModifiedTime, String lastKnownSequence) {
+    Log.debug("Will get times for shareBaseIndex %d & path %s", shareBaseIndex, shareSubPath);
+    File subPathFile = SafePaths.sharedPath(core, shareBaseIndex, shareSubPath);
+    if (subPathFile == null) {
+      return null;
+    }
+    String subscribedPath = subPathFile.getPath();
+    BasicFileAttributes attrs;
+    try {
+      attrs = scanBudget.readAttributes(subPathFile.toPath());
+    } catch (IOException e) {
+      System.err.println("The subscribed path does not exist with share-base index " + shareBaseIndex + " and path " + shareSubPath);
+      return null;
+    }
+    long lastModifiedTime = lastKnownModifiedTime;
+    CompactPathList changedFiles = new CompactPathList();
+    String sequence = null;
+    Log.debug("Subscribed path '%s' dir?%b file?%b", subscribedPath, attrs.isDirectory(), attrs.isRegularFile());
+    Log.info("Checking for updates to subscribed path %s since %d.", subscribedPath, lastKnownModifiedTime);
+    if (attrs.isDirectory()
+        && digestStore != null) {
+      // the journal only knows that something happened to a file, so go through the digests of everything
+      Map<String, SubscribedPathIndex.FileEntry> allFiles = new HashMap<String, SubscribedPathIndex.FileEntry>();
+      pathIndex.allFiles(subPathFile, allFiles);
+      long lastTimeOfAll = digestStore.filesWithLatestContentTime(subPathFile, allFiles, lastKnownModifiedTime, changedFiles);
+      metrics.filesScanned(source.getGuid(), shareBaseIndex, shareSubPath, allFiles.size());
+      lastModifiedTime = Math.max(lastModifiedTime, lastTimeOfAll);
+    } else if (attrs.isDirectory()) {
+      sequence = pathWatcher.watch(subPathFile);
+      long journalTime = -1;
+      if (lastKnownSequence != null
+          && lastKnownSequence.length() > 0) {
+        journalTime = pathWatcher.filesChangedSince(subPathFile, lastKnownSequence, lastKnownModifiedTime, changedFiles);
+      }
+      if (journalTime > -1) {
+        Log.info("Answered from the change journal since %s.", lastKnownSequence);
+        lastModifiedTime = journalTime;
+      } else {
+        long lastTimeOfAll = listingCache.filesWithLatestTimestamp(shareBaseIndex, shareSubPath, subPathFile, lastKnownModifiedTime, changedFiles);
+        lastModifiedTime = Math.max(lastModifiedTime, lastTimeOfAll);
+      }
+      // the journal and the listing only look at what's changed
+      metrics.filesScanned(source.getGuid(), shareBaseIndex, shareSubPath, changedFiles.size());
+    } else if (attrs.isRegularFile()) {
+      lastModifiedTime = Math.max(lastModifiedTime, attrs.lastModifiedTime().toMillis());
+      metrics.filesScanned(source.getGuid(), shareBaseIndex, shareSubPath, 1);
+    }
+    return replyPager.firstPage(source.getGuid(), shareBaseIndex, shareSubPath, subPathFile, changedFiles, lastKnownModifiedTime, lastModifiedTime, sequence);
+  }
+
+  /**
+   * Find the changes for the queries in a batch that ask about paths inside another one's path, going through each
+   * outermost path just once and splitting what we find among the queries under it.
+   *
+   * Anything else (manifest and hash tree queries, later pages, paths nothing else is under, and paths the journal
+   * can answer) is left for repliesFor to answer on its own.
+   *
+   * @return map from query to its first page, for the queries that were answered together
+   */
+  private Map<ChangeQuery, ChangeReplyPager.Page> sharedFirstPages(Friend source, List<ChangeQuery> queries) {
+    Map<ChangeQuery, ChangeReplyPager.Page> result = new HashMap<ChangeQuery, ChangeReplyPager.Page>();
+    List<ChangeQuery> plain = new ArrayList<ChangeQuery>();
+    List<Path> dirs = new ArrayList<Path>();
+    for (ChangeQuery query : queries) {
+      if (query.manifestVersion == null
+          && query.merklePath == null
+          && (query.pageToken == null || query.pageToken.length() == 0)) {
+        File subPathFile = SafePaths.sharedPath(core, query.shareBaseIndex, query.shareSubPath);
+        // a bad path is left for repliesFor, which answers that there's nothing there
+        if (subPathFile != null) {
+          plain.add(query);
+          dirs.add(subPathFile.toPath());
+        }
+      }
+    }
+    // map from the index of each outermost path to the indexes of the paths under it (and itself)
+    Map<Integer, List<Integer>> nested = new LinkedHashMap<Integer, List<Integer>>();
+    for (int i = 0; i < plain.size(); i++) {
+      int outermost = i;
+      for (int j = 0; j < plain.size(); j++) {
+        // the same path twice goes with the first
+        if (dirs.get(i).startsWith(dirs.get(j))
+            && (dirs.get(j).getNameCount() < dirs.get(outermost).getNameCount()
+                || (dirs.get(j).equals(dirs.get(outermost)) && j < outermost))) {
+          outermost = j;
+        }
+      }
+      if (!nested.containsKey(outermost)) {
+        nested.put(outermost, new ArrayList<Integer>());
+      }
+      nested.get(outermost).add(i);
+    }
+    for (Map.Entry<Integer, List<Integer>> entry : nested.entrySet()) {
+      File outerDir = dirs.get(entry.getKey()).toFile();
+      if (entry.getValue().size() < 2
+          || !scanBudget.isDirectory(outerDir.toPath())) {
+        continue;
+      }
+      List<ChangeQuery> toScan = new ArrayList<ChangeQuery>();
+      List<String> relDirs = new ArrayList<String>();
+      List<String> sequences = new ArrayList<String>();
+      for (int i : entry.getValue()) {
+        ChangeQuery query = plain.get(i);
+        File dir = dirs.get(i).toFile();
+        if (i != entry.getKey()
+            && !scanBudget.isDirectory(dirs.get(i))) {
+          continue;
+        }
+        String sequence = null;
+        if (digestStore == null) {
+          sequence = pathWatcher.watch(dir);
+          if (query.lastKnownSequence != null
+              && query.lastKnownSequence.length() > 0) {
+            CompactPathList changedFiles = new CompactPathList();
+            long journalTime = pathWatcher.filesChangedSince(dir, query.lastKnownSequence, query.lastKnownModifiedTime, changedFiles);
+            if (journalTime > -1) {
+              metrics.filesScanned(source.getGuid(), query.shareBaseIndex, query.shareSubPath, changedFiles.size());
+              result.put(query, replyPager.firstPage(source.getGuid(), query.shareBaseIndex, query.shareSubPath, dir, changedFiles,
+                                                     query.lastKnownModifiedTime, journalTime, sequence));
+              continue;
+            }
+          }
+        }
+        String relDir = dirs.get(entry.getKey()).relativize(dirs.get(i)).toString();
+        toScan.add(query);
+        relDirs.add(relDir.length() == 0 ? relDir : relDir + File.separator);
+        sequences.add(sequence);
+      }
+      if (toScan.isEmpty()) {
+        continue;
+      }
+      Log.info("Checking for updates to %d subscribed paths under %s in one pass.", toScan.size(), outerDir);
+      List<CompactPathList> changedFiles = new ArrayList<CompactPathList>();
+      long[] lastTimes = new long[toScan.size()];
+      if (digestStore != null) {
+        Map<String, SubscribedPathIndex.FileEntry> allFiles = new HashMap<String, SubscribedPathIndex.FileEntry>();
+        pathIndex.allFiles(outerDir, allFiles);
+        for (int i = 0; i < toScan.size(); i++) {
+          String relDir = relDirs.get(i);
+          Map<String, SubscribedPathIndex.FileEntry> files = new HashMap<String, SubscribedPathIndex.FileEntry>();
+          for (Map.Entry<String, SubscribedPathIndex.FileEntry> file : allFiles.entrySet()) {
+            if (file.getKey().startsWith(relDir)) {
+              files.put(file.getKey().substring(relDir.length()), file.getValue());
+            }
+          }
+          changedFiles.add(new CompactPathList());
+          lastTimes[i] = digestStore.filesWithLatestContentTime(new File(outerDir, relDir), files, toScan.get(i).lastKnownModifiedTime, changedFiles.get(i));
+          metrics.filesScanned(source.getGuid(), toScan.get(i).shareBaseIndex, toScan.get(i).shareSubPath, files.size());
         }
       } else {
-        System.err.println("FileSubSearch: Strange... found a non-file, non-directory file (which we will ignore): " + file.getAbsolutePath());
+        long[] sinces = new long[toScan.size()];
+        for (int i = 0; i < toScan.size(); i++) {
+          sinces[i] = toScan.get(i).lastKnownModifiedTime;
+          changedFiles.add(new CompactPathList());
+        }
+        lastTimes = pathIndex.filesWithLatestTimestamps(outerDir, relDirs, sinces, changedFiles);
+        for (int i = 0; i < toScan.size(); i++) {
+          metrics.filesScanned(source.getGuid(), toScan.get(i).shareBaseIndex, toScan.get(i).shareSubPath, changedFiles.get(i).size());
+        }
+      }
+      for (int i = 0; i < toScan.size(); i++) {
+        ChangeQuery query = toScan.get(i);
+        result.put(query, replyPager.firstPage(source.getGuid(), query.shareBaseIndex, query.shareSubPath, new File(outerDir, relDirs.get(i)),
+                                               changedFiles.get(i), query.lastKnownModifiedTime,
+                                               Math.max(query.lastKnownModifiedTime, lastTimes[i]), sequences.get(i)));
       }
     }
     return result;
   }
 
+  /**
+   * @return a page of changes in the version they asked with, leaving out anything they didn't ask for
+   */
+  private ChangeReply changesReply(ChangeQuery query, ChangeReplyPager.Page page) {
+    ChangeReply reply = new ChangeReply();
+    reply.shareBaseIndex = query.shareBaseIndex;
+    reply.shareSubPath = query.shareSubPath;
+    reply.lastModifiedTime = page.lastModifiedTime;
+    reply.fileList = page.files;
+    if (query.lastKnownSequence != null) {
+      reply.sequence = page.sequence;
+    }
+    if (query.pageToken != null) {
+      reply.pageToken = page.pageToken;
+    }
+    if (query.version >= ChangeMessageCodec.VERSION_CURRENT) {
+      File subPathFile = SafePaths.sharedPath(core, query.shareBaseIndex, query.shareSubPath);
+      if (digestStore != null
+          && subPathFile != null) {
+        reply.fileDigests = digestStore.digestsFor(subPathFile, page.files);
+      }
+      // so they can download the small ones first
+      reply.fileSizes = new ArrayList<Long>(page.files.size());
+      for (String file : page.files) {
+        if (subPathFile == null) {
+          // the share-base has gone since we found them
+          reply.fileSizes.add(-1L);
+          continue;
+        }
+        long size = -1L;
+        try {
+          BasicFileAttributes attrs = scanBudget.readAttributes(new File(subPathFile, file).toPath());
+          if (attrs.isRegularFile()) {
+            size = attrs.size();
+          }
+        } catch (IOException e) {
+          // gone since we found it, so they'll find out when they try to download it
+        }
+        reply.fileSizes.add(size);
+      }
+    }
+    return reply;
+  }
+
+  /**
+   * Send a reply in the version of the query it answers, compressed if they can take it and it's big enough.
+   */
+  private void sendReply(Friend source, ChangeReply reply, ChangeQuery query) throws IOException {
+    // so they know they can ask about all their subscriptions at once next time
+    reply.batchQueries = MAX_BATCH_QUERIES;
+    String commReply = ChangeMessageCodec.encodeReply(reply, query.version);
+    Log.debug("Sending %s to friend %d: %s", COMM_CHANGES_REPLY, source.getGuid(), commReply);
+    commReply = compressIfTheyCan(source, SyncMetrics.servedPath(reply.shareBaseIndex, reply.shareSubPath), commReply, query.compression);
+    metrics.replySent(source.getGuid(), reply.shareBaseIndex, reply.shareSubPath, commReply.length());
+    source.getFriendConnection().send(new PlugInCommunication(COMM_CHANGES_PREFIX_AND_REPLY + "=" + commReply));
+  }
+
+  /**
+   * Send the replies to a batch query all together (always in the current version, since only those friends batch).
+   *
+   * @param compression what they said they can read (see MessageCompression)
+   */
+  private void sendBatchReply(Friend source, List<ChangeReply> replies, String compression) throws IOException {
+    for (ChangeReply reply : replies) {
+      reply.batchQueries = MAX_BATCH_QUERIES;
+    }
+    String commReply = ChangeMessageCodec.encodeBatchReply(replies);
+    Log.debug("Sending %s to friend %d: %s", COMM_CHANGES_BATCH_REPLY, source.getGuid(), commReply);
+    commReply = compressIfTheyCan(source, null, commReply, compression);
+    for (ChangeReply reply : replies) {
+      // each gets its share of the message
+      metrics.replySent(source.getGuid(), reply.shareBaseIndex, reply.shareSubPath, commReply.length() / replies.size());
+    }
+    source.getFriendConnection().send(new PlugInCommunication(COMM_CHANGES_PREFIX_AND_BATCH_REPLY + "=" + commReply));
+  }
+
+  /**
+   * @param label the path it's about (see SyncMetrics.servedPath), or null for a batch
+   * @param compression what they said they can read (see MessageCompression)
+   * @return the body compressed if they can take it and it's big enough, or else just the body
+   */
+  private String compressIfTheyCan(Friend source, String label, String body, String compression) {
+    if (MessageCompression.ENABLED
+        && body.length() > MessageCompression.THRESHOLD
+        && MessageCompression.accepts(compression)) {
+      long start = System.nanoTime();
+      String compressed = MessageCompression.compress(body);
+      metrics.compressed(source.getGuid(), label, body.length(), compressed == null ? body.length() : compressed.length(), System.nanoTime() - start);
+      if (compressed != null) {
+        return compressed;
+      }
+    }
+    return body;
+  }
+
 }
@@ -0,0 +1,72 @@
+package info.familyhistories.alliancep2p;
+
+/**
+ * Our progress messages, with levels so the chatty ones (eg. whole message payloads) cost nothing unless asked for.
+ *
+ * Messages are String.format patterns, and the arguments are only formatted if the level is on, so pass the
+ * pieces rather than building the string; wrap anything that's expensive to compute in a check of isEnabled.
+ * Errors aren't gated: they still go straight to System.err.
+ *
+ * Set the level with the system property named by LEVEL_PROPERTY (default: INFO), or with the loglevel command
+ * in the console.
+ */
+public final class Log {
+
+  public static enum Level { ERROR, INFO, DEBUG, TRACE }
+
+  static final String LEVEL_PROPERTY = "info.familyhistories.alliancep2p.logLevel";
+
+  private static volatile Level level = parse(System.getProperty(LEVEL_PROPERTY), Level.INFO);
+
+  private Log() {
+  }
+
+  /**
+   * @return the level with that name (in any case), or the default if there's no such level
+   */
+  static Level parse(String name, Level defaultLevel) {
+    if (name != null) {
+      for (Level each : Level.values()) {
+        if (each.name().equalsIgnoreCase(name.trim())) {
+          return each;
+        }
+      }
+    }
+    return defaultLevel;
+  }
+
+  public static Level getLevel() {
+    return level;
+  }
+
+  public static void setLevel(Level _level) {
+    level = _level;
+  }
+
+  public static boolean isEnabled(Level messageLevel) {
+    return messageLevel.ordinal() <= level.ordinal();
+  }
+
+  public static void info(String format, Object... args) {
+    if (isEnabled(Level.INFO)) {
+      write(format, args);
+    }
+  }
+
+  public static void debug(String format, Object... args) {
+    if (isEnabled(Level.DEBUG)) {
+      write(format, args);
+    }
+  }
+
+  public static void trace(String format, Object... args) {
+    if (isEnabled(Level.TRACE)) {
+      write(format, args);
+    }
+  }
+
+  private static void write(String format, Object[] args) {
+    System.out.println(args.length == 0 ? format : String.format(format, args));
+  }
+
+}
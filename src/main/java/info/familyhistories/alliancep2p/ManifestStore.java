@@ -0,0 +1,141 @@
+package info.familyhistories.alliancep2p;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alliance.core.CoreSubsystem;
+
+/**
+ * Keep FileManifests in a file beside the other settings, one for each key (eg. a subscribed path).
+ *
+ * Like the SubscribedPathIndex, they're saved every so often when any of their versions changed, and you can
+ * remove the file to erase them; they'll start over, and friends will just be sent whole manifests the next time.
+ */
+public class ManifestStore {
+
+  /** how often (in millis) we save the manifests, if they changed */
+  static final long SAVE_INTERVAL = 5 * 60 * 1000;
+
+  private final String filename;
+  private Map<String, FileManifest> manifests = new HashMap<String, FileManifest>();
+  /** the version token of each manifest when they were last saved (guarded by this) */
+  private Map<String, String> savedVersions = new HashMap<String, String>();
+  private final ScheduledExecutorService saveThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "FriendFileChangeDetector manifests");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  /**
+   * @param name the name of the file to keep them in, in the settings folder
+   */
+  ManifestStore(CoreSubsystem core, String name) {
+    String downloadFolder = core.getSettings().getInternal().getDownloadfolder();
+    String settingsFolder = downloadFolder.substring(0, downloadFolder.lastIndexOf(File.separator) + 1);
+    filename = settingsFolder + File.separator + name;
+
+    if (new File(filename).exists()) {
+      load();
+      savedVersions = versions();
+    }
+
+    saveThread.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          if (!versions().equals(savedVersions)) {
+            save();
+          }
+        }
+      }, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    saveThread.shutdown();
+    try {
+      saveThread.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    save();
+  }
+
+  /**
+   * @return map from key to the version token of its manifest
+   */
+  private synchronized Map<String, String> versions() {
+    Map<String, String> result = new HashMap<String, String>();
+    for (Map.Entry<String, FileManifest> entry : manifests.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().versionToken());
+    }
+    return result;
+  }
+
+  /**
+   * Replace the file only when it's all written, so a crash in the middle leaves the last one.
+   * (Each manifest is written while holding it.)
+   */
+  private synchronized void save() {
+    Map<String, String> versions = versions();
+    File tempFile = new File(filename + ".saving");
+    ObjectOutputStream out = null;
+    try {
+      out = new ObjectOutputStream(new FileOutputStream(tempFile));
+      out.writeObject(manifests);
+      out.close();
+      out = null;
+      Files.move(tempFile.toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      savedVersions = versions;
+    } catch (IOException e) {
+      System.err.println("Due to the following error, we could not save the manifests in " + filename);
+      e.printStackTrace();
+    } finally {
+      if (out != null) try { out.close(); } catch (IOException e) {}
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private synchronized void load() {
+    ObjectInputStream in = null;
+    try {
+      in = new ObjectInputStream(new FileInputStream(filename));
+      manifests = (Map<String, FileManifest>) in.readObject();
+    } catch (IOException e) {
+      System.err.println("Due to the following error, we could not load the manifests in " + filename + ", so they will start over.");
+      e.printStackTrace();
+    } catch (ClassNotFoundException e) {
+      System.err.println("Due to the following error, we could not load the manifests in " + filename + ", so they will start over.");
+      e.printStackTrace();
+    } finally {
+      if (in != null) try { in.close(); } catch (IOException e) {}
+    }
+  }
+
+  /** @return the manifest for the key, or null if there isn't one */
+  public synchronized FileManifest get(String key) {
+    return manifests.get(key);
+  }
+
+  /** @return the manifest for the key, starting a new one if there isn't one */
+  public synchronized FileManifest getOrCreate(String key) {
+    FileManifest manifest = manifests.get(key);
+    if (manifest == null) {
+      manifest = new FileManifest();
+      manifests.put(key, manifest);
+    }
+    return manifest;
+  }
+
+}
@@ -0,0 +1,254 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeQuery;
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeReply;
+import info.familyhistories.alliancep2p.FileManifest.Delta;
+import info.familyhistories.alliancep2p.FileManifest.ManifestEntry;
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscription;
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscriptionPersistence;
+import info.familyhistories.alliancep2p.SubscribedPathIndex.FileEntry;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.alliance.core.CoreSubsystem;
+import org.alliance.core.node.Friend;
+
+/**
+ * Sync subscriptions by exchanging FileManifest deltas instead of a single high-water time,
+ * so deletes and renames come through, and a reply that isn't fully taken is just sent again.
+ *
+ * A subscriber who wants this (see FileManifest.ENABLED_PROPERTY) sends the version of the friend's manifest
+ * they have; the friend answers with what changed since then (or the whole manifest if they can't tell).
+ * We only record the new version after the downloads are queued, so a failure part-way leaves us asking
+ * from the same version again.
+ *
+ * Every path in their manifest has to stay inside our local path for the subscription; any that doesn't is ignored.
+ *
+ * A delta goes in one message and isn't paged, so one with more than MAX_DELTA_ENTRIES entries (or more than
+ * MAX_DELTA_CHARS once encoded) isn't sent: we answer with the usual paged changes by time instead, and the
+ * subscriber keeps asking with the version they have until the delta gets small enough.
+ *
+ * When a file is removed on their side, we can remove our copy too (set the system property named by
+ * DELETES_PROPERTY to "true"), but only if it's still what they had: the same digest when we keep them, or else
+ * the same size and modified time, so we don't throw away anything that was changed here.
+ */
+public class ManifestSync {
+
+  static final String DELETES_PROPERTY = "info.familyhistories.alliancep2p.manifestDeletes";
+  static final boolean DELETES = Boolean.getBoolean(DELETES_PROPERTY);
+  static final int MAX_DELTA_ENTRIES = 20000;
+  static final int MAX_DELTA_CHARS = 1024 * 1024;
+
+  private final CoreSubsystem core;
+  private final FriendSubscriptionPersistence dbFriendSub;
+  private final SubscribedPathIndex pathIndex;
+  /** null if we're not keeping content digests */
+  private final ContentDigestStore digestStore;
+  private final DownloadBatcher downloadBatcher;
+  private final ScanBudget budget;
+  /** manifests of our subscribed paths, keyed by absolute path */
+  private final ManifestStore publishedManifests;
+  /** manifests of our friends' paths as we have them, keyed by subscriptionKey */
+  private final ManifestStore subscribedManifests;
+
+  ManifestSync(CoreSubsystem _core, FriendSubscriptionPersistence _dbFriendSub, SubscribedPathIndex _pathIndex,
+               ContentDigestStore _digestStore, DownloadBatcher _downloadBatcher, ScanBudget _budget) {
+    this.core = _core;
+    this.dbFriendSub = _dbFriendSub;
+    this.pathIndex = _pathIndex;
+    this.digestStore = _digestStore;
+    this.downloadBatcher = _downloadBatcher;
+    this.budget = _budget;
+    this.publishedManifests = new ManifestStore(_core, "friendFileChangeDetectorManifests.ser");
+    this.subscribedManifests = new ManifestStore(_core, "friendFileChangeDetectorSubscribedManifests.ser");
+  }
+
+  public void shutdown() {
+    publishedManifests.shutdown();
+    subscribedManifests.shutdown();
+  }
+
+  private static String subscriptionKey(int guid, String shareBase, String shareSubPath) {
+    return guid + File.pathSeparator + shareBase + File.pathSeparator + shareSubPath;
+  }
+
+  /**
+   * @return the version of that friend's manifest that we have, or "" if we have none
+   */
+  public String knownVersion(int guid, String shareBase, String shareSubPath) {
+    FileManifest manifest = subscribedManifests.get(subscriptionKey(guid, shareBase, shareSubPath));
+    return manifest == null ? "" : manifest.versionToken();
+  }
+
+  /**
+   * Bring the manifest of a subscribed path up to date and make the reply with what the friend is missing.
+   *
+   * @return the reply, or null if the path isn't a directory in the share-base or the delta is too big for one
+   * message (so the caller should answer the old way)
+   */
+  public ChangeReply replyFor(ChangeQuery query) {
+    File subPathFile = SafePaths.sharedPath(core, query.shareBaseIndex, query.shareSubPath);
+    if (subPathFile == null
+        || !budget.isDirectory(subPathFile.toPath())) {
+      return null;
+    }
+    Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+    pathIndex.allFiles(subPathFile, files);
+    FileManifest manifest = publishedManifests.getOrCreate(subPathFile.getAbsolutePath());
+    manifest.refresh(subPathFile, files, digestStore);
+    Delta delta = manifest.deltaSince(query.manifestVersion);
+    if (delta.changed.size() + delta.removed.size() > MAX_DELTA_ENTRIES) {
+      Log.info("ManifestSync: %s has %d changed and %d removed since %s, which is too many for one reply, so answering by time.",
+               subPathFile, delta.changed.size(), delta.removed.size(), query.manifestVersion);
+      return null;
+    }
+    String encoded = delta.encode();
+    if (encoded.length() > MAX_DELTA_CHARS) {
+      Log.info("ManifestSync: the delta for %s since %s is %d characters, which is too big for one reply, so answering by time.",
+               subPathFile, query.manifestVersion, encoded.length());
+      return null;
+    }
+    Log.info("ManifestSync: %s is at version %s; sending %s with %d changed and %d removed.", subPathFile, delta.newVersionToken(),
+             delta.isWhole() ? "the whole manifest" : "the changes since " + query.manifestVersion, delta.changed.size(), delta.removed.size());
+
+    ChangeReply reply = new ChangeReply();
+    reply.shareBaseIndex = query.shareBaseIndex;
+    reply.shareSubPath = query.shareSubPath;
+    reply.lastModifiedTime = Math.max(query.lastKnownModifiedTime, manifest.latestModified());
+    reply.fileList = new ArrayList<String>();
+    reply.manifestVersion = delta.newVersionToken();
+    reply.manifestDelta = encoded;
+    return reply;
+  }
+
+  /**
+   * Queue the downloads for a manifest reply, and once they're queued, remove what they removed and record the new version.
+   */
+  public void applyReply(Friend source, int shareBaseIndex, final String shareBase, final ChangeReply reply) {
+    final Delta delta;
+    try {
+      delta = Delta.decode(reply.manifestDelta);
+    } catch (ParseException e) {
+      System.err.println("Got a bad manifest delta from friend " + source.getGuid() + ".  " + e.getMessage());
+      return;
+    }
+    final FriendSubscription fsub;
+    try {
+      fsub = dbFriendSub.getFriendSubscription(source.getGuid(), shareBase, reply.shareSubPath);
+    } catch (SQLException e) {
+      System.err.println("Failed to get the friend subscription info.");
+      e.printStackTrace();
+      return;
+    }
+    if (fsub == null) {
+      System.err.println("Got a manifest from friend " + source.getGuid() + " for share-base " + shareBase + " and path " + reply.shareSubPath + ", but we have no subscription for that.");
+      return;
+    }
+
+    final String key = subscriptionKey(source.getGuid(), shareBase, reply.shareSubPath);
+    final FileManifest known = subscribedManifests.get(key);
+    if (!delta.isWhole()
+        && (known == null || !known.versionToken().equals(delta.epoch + "-" + delta.baseVersion))) {
+      System.err.println("Got manifest changes from friend " + source.getGuid() + " since version " + delta.baseVersion + ", but we're at " + (known == null ? "nothing" : known.versionToken()) + ", so we'll ignore them and ask again next time.");
+      return;
+    }
+
+    // figure out what's new to us and what's gone
+    File localDir = new File(fsub.localPath);
+    List<String> toDownload = new ArrayList<String>();
+    List<String> digests = new ArrayList<String>();
+    List<Long> sizes = new ArrayList<Long>();
+    for (Map.Entry<String, ManifestEntry> entry : delta.changed.entrySet()) {
+      if (!SafePaths.isUnder(localDir, entry.getKey())) {
+        System.err.println("ManifestSync: friend " + source.getGuid() + " sent the path " + entry.getKey() + ", which isn't inside " + localDir + ", so we'll ignore it.");
+        continue;
+      }
+      ManifestEntry knownEntry = known == null ? null : known.get(entry.getKey());
+      boolean isNew;
+      if (known == null) {
+        // our first manifest from them, so go by our old time like before
+        isNew = entry.getValue().lastModified > fsub.lastKnownModified;
+      } else {
+        isNew = !entry.getValue().sameAs(knownEntry);
+      }
+      if (isNew) {
+        toDownload.add(entry.getKey());
+        digests.add(entry.getValue().hash);
+        sizes.add(entry.getValue().size);
+      }
+    }
+    final List<String> removed = new ArrayList<String>();
+    if (delta.isWhole()) {
+      if (known != null) {
+        for (String path : known.paths()) {
+          if (!delta.changed.containsKey(path)) {
+            removed.add(path);
+          }
+        }
+      }
+    } else {
+      removed.addAll(delta.removed);
+    }
+
+    Runnable record = new Runnable() {
+      @Override
+      public void run() {
+        if (known != null
+            && DELETES) {
+          removeLocalCopies(fsub, known, removed);
+        }
+        if (!subscribedManifests.getOrCreate(key).apply(delta, new File(fsub.localPath))) {
+          System.err.println("Our manifest of " + key + " changed while we took version " + delta.newVersionToken() + ", so we'll ask again next time.");
+        }
+      }
+    };
+    Log.info("ManifestSync: friend %d is at version %s of %s %s; %d file(s) to download and %d removed.", source.getGuid(), delta.newVersionToken(), shareBase, reply.shareSubPath, toDownload.size(), removed.size());
+    if (!toDownload.isEmpty()) {
+      downloadBatcher.schedule(source, shareBaseIndex, shareBase, reply.shareSubPath, toDownload, digests, sizes, reply.lastModifiedTime, record);
+    } else {
+      core.invokeLater(record);
+    }
+  }
+
+  /**
+   * Remove our copies of files they removed, if they're still what they had.
+   */
+  private void removeLocalCopies(FriendSubscription fsub, FileManifest known, List<String> removed) {
+    for (String path : removed) {
+      ManifestEntry knownEntry = known.get(path);
+      File localFile = SafePaths.under(new File(fsub.localPath), path);
+      if (localFile == null) {
+        System.err.println("ManifestSync: friend " + fsub.guid + " removed the path " + path + ", which isn't inside " + fsub.localPath + ", so we'll leave it.");
+        continue;
+      }
+      if (knownEntry != null
+          && localFile.isFile()
+          && unchanged(localFile, knownEntry)) {
+        if (localFile.delete()) {
+          Log.info("ManifestSync: removed %s since it was removed by friend %d.", localFile, fsub.guid);
+        } else {
+          System.err.println("ManifestSync: could not remove " + localFile + ", which was removed by friend " + fsub.guid + ".");
+        }
+      }
+    }
+  }
+
+  /**
+   * @return true if our copy is still what they had: the same digest if we have both, or else the same size and time
+   */
+  private boolean unchanged(File localFile, ManifestEntry knownEntry) {
+    if (digestStore != null
+        && knownEntry.hash.length() > 0) {
+      return digestStore.matches(localFile, knownEntry.hash);
+    }
+    return localFile.length() == knownEntry.size
+      && localFile.lastModified() == knownEntry.lastModified;
+  }
+
+}
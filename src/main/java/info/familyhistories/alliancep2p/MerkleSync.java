@@ -0,0 +1,439 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeQuery;
+import info.familyhistories.alliancep2p.ChangeMessageCodec.ChangeReply;
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscription;
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscriptionPersistence;
+import info.familyhistories.alliancep2p.SubscribedPathIndex.FileEntry;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.alliance.core.CoreSubsystem;
+import org.alliance.core.node.Friend;
+
+/**
+ * Reconcile a subscription by comparing hash trees of the directories, for big trees where even the list of
+ * changes is a lot to send.
+ *
+ * The subscriber sends its hash of a directory (starting with the subscribed path itself).  If the friend's hash
+ * is the same, that's the whole answer; otherwise they send the hash of each thing in that directory, and the
+ * subscriber downloads the files that differ and asks again about just the directories that differ.
+ * So a reconnect with nothing changed is one small message each way, and a change deep in the tree costs a
+ * message for each directory on the way down to it.
+ *
+ * A file's hash is its content digest (see ContentDigestStore), so both sides have to keep them; a friend who asks
+ * without them gets the changes by time instead.  A directory's hash covers the names and hashes of everything in it.
+ * The friend builds their tree from the files in the SubscribedPathIndex, so empty directories don't count.
+ *
+ * The subscriber's hashes are of what the friend has told us they have, not of what's on our disk, so files that
+ * are only here (or still downloading) don't keep the trees different forever.  We start from our disk (so the first
+ * descent only goes where they differ) and take their entries as each reply comes in; whether to download a file is
+ * still decided by comparing their hash with the digest of our copy.  This only lives in memory, so after a restart
+ * we start from our disk again.
+ *
+ * The queries for directories further down go through the SubscriptionPoller, so they count toward its cap
+ * on queries waiting for an answer.
+ *
+ * A subscriber turns this on with the system property named by ENABLED_PROPERTY.
+ */
+public class MerkleSync {
+
+  static final String ENABLED_PROPERTY = "info.familyhistories.alliancep2p.merkle";
+  static final boolean ENABLED = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  static final String MODE_CONTENT = "content";
+
+  /** how long (in millis) we reuse a tree, so the queries for one descent don't each build it again */
+  static final long TREE_TIMEOUT = 30 * 1000;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+
+  /** how to ask about a directory further down, since the message prefix and the SubscriptionPoller belong to the plugin */
+  public static interface QuerySender {
+    /** send it when there's room for another query */
+    public void queueQuery(Friend friend, String shareBase, ChangeQuery query);
+  }
+
+  /** the hash of every directory under a path, with what's in each */
+  static class Tree {
+    /** map from directory (relative, ending in a separator, or "" for the top) to its hash */
+    final Map<String, String> dirHashes = new HashMap<String, String>();
+    /** map from directory to its entries ("d:" or "f:", then the hash, a colon, and the name), sorted by name */
+    final Map<String, List<String>> children = new HashMap<String, List<String>>();
+    final long built = System.currentTimeMillis();
+
+    /** @return the hash of that directory, or "" if there's nothing there */
+    String hashOf(String relDir) {
+      String hash = dirHashes.get(relDir);
+      return hash == null ? "" : hash;
+    }
+  }
+
+  private final CoreSubsystem core;
+  private final FriendSubscriptionPersistence dbFriendSub;
+  private final SubscribedPathIndex pathIndex;
+  /** null if we're not keeping content digests */
+  private final ContentDigestStore digestStore;
+  private final DownloadBatcher downloadBatcher;
+  private final ScanBudget budget;
+  private final QuerySender querySender;
+  /** map from absolute path to the last tree built for it */
+  private final Map<String, Tree> trees = new HashMap<String, Tree>();
+  /**
+   * map from subscription (see knownKey) to the digest of each file they have (relative path) as far as we know,
+   * which is what our hashes come from (each guarded by itself)
+   */
+  private final Map<String, TreeMap<String, String>> known = new HashMap<String, TreeMap<String, String>>();
+
+  MerkleSync(CoreSubsystem _core, FriendSubscriptionPersistence _dbFriendSub, SubscribedPathIndex _pathIndex,
+             ContentDigestStore _digestStore, DownloadBatcher _downloadBatcher, ScanBudget _budget, QuerySender _querySender) {
+    this.core = _core;
+    this.dbFriendSub = _dbFriendSub;
+    this.pathIndex = _pathIndex;
+    this.digestStore = _digestStore;
+    this.downloadBatcher = _downloadBatcher;
+    this.budget = _budget;
+    this.querySender = _querySender;
+  }
+
+  private static String knownKey(int guid, String shareBase, String shareSubPath) {
+    return guid + File.pathSeparator + shareBase + File.pathSeparator + shareSubPath;
+  }
+
+  /**
+   * Make this query ask about the top of the subscription, with our hash of what they have; if we don't keep
+   * digests, leave it alone so it asks for the changes by time.
+   */
+  public void startQuery(ChangeQuery query, FriendSubscription fsub) {
+    if (digestStore == null) {
+      return;
+    }
+    query.merkleMode = MODE_CONTENT;
+    query.merklePath = "";
+    query.merkleHash = hashOf(knownFor(fsub), "");
+  }
+
+  /**
+   * @return what they have as far as we know, starting from what's on our disk
+   */
+  private TreeMap<String, String> knownFor(FriendSubscription fsub) {
+    String key = knownKey(fsub.guid, fsub.shareBasePath, fsub.shareSubPath);
+    synchronized (known) {
+      TreeMap<String, String> leaves = known.get(key);
+      if (leaves != null) {
+        return leaves;
+      }
+    }
+    TreeMap<String, String> leaves = new TreeMap<String, String>(leafHashes(new File(fsub.localPath)));
+    synchronized (known) {
+      TreeMap<String, String> builtMeanwhile = known.get(key);
+      if (builtMeanwhile != null) {
+        return builtMeanwhile;
+      }
+      known.put(key, leaves);
+    }
+    return leaves;
+  }
+
+  /**
+   * @return the hash of that directory (relative, ending in a separator, or "" for the top), or "" if there's nothing there
+   */
+  private static String hashOf(TreeMap<String, String> leaves, String relDir) {
+    Map<String, String> under = new HashMap<String, String>();
+    synchronized (leaves) {
+      for (Map.Entry<String, String> leaf : leaves.tailMap(relDir, true).entrySet()) {
+        if (!leaf.getKey().startsWith(relDir)) {
+          break;
+        }
+        under.put(leaf.getKey().substring(relDir.length()), leaf.getValue());
+      }
+    }
+    return build(under).hashOf("");
+  }
+
+  /**
+   * Answer a query about one directory.
+   *
+   * @return the reply, or null if the subscribed path isn't a directory or we don't both keep digests (so the
+   * caller should answer the old way)
+   */
+  public ChangeReply replyFor(ChangeQuery query) {
+    if (digestStore == null
+        || !MODE_CONTENT.equals(query.merkleMode)) {
+      return null;
+    }
+    File subPathFile = SafePaths.sharedPath(core, query.shareBaseIndex, query.shareSubPath);
+    if (subPathFile == null
+        || !budget.isDirectory(subPathFile.toPath())) {
+      return null;
+    }
+    // the top starts a new descent, so look at the disk again
+    Tree tree = treeFor(subPathFile, query.merklePath.length() == 0);
+
+    ChangeReply reply = new ChangeReply();
+    reply.shareBaseIndex = query.shareBaseIndex;
+    reply.shareSubPath = query.shareSubPath;
+    reply.lastModifiedTime = query.lastKnownModifiedTime;
+    reply.fileList = new ArrayList<String>();
+    reply.merkleMode = MODE_CONTENT;
+    reply.merklePath = query.merklePath;
+    reply.merkleHash = tree.hashOf(query.merklePath);
+    if (!reply.merkleHash.equals(query.merkleHash)) {
+      List<String> children = tree.children.get(query.merklePath);
+      reply.merkleChildren = children == null ? new ArrayList<String>() : children;
+    }
+    return reply;
+  }
+
+  /**
+   * Download the files that differ in this directory and ask about the directories that differ.
+   */
+  public void applyReply(Friend source, int shareBaseIndex, String shareBase, ChangeReply reply) {
+    if (reply.merkleChildren == null) {
+      Log.info("MerkleSync: %s %s%s from friend %d is the same as ours.", shareBase, reply.shareSubPath, reply.merklePath, source.getGuid());
+      return;
+    }
+    FriendSubscription fsub;
+    try {
+      fsub = dbFriendSub.getFriendSubscription(source.getGuid(), shareBase, reply.shareSubPath);
+    } catch (SQLException e) {
+      System.err.println("Failed to get the friend subscription info.");
+      e.printStackTrace();
+      return;
+    }
+    if (fsub == null) {
+      System.err.println("Got a hash tree from friend " + source.getGuid() + " for share-base " + shareBase + " and path " + reply.shareSubPath + ", but we have no subscription for that.");
+      return;
+    }
+
+    File localDir = new File(fsub.localPath);
+    if (!MODE_CONTENT.equals(reply.merkleMode)
+        || !SafePaths.isUnder(localDir, reply.merklePath)) {
+      System.err.println("Got a hash tree reply from friend " + source.getGuid() + " for " + reply.merklePath + " in mode " + reply.merkleMode + ", which we didn't ask for.");
+      return;
+    }
+
+    // anything they changed since the top was asked would have a new hash anyway, so the tree we have is fine
+    Tree ours = treeFor(localDir, false);
+    Map<String, String> ourEntries = new HashMap<String, String>();
+    List<String> ourChildren = ours.children.get(reply.merklePath);
+    if (ourChildren != null) {
+      for (String entry : ourChildren) {
+        ourEntries.put(entryName(entry), entry);
+      }
+    }
+
+    List<String> toDownload = new ArrayList<String>();
+    Map<String, String> theirFiles = new HashMap<String, String>();
+    Map<String, String> theirSubdirs = new HashMap<String, String>();
+    for (String entry : reply.merkleChildren) {
+      String name = entry.length() < 3 || entry.indexOf(':', 2) < 0 ? "" : entryName(entry);
+      if (name.length() == 0
+          || name.indexOf('/') > -1
+          || name.indexOf(File.separatorChar) > -1
+          || name.equals(".")
+          || name.equals("..")) {
+        System.err.println("Got a bad hash tree entry from friend " + source.getGuid() + ": " + entry);
+        continue;
+      }
+      String path = reply.merklePath + name;
+      if (entry.charAt(0) == 'f') {
+        theirFiles.put(path, entryHash(entry));
+        if (!entry.equals(ourEntries.get(name))) {
+          toDownload.add(path);
+        }
+      } else {
+        theirSubdirs.put(path + File.separator, entryHash(entry));
+      }
+    }
+
+    // what's right in this directory is now what they said, and any directory they didn't list is gone
+    TreeMap<String, String> leaves = knownFor(fsub);
+    synchronized (leaves) {
+      for (Iterator<String> paths = leaves.tailMap(reply.merklePath, true).keySet().iterator(); paths.hasNext(); ) {
+        String path = paths.next();
+        if (!path.startsWith(reply.merklePath)) {
+          break;
+        }
+        int slash = path.indexOf(File.separatorChar, reply.merklePath.length());
+        if (slash < 0
+            || !theirSubdirs.containsKey(path.substring(0, slash + 1))) {
+          paths.remove();
+        }
+      }
+      leaves.putAll(theirFiles);
+    }
+
+    int subdirsAsked = 0;
+    for (Map.Entry<String, String> subdir : theirSubdirs.entrySet()) {
+      String knownHash = hashOf(leaves, subdir.getKey());
+      if (knownHash.equals(subdir.getValue())) {
+        continue;
+      }
+      ChangeQuery query = new ChangeQuery();
+      query.shareBaseIndex = shareBaseIndex;
+      query.shareSubPath = reply.shareSubPath;
+      query.lastKnownModifiedTime = reply.lastModifiedTime;
+      query.merkleMode = MODE_CONTENT;
+      query.merklePath = subdir.getKey();
+      query.merkleHash = knownHash;
+      querySender.queueQuery(source, shareBase, query);
+      subdirsAsked++;
+    }
+    Log.debug("MerkleSync: %s%s from friend %d differs; %d file(s) to download and %d directory(ies) to look into.", reply.shareSubPath, reply.merklePath, source.getGuid(), toDownload.size(), subdirsAsked);
+    if (!toDownload.isEmpty()) {
+      downloadBatcher.schedule(source, shareBaseIndex, shareBase, reply.shareSubPath, toDownload, null, null, reply.lastModifiedTime, null);
+    }
+  }
+
+  private static String entryName(String entry) {
+    return entry.substring(entry.indexOf(':', 2) + 1);
+  }
+
+  private static String entryHash(String entry) {
+    return entry.substring(2, entry.indexOf(':', 2));
+  }
+
+  /**
+   * @param fresh true to build it from the index again, false to reuse the last one if it's recent
+   */
+  private Tree treeFor(File baseDir, boolean fresh) {
+    String key = baseDir.getAbsolutePath();
+    synchronized (trees) {
+      Tree tree = trees.get(key);
+      if (!fresh
+          && tree != null
+          && tree.built + TREE_TIMEOUT > System.currentTimeMillis()) {
+        return tree;
+      }
+    }
+    Tree tree = build(leafHashes(baseDir));
+    synchronized (trees) {
+      trees.put(key, tree);
+    }
+    return tree;
+  }
+
+  /**
+   * @return map from each file under baseDir (relative path) to its digest
+   */
+  private Map<String, String> leafHashes(File baseDir) {
+    Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+    if (budget.isDirectory(baseDir.toPath())) {
+      pathIndex.allFiles(baseDir, files);
+    }
+    Map<String, String> leafHashes = new HashMap<String, String>();
+    List<String> names = new ArrayList<String>(files.keySet());
+    List<String> digests = digestStore.digestsFor(baseDir, names);
+    for (int i = 0; i < names.size(); i++) {
+      leafHashes.put(names.get(i), digests.get(i));
+    }
+    return leafHashes;
+  }
+
+  /**
+   * @param leafHashes map from each file (relative path) to its hash
+   */
+  static Tree build(Map<String, String> leafHashes) {
+    // gather the entries of each directory, sorted by name
+    Map<String, TreeMap<String, String>> files = new HashMap<String, TreeMap<String, String>>();
+    Map<String, TreeMap<String, String>> subdirs = new HashMap<String, TreeMap<String, String>>();
+    for (Map.Entry<String, String> leaf : leafHashes.entrySet()) {
+      String path = leaf.getKey();
+      int slash = path.lastIndexOf(File.separatorChar);
+      String dir = path.substring(0, slash + 1);
+      entriesOf(files, dir).put(path.substring(slash + 1), leaf.getValue());
+      // make sure each directory on the way down is listed in its parent
+      while (dir.length() > 0) {
+        int parentSlash = dir.lastIndexOf(File.separatorChar, dir.length() - 2);
+        String parent = dir.substring(0, parentSlash + 1);
+        String name = dir.substring(parentSlash + 1, dir.length() - 1);
+        TreeMap<String, String> parentSubdirs = entriesOf(subdirs, parent);
+        if (parentSubdirs.containsKey(name)) {
+          break;
+        }
+        parentSubdirs.put(name, null);
+        dir = parent;
+      }
+    }
+
+    // hash the deepest directories first, so each parent has what it needs
+    List<String> dirs = new ArrayList<String>(files.keySet());
+    for (String dir : subdirs.keySet()) {
+      if (!files.containsKey(dir)) {
+        dirs.add(dir);
+      }
+    }
+    Collections.sort(dirs, new java.util.Comparator<String>() {
+        public int compare(String a, String b) {
+          return b.length() - a.length();
+        }
+      });
+    Tree tree = new Tree();
+    if (leafHashes.isEmpty()) {
+      return tree;
+    }
+    MessageDigest digest = newDigest();
+    for (String dir : dirs) {
+      TreeMap<String, String> entries = new TreeMap<String, String>();
+      TreeMap<String, String> dirFiles = files.get(dir);
+      if (dirFiles != null) {
+        for (Map.Entry<String, String> file : dirFiles.entrySet()) {
+          entries.put(file.getKey(), "f:" + file.getValue() + ":" + file.getKey());
+        }
+      }
+      TreeMap<String, String> dirSubdirs = subdirs.get(dir);
+      if (dirSubdirs != null) {
+        for (String name : dirSubdirs.keySet()) {
+          entries.put(name, "d:" + tree.dirHashes.get(dir + name + File.separator) + ":" + name);
+        }
+      }
+      List<String> children = new ArrayList<String>(entries.values());
+      digest.reset();
+      for (String entry : children) {
+        digest.update(entry.getBytes(UTF8));
+        digest.update((byte) '\n');
+      }
+      tree.dirHashes.put(dir, hex(digest.digest()));
+      tree.children.put(dir, children);
+    }
+    return tree;
+  }
+
+  private static TreeMap<String, String> entriesOf(Map<String, TreeMap<String, String>> entries, String dir) {
+    TreeMap<String, String> result = entries.get(dir);
+    if (result == null) {
+      result = new TreeMap<String, String>();
+      entries.put(dir, result);
+    }
+    return result;
+  }
+
+  private static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ContentDigestStore.ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder();
+    for (byte b : bytes) {
+      hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+    }
+    return hex.toString();
+  }
+
+}
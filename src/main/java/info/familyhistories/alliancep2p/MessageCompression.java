@@ -0,0 +1,122 @@
+package info.familyhistories.alliancep2p;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate for big change replies, which are mostly paths with long common prefixes.
+ *
+ * A friend who can read it says so with the compression key in their query (see MODE).  We only try replies longer
+ * than THRESHOLD characters, and only send the compressed form when it's actually shorter.  That body is PREFIX and
+ * then the Base64 of the deflated UTF-8, so it can't be mistaken for JSON.  Both sides start from the same preset
+ * DICTIONARY of the keys and path pieces that show up in every reply, so even a short list compresses well.
+ *
+ * Set the system property named by ENABLED_PROPERTY to false to stop asking for (and sending) compressed replies;
+ * we can still read them.
+ */
+public class MessageCompression {
+
+  static final String ENABLED_PROPERTY = "info.familyhistories.alliancep2p.compression";
+  static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(ENABLED_PROPERTY, "true"));
+
+  // Remember: if you change the dictionary after some live in the wild, you'll have to change the mode too.
+  static final String MODE = "deflate1";
+  static final String PREFIX = MODE + ":";
+
+  /** the shortest reply (in characters) worth compressing */
+  static final int THRESHOLD = 512;
+  /** the most we'll inflate one message to, so a bad one can't take all our memory */
+  static final int MAX_INFLATED = 16 * 1024 * 1024;
+
+  /** what replies are made of, with the most common last, since those are the cheapest to refer to */
+  private static final byte[] DICTIONARY = (
+      ".mov\",\".avi\",\".mp4\",\".mp3\",\".wav\",\".zip\",\".xml\",\".htm\",\".html\",\".rtf\",\".odt\",\".xls\",\".xlsx\","
+      + "\".docx\",\".doc\",\".txt\",\".ged\",\".pdf\",\".gif\",\".tiff\",\".tif\",\".png\",\".PNG\",\".jpeg\",\".JPG\",\".jpg\","
+      + "/Videos/\",\"/Music/\",\"/Documents/\",\"/Pictures/\",\"/Photos/\",\"/images/\",\"/scans/\",\"/Scans/\",\"/Family/\","
+      + "/IMG_\",\"/DSC_\",\"/Scan\",\"/Scan_\",\"/Copy of \",\"/New Folder/\","
+      + "\"merkleChildren\":[\"d:\",\"f:\",\"merkleMode\":\"size\",\"merkleMode\":\"content\",\"merklePath\":\"\",\"merkleHash\":\"\","
+      + "\"manifestVersion\":\"\",\"manifestDelta\":\"\",\"retryAfter\":,\"pageToken\":\"\",\"sequence\":\"\","
+      + "{\"version\":2,\"shareBaseIndex\":0,\"shareSubPath\":\"\",\"lastModifiedTime\":1,\"fileDigests\":[\"\",\"fileList\":[\""
+      ).getBytes(StandardCharsets.UTF_8);
+
+  private MessageCompression() {
+  }
+
+  /**
+   * @param modes what a friend said they can read (comma-separated), or null if they didn't say
+   */
+  static boolean accepts(String modes) {
+    if (modes == null) {
+      return false;
+    }
+    for (String mode : modes.split(",")) {
+      if (mode.trim().equals(MODE)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  static boolean isCompressed(String body) {
+    return body.startsWith(PREFIX);
+  }
+
+  /**
+   * @return the compressed body, or null if it wouldn't be shorter
+   */
+  static String compress(String json) {
+    Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+    try {
+      deflater.setDictionary(DICTIONARY);
+      deflater.setInput(json.getBytes(StandardCharsets.UTF_8));
+      deflater.finish();
+      ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      while (!deflater.finished()) {
+        deflated.write(buffer, 0, deflater.deflate(buffer));
+      }
+      String result = PREFIX + Base64.getEncoder().encodeToString(deflated.toByteArray());
+      return result.length() < json.length() ? result : null;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  static String decompress(String body) throws ParseException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(Base64.getDecoder().decode(body.substring(PREFIX.length())));
+      ByteArrayOutputStream inflated = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      while (!inflater.finished()) {
+        int count = inflater.inflate(buffer);
+        if (count == 0) {
+          if (inflater.needsDictionary()) {
+            inflater.setDictionary(DICTIONARY);
+            continue;
+          } else if (inflater.needsInput()) {
+            throw new ParseException("The compressed message ended early.", 0);
+          }
+        }
+        inflated.write(buffer, 0, count);
+        if (inflated.size() > MAX_INFLATED) {
+          throw new ParseException("The compressed message is more than " + MAX_INFLATED + " bytes.", 0);
+        }
+      }
+      return new String(inflated.toByteArray(), StandardCharsets.UTF_8);
+    } catch (IllegalArgumentException e) {
+      // from Base64, or a dictionary that isn't ours
+      throw new ParseException("Bad compressed message: " + e.getMessage(), 0);
+    } catch (DataFormatException e) {
+      throw new ParseException("Bad compressed message: " + e.getMessage(), 0);
+    } finally {
+      inflater.end();
+    }
+  }
+
+}
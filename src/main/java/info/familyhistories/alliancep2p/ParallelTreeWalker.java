@@ -0,0 +1,204 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.SubscribedPathIndex.FileEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * List a directory tree into SubscribedPathIndex entries, reading each entry's attributes with one call.
+ *
+ * The top FORK_DEPTH levels of directories are spread over a fork-join pool; anything deeper is walked
+ * by that task with Files.walkFileTree, which keeps its own stack, so a deep tree can't overflow ours.
+ *
+ * Every stat and listing goes through the ScanBudget, so a big walk waits its turn instead of hogging the disk.
+ *
+ * Set the system property named by PARALLELISM_PROPERTY to cap the number of threads (default: one per processor).
+ */
+public class ParallelTreeWalker {
+
+  static final String PARALLELISM_PROPERTY = "info.familyhistories.alliancep2p.walkerParallelism";
+  static final int PARALLELISM = Integer.getInteger(PARALLELISM_PROPERTY, Runtime.getRuntime().availableProcessors());
+
+  /** directories deeper than this (below the start of the walk) don't get their own task */
+  static final int FORK_DEPTH = 3;
+
+  /** what we found directly inside one directory */
+  static class Listing {
+    final long lastModified;
+    final Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+    final Set<String> subdirs = new HashSet<String>();
+    Listing(long _lastModified) {
+      this.lastModified = _lastModified;
+    }
+  }
+
+  private final ForkJoinPool pool;
+  private final ScanBudget budget;
+
+  ParallelTreeWalker(int parallelism, ScanBudget _budget) {
+    this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    this.budget = _budget;
+  }
+
+  public void shutdown() {
+    pool.shutdown();
+  }
+
+  /**
+   * @param relDir where to start, relative to baseDir, ending in a separator (or "" for baseDir itself)
+   * @return map from path relative to baseDir (in the same form as relDir) to the listing of that directory,
+   * for relDir and every directory under it
+   */
+  public Map<String, Listing> walk(File baseDir, String relDir) {
+    Map<String, Listing> listings = new ConcurrentHashMap<String, Listing>();
+    pool.invoke(new DirectoryTask(baseDir.toPath(), relDir, 0, listings, budget));
+    return listings;
+  }
+
+  /**
+   * @return the listing of just this one directory, with empty contents if it can't be read
+   */
+  static Listing listDirectory(Path dir, ScanBudget budget) {
+    Listing listing;
+    try {
+      listing = new Listing(budget.readAttributes(dir).lastModifiedTime().toMillis());
+    } catch (IOException e) {
+      System.err.println("ParallelTreeWalker: could not read " + dir + ", so we'll treat it as empty: " + e);
+      return new Listing(0);
+    }
+    DirectoryStream<Path> entries = null;
+    try {
+      entries = budget.newDirectoryStream(dir);
+      for (Path entry : entries) {
+        try {
+          add(listing, entry.getFileName().toString(), budget.readAttributes(entry, LinkOption.NOFOLLOW_LINKS));
+        } catch (IOException e) {
+          // probably removed while we were looking, so it's not there anymore
+        }
+      }
+    } catch (IOException e) {
+      System.err.println("ParallelTreeWalker: could not list " + dir + ", so we'll treat it as empty: " + e);
+    } finally {
+      if (entries != null) try { entries.close(); } catch (IOException e) {}
+    }
+    return listing;
+  }
+
+  private static void add(Listing listing, String name, BasicFileAttributes attrs) {
+    if (attrs.isDirectory()) {
+      listing.subdirs.add(name);
+    } else if (attrs.isRegularFile()) {
+      listing.files.put(name, new FileEntry(attrs.size(), attrs.lastModifiedTime().toMillis()));
+    } else if (attrs.isSymbolicLink()) {
+      // not followed, so that a link back up the tree can't send us around in circles
+    } else {
+      System.err.println("ParallelTreeWalker: Strange... found a non-file, non-directory file (which we will ignore): " + name);
+    }
+  }
+
+  private static class DirectoryTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Path baseDir;
+    private final String relDir;
+    private final int depth;
+    private final Map<String, Listing> listings;
+    private final ScanBudget budget;
+
+    DirectoryTask(Path _baseDir, String _relDir, int _depth, Map<String, Listing> _listings, ScanBudget _budget) {
+      this.baseDir = _baseDir;
+      this.relDir = _relDir;
+      this.depth = _depth;
+      this.listings = _listings;
+      this.budget = _budget;
+    }
+
+    @Override
+    protected void compute() {
+      if (depth >= FORK_DEPTH) {
+        walkSequentially();
+        return;
+      }
+      Listing listing = listDirectory(relDir.length() == 0 ? baseDir : baseDir.resolve(relDir), budget);
+      listings.put(relDir, listing);
+      List<DirectoryTask> subtasks = new ArrayList<DirectoryTask>();
+      for (String subdir : listing.subdirs) {
+        subtasks.add(new DirectoryTask(baseDir, relDir + subdir + File.separator, depth + 1, listings, budget));
+      }
+      invokeAll(subtasks);
+    }
+
+    private void walkSequentially() {
+      final Deque<Listing> open = new ArrayDeque<Listing>();
+      try {
+        Files.walkFileTree(baseDir.resolve(relDir), new SimpleFileVisitor<Path>() {
+          /** when we last gave the walk back its thread, so the time until the next visit is what its call took */
+          private long returned = System.nanoTime();
+          /** count the call that got us here, and wait for a token for the next one */
+          private void paced() {
+            budget.took(System.nanoTime() - returned);
+            budget.acquire(1);
+            returned = System.nanoTime();
+          }
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            paced();
+            if (!open.isEmpty()) {
+              add(open.peek(), dir.getFileName().toString(), attrs);
+            }
+            Listing listing = new Listing(attrs.lastModifiedTime().toMillis());
+            listings.put(relativeDir(dir), listing);
+            open.push(listing);
+            return FileVisitResult.CONTINUE;
+          }
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            paced();
+            add(open.peek(), file.getFileName().toString(), attrs);
+            return FileVisitResult.CONTINUE;
+          }
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            // probably removed while we were looking, so it's not there anymore
+            return FileVisitResult.CONTINUE;
+          }
+          @Override
+          public FileVisitResult postVisitDirectory(Path dir, IOException e) {
+            if (e != null) {
+              System.err.println("ParallelTreeWalker: could not finish listing " + dir + ": " + e);
+            }
+            open.pop();
+            return FileVisitResult.CONTINUE;
+          }
+        });
+      } catch (IOException e) {
+        System.err.println("ParallelTreeWalker: could not walk " + baseDir.resolve(relDir) + ": " + e);
+      }
+    }
+
+    private String relativeDir(Path dir) {
+      String rel = baseDir.relativize(dir).toString();
+      return rel.length() == 0 ? rel : rel + File.separator;
+    }
+  }
+
+}
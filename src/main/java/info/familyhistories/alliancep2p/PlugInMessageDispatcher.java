@@ -0,0 +1,99 @@
+package info.familyhistories.alliancep2p;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.alliance.core.NonWindowUICallback;
+import org.alliance.core.node.Friend;
+
+/**
+ * The one callback for our plugin messages, which look like PREFIX + TYPE + "=" + BODY.
+ *
+ * Messages without our prefix (eg. for other plugins) are dropped after one startsWith; ours are split once and
+ * sent to the handler registered for the type, with a count of the messages, bytes, and failures for each type.
+ */
+public class PlugInMessageDispatcher extends NonWindowUICallback {
+
+  public static interface MessageHandler {
+    public void handle(Friend source, String body);
+  }
+
+  /** what's come in of one type */
+  public static class MessageCounter {
+    final AtomicLong messages = new AtomicLong();
+    final AtomicLong bytes = new AtomicLong();
+    /** messages whose handler threw */
+    final AtomicLong failures = new AtomicLong();
+    public long getMessages() {
+      return messages.get();
+    }
+    public long getBytes() {
+      return bytes.get();
+    }
+    public long getFailures() {
+      return failures.get();
+    }
+  }
+
+  static final String UNKNOWN_TYPE = "(unknown)";
+
+  private final String prefix;
+  /** map from message type to handler; only changed before we're registered, so it isn't locked */
+  private final Map<String, MessageHandler> handlers = new HashMap<String, MessageHandler>();
+  private final Map<String, MessageCounter> counters = new HashMap<String, MessageCounter>();
+  private final AtomicLong othersDropped = new AtomicLong();
+
+  PlugInMessageDispatcher(String _prefix) {
+    this.prefix = _prefix;
+    counters.put(UNKNOWN_TYPE, new MessageCounter());
+  }
+
+  /**
+   * Call this for each type before adding the dispatcher as a callback.
+   */
+  public void register(String type, MessageHandler handler) {
+    handlers.put(type, handler);
+    counters.put(type, new MessageCounter());
+  }
+
+  /** @return map from each type (and UNKNOWN_TYPE) to its counts, sorted by type */
+  public Map<String, MessageCounter> counters() {
+    return Collections.unmodifiableMap(new TreeMap<String, MessageCounter>(counters));
+  }
+
+  /** @return how many messages for other plugins we've ignored */
+  public long othersDropped() {
+    return othersDropped.get();
+  }
+
+  @Override
+  public void pluginCommunicationReceived(Friend source, String data) {
+    if (!data.startsWith(prefix)) {
+      othersDropped.incrementAndGet();
+      return;
+    }
+    int equals = data.indexOf('=', prefix.length());
+    String type = equals == -1 ? data.substring(prefix.length()) : data.substring(prefix.length(), equals);
+    MessageHandler handler = handlers.get(type);
+    if (handler == null) {
+      counters.get(UNKNOWN_TYPE).messages.incrementAndGet();
+      System.err.println("Got an unknown plugin message type '" + type + "' from " + source + ", so we'll ignore it.");
+      return;
+    }
+    MessageCounter counter = counters.get(type);
+    counter.messages.incrementAndGet();
+    counter.bytes.addAndGet(data.length());
+    Log.debug("Received plugin comm from %s: %s", source, data);
+    try {
+      handler.handle(source, equals == -1 ? "" : data.substring(equals + 1));
+    } catch (RuntimeException e) {
+      counter.failures.incrementAndGet();
+      System.err.println("Failed to handle plugin message type '" + type + "' from " + source + ".");
+      e.printStackTrace();
+    }
+  }
+
+}
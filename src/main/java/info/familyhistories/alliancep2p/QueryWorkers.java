@@ -0,0 +1,136 @@
+package info.familyhistories.alliancep2p;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A few threads to answer change queries, so a big walk doesn't hold up the thread that delivers every friend's messages.
+ *
+ * Friends take turns: each has their own queue, the workers go round the friends who have something waiting,
+ * and only one of a friend's queries runs at a time (so theirs are answered in order, and one friend can't take
+ * every worker).  A friend can have MAX_QUEUED_PER_FRIEND waiting and everyone MAX_QUEUED together; past that,
+ * submit says no and the caller tells them to try again later.  When a friend disconnects, cancel drops what
+ * they have waiting.
+ *
+ * Set the system property named by WORKERS_PROPERTY to change the number of threads (default: 2).
+ */
+public class QueryWorkers {
+
+  static final String WORKERS_PROPERTY = "info.familyhistories.alliancep2p.queryWorkers";
+  static final int WORKERS = Math.max(1, Integer.getInteger(WORKERS_PROPERTY, 2));
+  static final int MAX_QUEUED = 64;
+  static final int MAX_QUEUED_PER_FRIEND = 16;
+  /** how long (in millis) we tell a friend to wait when we can't take their query */
+  static final long RETRY_AFTER = 30 * 1000;
+
+  /** map from friend GUID to their waiting tasks (guarded by this) */
+  private final Map<Integer, LinkedList<Runnable>> queues = new HashMap<Integer, LinkedList<Runnable>>();
+  /** friends with something waiting and nothing running, in turn order (guarded by this) */
+  private final LinkedList<Integer> ready = new LinkedList<Integer>();
+  /** friends with a task running (guarded by this) */
+  private final Set<Integer> running = new HashSet<Integer>();
+  private int queued = 0;
+  private boolean shutdown = false;
+
+  QueryWorkers() {
+    for (int i = 0; i < WORKERS; i++) {
+      Thread thread = new Thread(new Runnable() {
+          public void run() {
+            work();
+          }
+        }, "FriendFileChangeDetector query worker " + (i + 1));
+      thread.setDaemon(true);
+      thread.start();
+    }
+  }
+
+  public synchronized void shutdown() {
+    shutdown = true;
+    notifyAll();
+  }
+
+  /**
+   * @return false if too much is waiting, so the task wasn't taken
+   */
+  public synchronized boolean submit(int guid, Runnable task) {
+    LinkedList<Runnable> queue = queues.get(guid);
+    if (shutdown
+        || queued >= MAX_QUEUED
+        || (queue != null && queue.size() >= MAX_QUEUED_PER_FRIEND)) {
+      return false;
+    }
+    if (queue == null) {
+      queue = new LinkedList<Runnable>();
+      queues.put(guid, queue);
+    }
+    queue.add(task);
+    queued++;
+    if (queue.size() == 1
+        && !running.contains(guid)) {
+      ready.add(guid);
+      notify();
+    }
+    return true;
+  }
+
+  /**
+   * Drop everything this friend has waiting (what's running finishes).
+   */
+  public synchronized void cancel(int guid) {
+    LinkedList<Runnable> queue = queues.remove(guid);
+    if (queue != null) {
+      queued -= queue.size();
+      if (!queue.isEmpty()) {
+        Log.info("QueryWorkers: dropped %d queries from friend %d.", queue.size(), guid);
+      }
+    }
+    ready.remove(Integer.valueOf(guid));
+  }
+
+  private void work() {
+    while (true) {
+      int guid;
+      Runnable task;
+      synchronized (this) {
+        while (ready.isEmpty()
+               && !shutdown) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+        }
+        if (shutdown) {
+          return;
+        }
+        guid = ready.removeFirst();
+        LinkedList<Runnable> queue = queues.get(guid);
+        task = queue.removeFirst();
+        queued--;
+        if (queue.isEmpty()) {
+          queues.remove(guid);
+        }
+        running.add(guid);
+      }
+      try {
+        task.run();
+      } catch (RuntimeException e) {
+        System.err.println("QueryWorkers: a query from friend " + guid + " failed.");
+        e.printStackTrace();
+      } finally {
+        synchronized (this) {
+          running.remove(guid);
+          if (queues.containsKey(guid)) {
+            // back of the line, after everyone else who's waiting
+            ready.add(guid);
+            notify();
+          }
+        }
+      }
+    }
+  }
+
+}
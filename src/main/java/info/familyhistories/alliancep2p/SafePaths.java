@@ -0,0 +1,73 @@
+package info.familyhistories.alliancep2p;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.alliance.core.CoreSubsystem;
+import org.alliance.core.file.share.ShareBase;
+
+/**
+ * Resolve the paths a friend sends us (sub-paths of a share, or files in a manifest) against a directory of ours,
+ * refusing any that would end up outside it, eg. with ".." or an absolute path or a link that points elsewhere.
+ *
+ * Anything that looks at a path from a friend's query goes through sharedPath first.
+ */
+public class SafePaths {
+
+  private SafePaths() {
+  }
+
+  /**
+   * @param relPath a path from a friend, relative to baseDir ("" for baseDir itself)
+   * @return the file with its canonical path, or null if it isn't inside baseDir (or either can't be resolved)
+   */
+  static File under(File baseDir, String relPath) {
+    if (relPath == null
+        || new File(relPath).isAbsolute()) {
+      return null;
+    }
+    try {
+      String base = baseDir.getCanonicalPath();
+      File file = new File(base, relPath).getCanonicalFile();
+      String path = file.getPath();
+      if (path.equals(base)
+          || path.startsWith(base.endsWith(File.separator) ? base : base + File.separator)) {
+        return file;
+      }
+      return null;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Find what a friend is asking about: shareSubPath under our share-base at shareBaseIndex.
+   *
+   * @return the file with its canonical path, or null if there's no such share-base or the path isn't inside it
+   */
+  static File sharedPath(CoreSubsystem core, int shareBaseIndex, String shareSubPath) {
+    ShareBase shareBase;
+    try {
+      shareBase = core.getFileManager().getShareManager().getBaseByIndex(shareBaseIndex);
+    } catch (IndexOutOfBoundsException e) {
+      shareBase = null;
+    }
+    if (shareBase == null) {
+      System.err.println("A friend asked about share-base index " + shareBaseIndex + ", which we don't have.");
+      return null;
+    }
+    File result = under(new File(shareBase.getPath()), shareSubPath);
+    if (result == null) {
+      System.err.println("A friend asked about " + shareSubPath + " in share-base " + shareBase.getPath() + ", which isn't inside it.");
+    }
+    return result;
+  }
+
+  /**
+   * @return true if relPath from a friend stays inside baseDir (see under)
+   */
+  static boolean isUnder(File baseDir, String relPath) {
+    return under(baseDir, relPath) != null;
+  }
+
+}
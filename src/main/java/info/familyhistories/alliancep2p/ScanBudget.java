@@ -0,0 +1,201 @@
+package info.familyhistories.alliancep2p;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A token bucket for the stat and listing calls our change scans make (on the publishing side), so that when a
+ * bunch of friends reconnect at once their queries don't keep the disk from Alliance's own hashing and uploads.
+ * Reading a file for its content digest counts too, one call for each buffer read, so a big file takes a while.
+ *
+ * Each call takes a token; the bucket refills at the rate and holds up to a second's worth.  A scan that runs out
+ * just sleeps until there are enough, so it slows down but never fails.  Every scanner shares the one budget.
+ *
+ * If there's a latency target, the rate adapts to how long the calls actually take: when the average goes over the
+ * target we halve the rate (down to MIN_RATE_FRACTION of the setting), and when it's comfortably under we creep back up.
+ *
+ * Set the system property named by OPS_PROPERTY to change the rate (default: 5000 a second; 0 for no limit), and the
+ * one named by LATENCY_PROPERTY to a number of milliseconds to turn on the adapting.
+ */
+public class ScanBudget {
+
+  static final String OPS_PROPERTY = "info.familyhistories.alliancep2p.scanOpsPerSecond";
+  static final int OPS_PER_SECOND = Integer.getInteger(OPS_PROPERTY, 5000);
+  static final String LATENCY_PROPERTY = "info.familyhistories.alliancep2p.scanLatencyMillis";
+  static final int LATENCY_MILLIS = Integer.getInteger(LATENCY_PROPERTY, 0);
+
+  /** no limit, eg. for the benchmarks */
+  static final ScanBudget UNLIMITED = new ScanBudget(0, 0);
+
+  /** how far below the setting an adapting rate can go */
+  static final double MIN_RATE_FRACTION = 0.05;
+  /** how often (in millis) an adapting rate is changed */
+  static final long ADJUST_INTERVAL = 1000;
+  /** how much each latency counts toward the average */
+  private static final double LATENCY_WEIGHT = 0.05;
+
+  private final double maxRate;
+  private final long targetLatencyNanos;
+
+  // all guarded by this
+  private double rate;
+  /** may go below 0, when callers have reserved tokens they're waiting for */
+  private double tokens;
+  private long lastRefill = System.nanoTime();
+  private double averageLatencyNanos = 0;
+  private long lastAdjusted = System.currentTimeMillis();
+  private long ops = 0, pauses = 0, waitedNanos = 0;
+
+  /**
+   * @param opsPerSecond 0 (or less) for no limit
+   * @param latencyMillis 0 (or less) to keep the rate where it's set
+   */
+  ScanBudget(int opsPerSecond, int latencyMillis) {
+    this.maxRate = Math.max(0, opsPerSecond);
+    this.targetLatencyNanos = Math.max(0, latencyMillis) * 1000000L;
+    this.rate = maxRate;
+    this.tokens = maxRate;
+  }
+
+  public boolean isLimited() {
+    return maxRate > 0;
+  }
+
+  /**
+   * Take tokens for this many calls, sleeping until they're there.
+   */
+  public void acquire(int count) {
+    if (!isLimited()) {
+      return;
+    }
+    long waitNanos;
+    synchronized (this) {
+      long now = System.nanoTime();
+      tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+      lastRefill = now;
+      tokens -= count;
+      ops += count;
+      waitNanos = tokens < 0 ? (long) (-tokens / rate * 1e9) : 0;
+      if (waitNanos > 0) {
+        pauses++;
+        waitedNanos += waitNanos;
+      }
+    }
+    if (waitNanos > 0) {
+      try {
+        Thread.sleep(waitNanos / 1000000, (int) (waitNanos % 1000000));
+      } catch (InterruptedException e) {
+        // we're probably shutting down, so let the scan finish as quickly as it can
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /**
+   * Count how long a call took, for an adapting rate.
+   */
+  public void took(long nanos) {
+    if (!isLimited()
+        || targetLatencyNanos == 0) {
+      return;
+    }
+    synchronized (this) {
+      averageLatencyNanos += (nanos - averageLatencyNanos) * LATENCY_WEIGHT;
+      long now = System.currentTimeMillis();
+      if (now - lastAdjusted < ADJUST_INTERVAL) {
+        return;
+      }
+      lastAdjusted = now;
+      double oldRate = rate;
+      if (averageLatencyNanos > targetLatencyNanos) {
+        rate = Math.max(maxRate * MIN_RATE_FRACTION, rate / 2);
+      } else if (averageLatencyNanos < targetLatencyNanos / 2) {
+        rate = Math.min(maxRate, rate + maxRate / 10);
+      }
+      tokens = Math.min(tokens, rate);
+      if (rate != oldRate) {
+        Log.debug("ScanBudget: disk calls are averaging %.2f ms, so scans now get %.0f a second.", averageLatencyNanos / 1e6, rate);
+      }
+    }
+  }
+
+  /**
+   * Files.readAttributes, within the budget.
+   */
+  public BasicFileAttributes readAttributes(Path path, LinkOption... options) throws IOException {
+    acquire(1);
+    long start = System.nanoTime();
+    try {
+      return Files.readAttributes(path, BasicFileAttributes.class, options);
+    } finally {
+      took(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * @return true if the path is a directory (following links), checked within the budget
+   */
+  public boolean isDirectory(Path path) {
+    try {
+      return readAttributes(path).isDirectory();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * FileChannel.read, within the budget.
+   */
+  public int read(FileChannel channel, ByteBuffer buffer) throws IOException {
+    acquire(1);
+    long start = System.nanoTime();
+    try {
+      return channel.read(buffer);
+    } finally {
+      took(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Files.newDirectoryStream, within the budget (for opening it; each entry's attributes are another call).
+   */
+  public DirectoryStream<Path> newDirectoryStream(Path dir) throws IOException {
+    acquire(1);
+    long start = System.nanoTime();
+    try {
+      return Files.newDirectoryStream(dir);
+    } finally {
+      took(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * @return lines for the metrics command
+   */
+  public synchronized List<String> report() {
+    List<String> result = new ArrayList<String>();
+    if (!isLimited()) {
+      result.add("scan budget: no limit");
+    } else {
+      result.add("scan budget: " + Math.round(rate) + " calls a second (of " + Math.round(maxRate) + "), "
+                 + ops + " calls, " + pauses + " pauses waiting " + (waitedNanos / 1000000) + " ms"
+                 + (targetLatencyNanos == 0 ? "" : String.format(", %.2f ms average (target %d ms)", averageLatencyNanos / 1e6, targetLatencyNanos / 1000000)));
+    }
+    return result;
+  }
+
+  public synchronized void reset() {
+    ops = 0;
+    pauses = 0;
+    waitedNanos = 0;
+  }
+
+}
@@ -9,9 +9,20 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.alliance.core.CoreSubsystem;
 
@@ -19,89 +30,379 @@ import org.alliance.core.CoreSubsystem;
  * Use a file to store the array of subscribed folders.
  * 
  * You can remove the file to erase all the settings, and it'll be recreated blank.
+ * 
+ * In memory they're kept by friend, share-base, and sub-path (and by friend alone) so lookups and updates
+ * don't go through the whole list, and any thread may use them.
+ *
+ * Every change is also appended to a log beside that file (see SubscriptionLog), so a crash doesn't lose
+ * everything since startup.  When the log gets big it's compacted in the background: the current log is set
+ * aside, a new snapshot is written to a temporary file and renamed over the old one, and the old log is removed.
+ * On startup we load the snapshot and replay any set-aside log and then the current log; replaying a set-aside
+ * log over a snapshot that already includes it just sets the same values again.
  */
 public class SerializedFriendSubscriptions implements FriendSubscriptionPersistence {
 
+  /** how big (in bytes) the log gets before we compact it into the snapshot */
+  static final long COMPACT_LOG_SIZE = 256 * 1024;
+  /** how often (in millis) we make sure logged changes are on disk, even if there aren't enough for a group */
+  static final long SYNC_INTERVAL = 1000;
+
   private final String filename;
+  private final File logFile, compactingLogFile;
+
+  /** key for the subscription to one friend's share-base sub-path */
+  private static class SubscriptionKey {
+    final int guid;
+    final String shareBasePath, shareSubPath;
+    SubscriptionKey(int _guid, String _shareBasePath, String _shareSubPath) {
+      this.guid = _guid;
+      this.shareBasePath = _shareBasePath;
+      this.shareSubPath = _shareSubPath;
+    }
+    SubscriptionKey(FriendSubscription fsub) {
+      this(fsub.guid, fsub.shareBasePath, fsub.shareSubPath);
+    }
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof SubscriptionKey)) {
+        return false;
+      }
+      SubscriptionKey other = (SubscriptionKey) obj;
+      return guid == other.guid
+        && shareBasePath.equals(other.shareBasePath)
+        && shareSubPath.equals(other.shareSubPath);
+    }
+    @Override
+    public int hashCode() {
+      return (guid * 31 + shareBasePath.hashCode()) * 31 + shareSubPath.hashCode();
+    }
+  }
 
-  private List<FriendSubscription> friendSubList = new ArrayList<FriendSubscription>();
+  private final ConcurrentMap<SubscriptionKey, FriendSubscription> friendSubs = new ConcurrentHashMap<SubscriptionKey, FriendSubscription>();
+  /** map from friend GUID to their subscriptions (the same objects as in friendSubs) */
+  private final ConcurrentMap<Integer, Map<SubscriptionKey, FriendSubscription>> friendSubsByGuid = new ConcurrentHashMap<Integer, Map<SubscriptionKey, FriendSubscription>>();
+
+  /** held while changing a subscription and logging it, so a compaction sees each change in exactly one place */
+  private final Object logLock = new Object();
+  /** the current log, or null if it couldn't be opened */
+  private volatile SubscriptionLog log = null;
+  private final AtomicBoolean compacting = new AtomicBoolean(false);
+  private final ScheduledExecutorService logThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "FriendFileChangeDetector subscription log");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
 
   SerializedFriendSubscriptions(CoreSubsystem core) {
     String downloadFolder = core.getSettings().getInternal().getDownloadfolder();
     String settingsFolder = downloadFolder.substring(0, downloadFolder.lastIndexOf(File.separator) + 1);
     filename = settingsFolder + File.separator + "friendFileChangeDetector.ser";
+    logFile = new File(settingsFolder + File.separator + "friendFileChangeDetector.log");
+    compactingLogFile = new File(settingsFolder + File.separator + "friendFileChangeDetector.log.compacting");
 
     if (new File(filename).exists()) {
       load();
     }
+    replay(compactingLogFile);
+    replay(logFile);
+
+    try {
+      log = new SubscriptionLog(logFile);
+      log.open();
+    } catch (IOException e) {
+      System.err.println("Due to the following error, we cannot log subscription changes, so they'll only be saved at shutdown.");
+      e.printStackTrace();
+      log = null;
+    }
+
+    logThread.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          syncLog();
+        }
+      }, SYNC_INTERVAL, SYNC_INTERVAL, TimeUnit.MILLISECONDS);
   }
 
   public void shutdown() {
-    save();
+    logThread.shutdown();
+    try {
+      logThread.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    compact();
+    synchronized (logLock) {
+      if (log != null) {
+        try {
+          log.close();
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+        log = null;
+      }
+    }
+  }
+
+  private void syncLog() {
+    SubscriptionLog currentLog;
+    synchronized (logLock) {
+      currentLog = log;
+    }
+    if (currentLog != null) {
+      try {
+        currentLog.sync();
+      } catch (IOException e) {
+        System.err.println("Due to the following error, recent subscription changes may not be on disk yet.");
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Write a new snapshot and drop the log it replaces.  Only one compaction runs at a time.
+   */
+  private void compact() {
+    if (!compacting.compareAndSet(false, true)) {
+      return;
+    }
+    try {
+      // set the current log aside and take a copy of everything it covers
+      List<FriendSubscription> snapshot = new ArrayList<FriendSubscription>();
+      synchronized (logLock) {
+        if (log != null) {
+          try {
+            log.close();
+            if (!compactingLogFile.exists()) {
+              Files.move(logFile.toPath(), compactingLogFile.toPath());
+            } else {
+              // a previous compaction didn't finish, so keep its log and add this one after it
+              appendFile(logFile, compactingLogFile);
+            }
+            log = new SubscriptionLog(logFile);
+            log.open();
+          } catch (IOException e) {
+            System.err.println("Due to the following error, we could not set aside the subscription log, so we'll keep using it.");
+            e.printStackTrace();
+            try {
+              log = new SubscriptionLog(logFile);
+              log.open();
+            } catch (IOException e2) {
+              e2.printStackTrace();
+              log = null;
+            }
+            return;
+          }
+        }
+        for (FriendSubscription fsub : friendSubs.values()) {
+          snapshot.add(new FriendSubscription(fsub.guid, fsub.shareBasePath, fsub.shareSubPath, fsub.localPath, fsub.lastKnownModified));
+        }
+      }
+
+      if (save(snapshot)) {
+        compactingLogFile.delete();
+      }
+    } finally {
+      compacting.set(false);
+    }
   }
 
-  private void save() {
+  private static void appendFile(File from, File to) throws IOException {
+    FileInputStream in = new FileInputStream(from);
     try {
-      new ObjectOutputStream(new FileOutputStream(filename)).writeObject(friendSubList);
+      FileOutputStream out = new FileOutputStream(to, true);
+      try {
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) > 0) {
+          out.write(buffer, 0, count);
+        }
+        out.getFD().sync();
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    from.delete();
+  }
+
+  /**
+   * Write the snapshot to a temporary file and then rename it over the old one, so there's always a whole snapshot.
+   *
+   * @return true if the new snapshot is in place
+   */
+  private boolean save(List<FriendSubscription> snapshot) {
+    File tempFile = new File(filename + ".tmp");
+    FileOutputStream fileOut = null;
+    try {
+      fileOut = new FileOutputStream(tempFile);
+      ObjectOutputStream out = new ObjectOutputStream(fileOut);
+      // still written as a list, so older versions can read it
+      out.writeObject(snapshot);
+      out.flush();
+      fileOut.getFD().sync();
+      out.close();
+      fileOut = null;
+      try {
+        Files.move(tempFile.toPath(), new File(filename).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(tempFile.toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING);
+      }
+      return true;
     } catch (IOException e) {
       System.err.println("Due to the following error, we could not save the friend subscription settings.");
       e.printStackTrace();
+      return false;
+    } finally {
+      if (fileOut != null) try { fileOut.close(); } catch (IOException e) {}
+    }
+  }
+
+  private void replay(File file) {
+    try {
+      SubscriptionLog.replay(file, new SubscriptionLog.Replayer() {
+          public void created(FriendSubscription fsub) {
+            add(fsub);
+          }
+          public void updated(int guid, String shareBasePath, String shareSubPath, long lastModifiedTime) {
+            FriendSubscription fsub = getFriendSubscription(guid, shareBasePath, shareSubPath);
+            if (fsub != null) {
+              fsub.lastKnownModified = lastModifiedTime;
+            }
+          }
+        });
+    } catch (IOException e) {
+      System.err.println("Due to the following error, we could not replay the friend subscription changes in " + file);
+      e.printStackTrace();
+    }
+  }
+
+  /** compact in the background if the log has grown too big */
+  private void compactIfLarge() {
+    SubscriptionLog currentLog = log;
+    if (currentLog != null
+        && currentLog.size() > COMPACT_LOG_SIZE
+        && !compacting.get()) {
+      logThread.execute(new Runnable() {
+          public void run() {
+            compact();
+          }
+        });
     }
   }
 
   @SuppressWarnings("unchecked")
   private void load() {
+    ObjectInputStream in = null;
     try {
-      friendSubList = 
-        (List<FriendSubscription>)
-        new ObjectInputStream(new FileInputStream(filename)).readObject();
+      in = new ObjectInputStream(new FileInputStream(filename));
+      List<FriendSubscription> friendSubList = (List<FriendSubscription>) in.readObject();
+      for (FriendSubscription fsub : friendSubList) {
+        add(fsub);
+      }
     } catch (IOException e) {
       System.err.println("Due to the following error, we could not load the friend subscription settings.");
       e.printStackTrace();
     } catch (ClassNotFoundException e) {
       System.err.println("Due to the following error, we could not load the friend subscription settings.");
       e.printStackTrace();
+    } finally {
+      if (in != null) try { in.close(); } catch (IOException e) {}
+    }
+  }
+
+  /**
+   * @return false if there's already a subscription for that friend, share-base, and sub-path
+   */
+  public boolean createFriendSubscription(FriendSubscription fsub) throws SQLException {
+    synchronized (logLock) {
+      if (!add(fsub)) {
+        return false;
+      }
+      if (log != null) {
+        try {
+          log.appendCreate(fsub);
+        } catch (IOException e) {
+          throw new SQLException("Unable to log the new subscription.", e);
+        }
+      }
     }
+    compactIfLarge();
+    return true;
   }
 
-  public boolean createFriendSubscription(FriendSubscription fsub) {
-    friendSubList.add(fsub);
+  private boolean add(FriendSubscription fsub) {
+    SubscriptionKey key = new SubscriptionKey(fsub);
+    if (friendSubs.putIfAbsent(key, fsub) != null) {
+      return false;
+    }
+    Map<SubscriptionKey, FriendSubscription> forFriend = friendSubsByGuid.get(fsub.guid);
+    if (forFriend == null) {
+      Map<SubscriptionKey, FriendSubscription> newForFriend = new ConcurrentHashMap<SubscriptionKey, FriendSubscription>();
+      forFriend = friendSubsByGuid.putIfAbsent(fsub.guid, newForFriend);
+      if (forFriend == null) {
+        forFriend = newForFriend;
+      }
+    }
+    forFriend.put(key, fsub);
     return true;
   }
 
   public List<FriendSubscription> getFriendSubscriptions() {
-    return friendSubList;
+    return new ArrayList<FriendSubscription>(friendSubs.values());
   }
 
   public List<FriendSubscription> getFriendSubscriptions(Integer guid) {
-    List<FriendSubscription> forFriend = new ArrayList<FriendSubscription>();
-    for (FriendSubscription fsub : friendSubList) {
-      if (fsub.guid == guid) {
-        forFriend.add(fsub);
-      }
+    Map<SubscriptionKey, FriendSubscription> forFriend = friendSubsByGuid.get(guid);
+    if (forFriend == null) {
+      return new ArrayList<FriendSubscription>();
     }
-    return forFriend;
+    return new ArrayList<FriendSubscription>(forFriend.values());
   }
 
   public FriendSubscription getFriendSubscription(Integer guid, String shareBasePath, String shareSubPath) {
-    for (FriendSubscription fsub : friendSubList) {
-      if (fsub.guid == guid
-          && fsub.shareBasePath.equals(shareBasePath)
-          && fsub.shareSubPath.equals(shareSubPath)) {
-        return fsub;
-      }
-    }
-    return null;
+    return friendSubs.get(new SubscriptionKey(guid, shareBasePath, shareSubPath));
   }
 
   public boolean updateFriendSubscription(Integer friendGuid, String shareBasePath, String shareSubPath, long lastModifiedTime) throws SQLException {
     FriendSubscription fsub = getFriendSubscription(friendGuid, shareBasePath, shareSubPath);
-    if (fsub != null) {
-      friendSubList.remove(fsub);
-      friendSubList.add(new FriendSubscription(friendGuid, shareBasePath, shareSubPath, fsub.localPath, lastModifiedTime));
-      return true;
-    } else {
+    if (fsub == null) {
       return false;
     }
+    synchronized (logLock) {
+      fsub.lastKnownModified = lastModifiedTime;
+      if (log != null) {
+        try {
+          log.appendUpdate(friendGuid, shareBasePath, shareSubPath, lastModifiedTime);
+        } catch (IOException e) {
+          throw new SQLException("Unable to log the new time for the subscription.", e);
+        }
+      }
+    }
+    compactIfLarge();
+    return true;
+  }
+
+  public int updateFriendSubscriptions(List<FriendSubscription> updates) throws SQLException {
+    int result = 0;
+    synchronized (logLock) {
+      for (FriendSubscription update : updates) {
+        FriendSubscription fsub = getFriendSubscription(update.guid, update.shareBasePath, update.shareSubPath);
+        if (fsub != null) {
+          fsub.lastKnownModified = update.lastKnownModified;
+          if (log != null) {
+            try {
+              log.appendUpdate(update.guid, update.shareBasePath, update.shareSubPath, update.lastKnownModified);
+            } catch (IOException e) {
+              throw new SQLException("Unable to log the new times for the subscriptions.", e);
+            }
+          }
+          result++;
+        }
+      }
+    }
+    compactIfLarge();
+    return result;
   }
 }
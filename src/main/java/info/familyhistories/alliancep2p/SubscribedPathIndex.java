@@ -0,0 +1,522 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.ParallelTreeWalker.Listing;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alliance.core.CoreSubsystem;
+
+/**
+ * Keep the size & modified time of every file under the subscribed paths (on the publishing side),
+ * so a change query can be answered without listing the whole tree every time.
+ *
+ * Directories are re-listed only when their own modified time changes (ie. something was added or removed).
+ * Files modified in place don't touch their directory, so those have to be checked one by one.  For a path the
+ * SubscribedPathWatcher is watching, we hear about each change in the ChangeJournal and check just those files,
+ * checking all of them only every REVALIDATE_FILES_INTERVAL (in case an event hasn't arrived yet); any other path
+ * has every file checked on every query.  Since a file we haven't checked may have changed after the time we say
+ * we're up to, the time we report is never later than the last time we checked them all, so the friend asks again
+ * from there and can't skip past an edit we hadn't seen.
+ * Directories we've never seen (including the whole tree, the first time) are listed by the ParallelTreeWalker.
+ * All of it goes through the ScanBudget.
+ *
+ * The index is saved every SAVE_INTERVAL when it has changed, and at shutdown.  What we load (maybe from before a
+ * crash) is only a head start: every file is checked again the first time each path is asked about.
+ *
+ * Like the SerializedFriendSubscriptions, you can remove the file to erase the index, and it'll be rebuilt on the next query.
+ */
+public class SubscribedPathIndex implements ChangeJournal.Listener {
+
+  /** how long (in millis) we trust the recorded file times of a watched path before checking each one again */
+  static final long REVALIDATE_FILES_INTERVAL = 60 * 1000;
+  /** how often (in millis) we save the index, if it changed */
+  static final long SAVE_INTERVAL = 5 * 60 * 1000;
+  /** how many changed files we keep for a path between queries; past that, we just check them all */
+  static final int MAX_TOUCHED_FILES = 10000;
+
+  static class FileEntry implements Serializable {
+    private static final long serialVersionUID = 3186574012931162442L;
+
+    final long size, lastModified;
+    FileEntry(long _size, long _lastModified) {
+      this.size = _size;
+      this.lastModified = _lastModified;
+    }
+  }
+
+  static class DirEntry implements Serializable {
+    private static final long serialVersionUID = -2410964316383557204L;
+
+    long lastModified;
+    /** map from file name to entry, for files directly in this directory */
+    final Map<String, FileEntry> files = new HashMap<String, FileEntry>();
+    /** names of the directories directly in this directory */
+    final Set<String> subdirs = new HashSet<String>();
+    DirEntry(long _lastModified) {
+      this.lastModified = _lastModified;
+    }
+  }
+
+  static class PathIndex implements Serializable {
+    private static final long serialVersionUID = 7720468848217651085L;
+
+    /** map from path relative to the subscribed path (ending in a separator, or "" for the top) to that directory's entry */
+    final Map<String, DirEntry> dirs = new HashMap<String, DirEntry>();
+    long lastFilesRevalidated = 0;
+  }
+
+  private final String filename;
+  private final ScanBudget budget;
+  private final ParallelTreeWalker walker;
+
+  /** map from absolute subscribed path to its index */
+  private final Map<String, PathIndex> indexes = new ConcurrentHashMap<String, PathIndex>();
+  /**
+   * map from absolute subscribed path (as in indexes) to the files under it (relative to it) that the journal says
+   * changed since its last revalidate, or to null if there were too many; a path that isn't here gets all its files
+   * checked (guarded by itself)
+   */
+  private final Map<String, Set<String>> touchedFiles = new HashMap<String, Set<String>>();
+  /** absolute paths the SubscribedPathWatcher is watching completely */
+  private final Set<String> watchedPaths = Collections.synchronizedSet(new HashSet<String>());
+  private volatile boolean changed = false;
+  private final ScheduledExecutorService saveThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "FriendFileChangeDetector index");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  SubscribedPathIndex(CoreSubsystem core, ScanBudget _budget) {
+    this.budget = _budget;
+    this.walker = new ParallelTreeWalker(ParallelTreeWalker.PARALLELISM, _budget);
+    String downloadFolder = core.getSettings().getInternal().getDownloadfolder();
+    String settingsFolder = downloadFolder.substring(0, downloadFolder.lastIndexOf(File.separator) + 1);
+    filename = settingsFolder + File.separator + "friendFileChangeDetectorIndex.ser";
+
+    if (new File(filename).exists()) {
+      load();
+    }
+
+    saveThread.scheduleWithFixedDelay(new Runnable() {
+        public void run() {
+          if (changed) {
+            save();
+          }
+        }
+      }, SAVE_INTERVAL, SAVE_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  public void shutdown() {
+    saveThread.shutdown();
+    try {
+      saveThread.awaitTermination(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    walker.shutdown();
+    save();
+  }
+
+  /**
+   * Write each path's index while holding it, so queries can go on with the others, and replace the file only when
+   * it's all written, so a crash in the middle leaves the last one.
+   */
+  private synchronized void save() {
+    changed = false;
+    File tempFile = new File(filename + ".saving");
+    ObjectOutputStream out = null;
+    try {
+      out = new ObjectOutputStream(new FileOutputStream(tempFile));
+      Map<String, PathIndex> toSave = new HashMap<String, PathIndex>(indexes);
+      out.writeInt(toSave.size());
+      for (Map.Entry<String, PathIndex> entry : toSave.entrySet()) {
+        out.writeUTF(entry.getKey());
+        synchronized (entry.getValue()) {
+          out.writeObject(entry.getValue());
+        }
+        out.reset();
+      }
+      out.close();
+      out = null;
+      Files.move(tempFile.toPath(), new File(filename).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.err.println("Due to the following error, we could not save the subscribed path index.");
+      e.printStackTrace();
+    } finally {
+      if (out != null) try { out.close(); } catch (IOException e) {}
+    }
+  }
+
+  private synchronized void load() {
+    ObjectInputStream in = null;
+    try {
+      in = new ObjectInputStream(new FileInputStream(filename));
+      int count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        String subscribedPath = in.readUTF();
+        indexes.put(subscribedPath, (PathIndex) in.readObject());
+      }
+    } catch (IOException e) {
+      System.err.println("Due to the following error, we could not load the subscribed path index, so it will be rebuilt.");
+      e.printStackTrace();
+    } catch (ClassNotFoundException e) {
+      System.err.println("Due to the following error, we could not load the subscribed path index, so it will be rebuilt.");
+      e.printStackTrace();
+    } finally {
+      if (in != null) try { in.close(); } catch (IOException e) {}
+    }
+  }
+
+  private synchronized PathIndex indexFor(String subscribedPath) {
+    PathIndex index = indexes.get(subscribedPath);
+    if (index == null) {
+      index = new PathIndex();
+      indexes.put(subscribedPath, index);
+    }
+    return index;
+  }
+
+  /**
+   * The SubscribedPathWatcher is now watching everything under this path, so we'll hear about every change there.
+   */
+  public void watching(String subscribedPath) {
+    watchedPaths.add(subscribedPath);
+  }
+
+  /**
+   * The SubscribedPathWatcher may have missed changes under this path, so its files go back to being checked every time.
+   */
+  public void notWatching(String subscribedPath) {
+    watchedPaths.remove(subscribedPath);
+    synchronized (touchedFiles) {
+      for (Map.Entry<String, Set<String>> entry : touchedFiles.entrySet()) {
+        if (isUnder(entry.getKey(), subscribedPath)) {
+          entry.setValue(null);
+        }
+      }
+    }
+  }
+
+  private boolean isWatched(String subscribedPath) {
+    synchronized (watchedPaths) {
+      for (String watchedPath : watchedPaths) {
+        if (isUnder(subscribedPath, watchedPath)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /** @return true if path is dir or inside it */
+  private static boolean isUnder(String path, String dir) {
+    return path.equals(dir)
+      || path.startsWith(dir.endsWith(File.separator) ? dir : dir + File.separator);
+  }
+
+  @Override
+  public void appended(String subscribedPath, String relativePath) {
+    String changedPath = subscribedPath + File.separator + relativePath;
+    synchronized (touchedFiles) {
+      for (Map.Entry<String, Set<String>> entry : touchedFiles.entrySet()) {
+        Set<String> touched = entry.getValue();
+        if (touched != null
+            && isUnder(changedPath, entry.getKey())
+            && !changedPath.equals(entry.getKey())) {
+          if (touched.size() < MAX_TOUCHED_FILES) {
+            touched.add(changedPath.substring(entry.getKey().length() + 1));
+          } else {
+            entry.setValue(null);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the files (relative to subscribedPath) the journal says changed since the last call, or null if we
+   * don't know them all, so every file has to be checked
+   */
+  private Set<String> takeTouchedFiles(String subscribedPath) {
+    synchronized (touchedFiles) {
+      Set<String> touched = touchedFiles.put(subscribedPath, new HashSet<String>());
+      return isWatched(subscribedPath) ? touched : null;
+    }
+  }
+
+  /**
+   * Find the files changed under one or more paths under baseDir (eg. nested subscriptions from one batch),
+   * bringing baseDir's index up to date just once and going through it once.
+   *
+   * @param relDirs each path relative to baseDir, ending in a separator (or "" for baseDir itself)
+   * @param friendsLastKnownTimestamps the friend's time for each of relDirs
+   * @param changedFiles for each of relDirs, gets the files changed since its time (relative to it) with their times
+   * @return for each of relDirs, the latest timestamp of the directories and the collected files under it,
+   * but no later than when we last checked every file
+   */
+  public long[] filesWithLatestTimestamps(File baseDir, List<String> relDirs, long[] friendsLastKnownTimestamps,
+                                          List<CompactPathList> changedFiles) {
+    long[] result = new long[relDirs.size()];
+    String subscribedPath = baseDir.getAbsolutePath();
+    PathIndex index = indexFor(subscribedPath);
+    synchronized (index) {
+      revalidate(baseDir, subscribedPath, index);
+
+      for (Map.Entry<String, DirEntry> dirEntry : index.dirs.entrySet()) {
+        String relDir = dirEntry.getKey();
+        DirEntry dir = dirEntry.getValue();
+        for (int i = 0; i < result.length; i++) {
+          String under = relDirs.get(i);
+          if (!relDir.startsWith(under)) {
+            continue;
+          }
+          result[i] = Math.max(result[i], dir.lastModified);
+          for (Map.Entry<String, FileEntry> fileEntry : dir.files.entrySet()) {
+            long lastModified = fileEntry.getValue().lastModified;
+            if (lastModified > friendsLastKnownTimestamps[i]) {
+              changedFiles.get(i).add(relDir.substring(under.length()) + fileEntry.getKey(), lastModified);
+              result[i] = Math.max(result[i], lastModified);
+            }
+          }
+        }
+      }
+      for (int i = 0; i < result.length; i++) {
+        result[i] = Math.min(result[i], index.lastFilesRevalidated);
+      }
+      return result;
+    }
+  }
+
+  /**
+   * @param files map from every file under baseDir (relative to it) to its size & time, modified as we find more
+   * @return the latest modified time of the directories and files (as filesWithLatestTimestamps counts them), but no
+   * later than when we last checked every file
+   */
+  public long allFiles(File baseDir, Map<String, FileEntry> files) {
+    String subscribedPath = baseDir.getAbsolutePath();
+    PathIndex index = indexFor(subscribedPath);
+    synchronized (index) {
+      revalidate(baseDir, subscribedPath, index);
+      long result = 0;
+      for (Map.Entry<String, DirEntry> dirEntry : index.dirs.entrySet()) {
+        result = Math.max(result, dirEntry.getValue().lastModified);
+        for (Map.Entry<String, FileEntry> fileEntry : dirEntry.getValue().files.entrySet()) {
+          files.put(dirEntry.getKey() + fileEntry.getKey(), fileEntry.getValue());
+          result = Math.max(result, fileEntry.getValue().lastModified);
+        }
+      }
+      return Math.min(result, index.lastFilesRevalidated);
+    }
+  }
+
+  /**
+   * Bring the index up to date with the disk, walking without recursion so deep trees are no problem.
+   */
+  private void revalidate(File baseDir, String subscribedPath, PathIndex index) {
+    long now = System.currentTimeMillis();
+    Set<String> touched = takeTouchedFiles(subscribedPath);
+    boolean checkFiles = touched == null
+      || now - index.lastFilesRevalidated > REVALIDATE_FILES_INTERVAL;
+    int relisted = 0, walked = 0, updated = 0;
+    Path basePath = baseDir.toPath();
+
+    Deque<String> toVisit = new ArrayDeque<String>();
+    toVisit.push("");
+    while (!toVisit.isEmpty()) {
+      String relDir = toVisit.pop();
+      Path dirPath = relDir.length() == 0 ? basePath : basePath.resolve(relDir);
+      DirEntry dir = index.dirs.get(relDir);
+
+      if (dir == null) {
+        // we've never seen it, so list everything underneath at once
+        walked++;
+        addTree(baseDir, relDir, index, null);
+        continue;
+      }
+
+      long dirModified = lastModified(dirPath, budget);
+      if (dir.lastModified != dirModified) {
+        // something was added or removed, so list it again
+        relisted++;
+        relist(dirPath, relDir, dir, index, null);
+
+      } else if (checkFiles) {
+        for (Map.Entry<String, FileEntry> fileEntry : dir.files.entrySet()) {
+          FileEntry current = recheck(dirPath.resolve(fileEntry.getKey()), fileEntry.getValue());
+          if (current != null) {
+            fileEntry.setValue(current);
+            updated++;
+          }
+        }
+      }
+
+      for (String subdir : dir.subdirs) {
+        toVisit.push(relDir + subdir + File.separator);
+      }
+    }
+
+    if (checkFiles) {
+      index.lastFilesRevalidated = now;
+    } else {
+      // just the ones the journal told us about (any that are new were found with their directory)
+      for (String relPath : touched) {
+        int nameStart = relPath.lastIndexOf(File.separatorChar) + 1;
+        DirEntry dir = index.dirs.get(relPath.substring(0, nameStart));
+        if (dir == null) {
+          continue;
+        }
+        String name = relPath.substring(nameStart);
+        FileEntry known = dir.files.get(name);
+        FileEntry current = known == null ? null : recheck(basePath.resolve(relPath), known);
+        if (current != null) {
+          dir.files.put(name, current);
+          updated++;
+        }
+      }
+    }
+    if (relisted + walked + updated > 0) {
+      changed = true;
+    }
+    Log.debug("SubscribedPathIndex: revalidated %s with %d dir(s), re-listing %d and walking %d new tree(s), and re-checked %s file times (%d changed).", baseDir, index.dirs.size(), relisted, walked, checkFiles ? "all the" : touched.size() + " changed", updated);
+  }
+
+  /**
+   * Check a file's size & time against the disk.
+   *
+   * @return the new entry, or null if it hasn't changed
+   */
+  private FileEntry recheck(Path path, FileEntry known) {
+    try {
+      BasicFileAttributes attrs = budget.readAttributes(path);
+      if (attrs.lastModifiedTime().toMillis() != known.lastModified
+          || attrs.size() != known.size) {
+        return new FileEntry(attrs.size(), attrs.lastModifiedTime().toMillis());
+      }
+    } catch (IOException e) {
+      // removed since the directory time was checked, so it'll be dropped at the next query
+    }
+    return null;
+  }
+
+  /**
+   * Re-list a single directory (and any directories under it that we haven't seen yet), eg. when file events were lost.
+   *
+   * @param relDir path of the directory relative to baseDir, ending in a separator (or "" for baseDir itself)
+   * @param changedFiles files (relative to baseDir) that were added or modified since we last looked, modified as we find more
+   */
+  public void rescanDirectory(File baseDir, String relDir, List<String> changedFiles) {
+    PathIndex index = indexFor(baseDir.getAbsolutePath());
+    changed = true;
+    synchronized (index) {
+      DirEntry dir = index.dirs.get(relDir);
+      if (dir == null) {
+        addTree(baseDir, relDir, index, changedFiles);
+        return;
+      }
+      relist(relDir.length() == 0 ? baseDir.toPath() : baseDir.toPath().resolve(relDir), relDir, dir, index, changedFiles);
+      for (String subdir : dir.subdirs) {
+        String relSubdir = relDir + subdir + File.separator;
+        if (!index.dirs.containsKey(relSubdir)) {
+          addTree(baseDir, relSubdir, index, changedFiles);
+        }
+      }
+    }
+  }
+
+  private static long lastModified(Path path, ScanBudget budget) {
+    try {
+      return budget.readAttributes(path).lastModifiedTime().toMillis();
+    } catch (IOException e) {
+      return 0;
+    }
+  }
+
+  /**
+   * Record a directory tree we haven't seen before.
+   *
+   * @param changedFiles if not null, all the files found (relative to the subscribed path), modified as we find more
+   */
+  private void addTree(File baseDir, String relDir, PathIndex index, List<String> changedFiles) {
+    for (Map.Entry<String, Listing> listingEntry : walker.walk(baseDir, relDir).entrySet()) {
+      Listing listing = listingEntry.getValue();
+      DirEntry dir = new DirEntry(listing.lastModified);
+      dir.files.putAll(listing.files);
+      dir.subdirs.addAll(listing.subdirs);
+      index.dirs.put(listingEntry.getKey(), dir);
+      if (changedFiles != null) {
+        for (String name : listing.files.keySet()) {
+          changedFiles.add(listingEntry.getKey() + name);
+        }
+      }
+    }
+  }
+
+  /**
+   * @param changedFiles if not null, files (relative to the subscribed path) that are new or modified, modified as we find more
+   */
+  private void relist(Path dirPath, String relDir, DirEntry dir, PathIndex index, List<String> changedFiles) {
+    Listing listing = ParallelTreeWalker.listDirectory(dirPath, budget);
+    dir.lastModified = listing.lastModified;
+    for (Map.Entry<String, FileEntry> fileEntry : listing.files.entrySet()) {
+      FileEntry known = dir.files.get(fileEntry.getKey());
+      if (known == null || known.lastModified != fileEntry.getValue().lastModified) {
+        dir.files.put(fileEntry.getKey(), fileEntry.getValue());
+        if (changedFiles != null) {
+          changedFiles.add(relDir + fileEntry.getKey());
+        }
+      }
+    }
+    dir.files.keySet().retainAll(listing.files.keySet());
+    for (Iterator<String> subdirs = dir.subdirs.iterator(); subdirs.hasNext(); ) {
+      String subdir = subdirs.next();
+      if (!listing.subdirs.contains(subdir)) {
+        subdirs.remove();
+        removeTree(relDir + subdir + File.separator, index);
+      }
+    }
+    dir.subdirs.addAll(listing.subdirs);
+  }
+
+  /** drop a directory that disappeared, along with everything we knew underneath it */
+  private void removeTree(String relDir, PathIndex index) {
+    List<String> toRemove = new ArrayList<String>();
+    toRemove.add(relDir);
+    while (!toRemove.isEmpty()) {
+      String removedPath = toRemove.remove(toRemove.size() - 1);
+      DirEntry removed = index.dirs.remove(removedPath);
+      if (removed != null) {
+        for (String subdir : removed.subdirs) {
+          toRemove.add(removedPath + subdir + File.separator);
+        }
+      }
+    }
+  }
+
+}
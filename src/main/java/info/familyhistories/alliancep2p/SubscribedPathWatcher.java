@@ -0,0 +1,288 @@
+package info.familyhistories.alliancep2p;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Watch the subscribed paths (on the publishing side) and record every change in the ChangeJournal,
+ * so a friend who sends back the token from their last reply only gets what changed since then,
+ * without us walking the tree.
+ *
+ * We start watching a path the first time a friend asks about it.
+ * If the OS loses events for a directory (an OVERFLOW) we re-list just that directory through the SubscribedPathIndex.
+ *
+ * Subscribed paths can be inside each other, and the OS gives back the same key when a directory is registered again,
+ * so each watched directory remembers every subscribed path it's under and its changes go in each of their journals.
+ */
+public class SubscribedPathWatcher implements Runnable {
+
+  private static class WatchedDir {
+    final Path dir;
+    /** the subscribed paths this directory is under (guarded by itself) */
+    private final Set<Path> roots = new LinkedHashSet<Path>();
+    WatchedDir(Path _dir) {
+      this.dir = _dir;
+    }
+    void addRoot(Path root) {
+      synchronized (roots) {
+        roots.add(root);
+      }
+    }
+    List<Path> roots() {
+      synchronized (roots) {
+        return new ArrayList<Path>(roots);
+      }
+    }
+  }
+
+  private final ChangeJournal journal;
+  private final SubscribedPathIndex pathIndex;
+  private final ScanBudget budget;
+  private WatchService watchService = null;
+  private final Map<WatchKey, WatchedDir> watchedDirs = Collections.synchronizedMap(new HashMap<WatchKey, WatchedDir>());
+  /** subscribed paths that are being re-listed after lost events, so the journal isn't complete for them right now */
+  private final Set<String> rescanning = Collections.synchronizedSet(new HashSet<String>());
+  /** subscribed paths that we couldn't completely register, so the journal will never be complete for them */
+  private final Set<String> incomplete = Collections.synchronizedSet(new HashSet<String>());
+
+  SubscribedPathWatcher(ChangeJournal _journal, SubscribedPathIndex _pathIndex, ScanBudget _budget) {
+    this.journal = _journal;
+    this.pathIndex = _pathIndex;
+    this.budget = _budget;
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      Thread thread = new Thread(this, "FriendFileChangeDetector watcher");
+      thread.setDaemon(true);
+      thread.start();
+    } catch (IOException e) {
+      System.err.println("Unable to watch for file changes, so every change query will check the subscribed path index.");
+      e.printStackTrace();
+    }
+  }
+
+  public void shutdown() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Start watching this directory tree, if we aren't already.
+   *
+   * @return the journal token to send to the friend for their next query, or null if we can't watch
+   */
+  public String watch(File subscribedDir) {
+    if (watchService == null) {
+      return null;
+    }
+    // take the token before registering so that nothing between now and the caller's scan can be missed
+    String token = journal.currentToken();
+    Path root = subscribedDir.toPath().toAbsolutePath();
+    if (journal.start(root.toString())) {
+      try {
+        registerTree(root, root, false);
+        pathIndex.watching(root.toString());
+      } catch (IOException e) {
+        System.err.println("Unable to watch all of " + root + ", so change queries there will always check the subscribed path index.");
+        e.printStackTrace();
+        incomplete.add(root.toString());
+      }
+    }
+    return incomplete.contains(root.toString()) ? null : token;
+  }
+
+  /**
+   * @param token the token we sent to the friend in a previous reply
+   * @param changedFiles files (relative to subscribedDir) that changed since that token, modified as we find more
+   * @return the latest of lastKnownModifiedTime and the times of the changed files, or -1 if the journal can't answer
+   * (in which case changedFiles is untouched)
+   */
+  public long filesChangedSince(File subscribedDir, String token, long lastKnownModifiedTime, List<String> changedFiles) {
+    String subscribedPath = subscribedDir.toPath().toAbsolutePath().toString();
+    long sequence = journal.sequenceOf(token);
+    if (watchService == null
+        || sequence == -1
+        || rescanning.contains(subscribedPath)
+        || incomplete.contains(subscribedPath)) {
+      return -1;
+    }
+    Set<String> changedPaths = new LinkedHashSet<String>();
+    if (!journal.changedSince(subscribedPath, sequence, changedPaths)) {
+      return -1;
+    }
+    long result = lastKnownModifiedTime;
+    for (String relPath : changedPaths) {
+      // deleted and replaced entries are in the journal too, so only report what is a file now
+      try {
+        BasicFileAttributes attrs = budget.readAttributes(new File(subscribedDir, relPath).toPath());
+        if (attrs.isRegularFile()) {
+          changedFiles.add(relPath);
+          result = Math.max(result, attrs.lastModifiedTime().toMillis());
+        }
+      } catch (IOException e) {
+        // deleted since
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @param recordFiles whether to add the files found to the journal, eg. for a directory that was just created
+   */
+  private void registerTree(final Path root, Path dir, final boolean recordFiles) throws IOException {
+    final String subscribedPath = root.toString();
+    Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult preVisitDirectory(Path subdir, BasicFileAttributes attrs) throws IOException {
+        budget.acquire(1);
+        WatchKey key = subdir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+        synchronized (watchedDirs) {
+          WatchedDir watched = watchedDirs.get(key);
+          if (watched == null) {
+            watched = new WatchedDir(subdir);
+            watchedDirs.put(key, watched);
+          }
+          // already watched for a subscribed path around this one (or inside it), so keep that one too
+          watched.addRoot(root);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+        budget.acquire(1);
+        if (recordFiles && attrs.isRegularFile()) {
+          journal.append(subscribedPath, root.relativize(file).toString());
+        }
+        return FileVisitResult.CONTINUE;
+      }
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) {
+        System.err.println("SubscribedPathWatcher: unable to look at " + file + ": " + e);
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  @Override
+  public void run() {
+    try {
+      while (true) {
+        WatchKey key = watchService.take();
+        WatchedDir watched = watchedDirs.get(key);
+        if (watched != null) {
+          handleEvents(key, watched);
+        } else {
+          key.pollEvents();
+        }
+        if (!key.reset()) {
+          // the directory is gone
+          watchedDirs.remove(key);
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+      // shutting down
+    } catch (InterruptedException e) {
+      System.err.println("The subscribed path watcher was interrupted, so we'll fall back to checking the subscribed path index.");
+      Set<String> subscribedPaths = new HashSet<String>();
+      synchronized (watchedDirs) {
+        for (WatchedDir watched : watchedDirs.values()) {
+          for (Path root : watched.roots()) {
+            subscribedPaths.add(root.toString());
+          }
+        }
+      }
+      for (String subscribedPath : subscribedPaths) {
+        pathIndex.notWatching(subscribedPath);
+      }
+      shutdown();
+    }
+  }
+
+  private void handleEvents(WatchKey key, WatchedDir watched) {
+    List<Path> roots = watched.roots();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        for (Path root : roots) {
+          rescan(root, watched.dir);
+        }
+        continue;
+      }
+      Path child = watched.dir.resolve((Path) event.context());
+      if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+        if (event.kind() == ENTRY_CREATE) {
+          // things may have been put inside before we could register it
+          for (Path root : roots) {
+            try {
+              registerTree(root, child, true);
+            } catch (IOException e) {
+              System.err.println("SubscribedPathWatcher: unable to watch new directory " + child + ", so rescanning " + watched.dir);
+              rescan(root, watched.dir);
+            }
+          }
+        }
+      } else {
+        for (Path root : roots) {
+          journal.append(root.toString(), root.relativize(child).toString());
+        }
+      }
+    }
+  }
+
+  /**
+   * Some events were lost for this directory, so compare it against the index and record the differences
+   * in the journal of the subscribed path at root.
+   */
+  private void rescan(Path root, Path dir) {
+    String subscribedPath = root.toString();
+    rescanning.add(subscribedPath);
+    try {
+      String relDir = root.relativize(dir).toString();
+      if (relDir.length() > 0) {
+        relDir += File.separator;
+      }
+      List<String> changedFiles = new ArrayList<String>();
+      pathIndex.rescanDirectory(root.toFile(), relDir, changedFiles);
+      for (String relPath : changedFiles) {
+        journal.append(subscribedPath, relPath);
+      }
+      registerTree(root, dir, false);
+      Log.info("SubscribedPathWatcher: lost events in %s, so re-listed it and found %d changed file(s) under %s.", dir, changedFiles.size(), root);
+    } catch (IOException e) {
+      System.err.println("SubscribedPathWatcher: unable to re-watch " + dir + " after lost events.");
+      e.printStackTrace();
+      pathIndex.notWatching(subscribedPath);
+      incomplete.add(subscribedPath);
+    } finally {
+      rescanning.remove(subscribedPath);
+    }
+  }
+
+}
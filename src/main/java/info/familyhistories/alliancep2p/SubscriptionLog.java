@@ -0,0 +1,196 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscription;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of subscription changes, written after the SerializedFriendSubscriptions snapshot
+ * so that a crash loses at most the last few unsynced records instead of everything since startup.
+ *
+ * Each record is its length, its contents, and a CRC, so a record torn by a crash is recognized and dropped.
+ * Records are forced to disk in groups: every SYNC_GROUP_SIZE records, or whenever sync() is called.
+ */
+public class SubscriptionLog {
+
+  static final int SYNC_GROUP_SIZE = 16;
+
+  private static final byte RECORD_CREATE = 1;
+  private static final byte RECORD_UPDATE = 2;
+
+  /** what to do with each record as the log is read back */
+  public static interface Replayer {
+    public void created(FriendSubscription fsub);
+    public void updated(int guid, String shareBasePath, String shareSubPath, long lastModifiedTime);
+  }
+
+  private final File file;
+  private FileOutputStream fileOut = null;
+  private DataOutputStream out = null;
+  private int unsynced = 0;
+  private long size = 0;
+
+  SubscriptionLog(File _file) {
+    this.file = _file;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /** @return how many bytes have been written to the file */
+  public synchronized long size() {
+    return size;
+  }
+
+  /**
+   * Read back every whole record, and cut off anything torn at the end.
+   */
+  public static void replay(File file, Replayer replayer) throws IOException {
+    if (!file.exists()) {
+      return;
+    }
+    long goodLength = 0;
+    int records = 0;
+    DataInputStream in = new DataInputStream(new FileInputStream(file));
+    try {
+      while (true) {
+        byte[] record;
+        long crc;
+        try {
+          int length = in.readInt();
+          if (length < 0 || length > 64 * 1024) {
+            System.err.println("SubscriptionLog: bad record length " + length + " in " + file + ", so we'll stop there.");
+            break;
+          }
+          record = new byte[length];
+          in.readFully(record);
+          crc = in.readLong();
+        } catch (EOFException e) {
+          break;
+        }
+        CRC32 check = new CRC32();
+        check.update(record);
+        if (check.getValue() != crc) {
+          System.err.println("SubscriptionLog: bad record checksum in " + file + ", so we'll stop there.");
+          break;
+        }
+        replayRecord(record, replayer);
+        goodLength += 4 + record.length + 8;
+        records++;
+      }
+    } finally {
+      in.close();
+    }
+    if (goodLength < file.length()) {
+      System.err.println("SubscriptionLog: dropping " + (file.length() - goodLength) + " torn byte(s) from the end of " + file);
+      RandomAccessFile truncator = new RandomAccessFile(file, "rw");
+      try {
+        truncator.setLength(goodLength);
+      } finally {
+        truncator.close();
+      }
+    }
+    Log.info("SubscriptionLog: replayed %d record(s) from %s", records, file);
+  }
+
+  private static void replayRecord(byte[] record, Replayer replayer) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+    byte type = in.readByte();
+    int guid = in.readInt();
+    String shareBasePath = in.readUTF();
+    String shareSubPath = in.readUTF();
+    if (type == RECORD_CREATE) {
+      String localPath = in.readUTF();
+      long lastKnownModified = in.readLong();
+      replayer.created(new FriendSubscription(guid, shareBasePath, shareSubPath, localPath, lastKnownModified));
+    } else if (type == RECORD_UPDATE) {
+      replayer.updated(guid, shareBasePath, shareSubPath, in.readLong());
+    } else {
+      throw new IOException("Unknown subscription log record type " + type);
+    }
+  }
+
+  /**
+   * Start appending to the end of the file.
+   */
+  public synchronized void open() throws IOException {
+    fileOut = new FileOutputStream(file, true);
+    out = new DataOutputStream(new BufferedOutputStream(fileOut));
+    size = file.length();
+  }
+
+  public synchronized void appendCreate(FriendSubscription fsub) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(RECORD_CREATE);
+    record.writeInt(fsub.guid);
+    record.writeUTF(fsub.shareBasePath);
+    record.writeUTF(fsub.shareSubPath);
+    record.writeUTF(fsub.localPath);
+    record.writeLong(fsub.lastKnownModified);
+    append(bytes.toByteArray());
+    // new subscriptions are rare and typed in by hand, so don't make them wait for a group
+    sync();
+  }
+
+  public synchronized void appendUpdate(int guid, String shareBasePath, String shareSubPath, long lastModifiedTime) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(RECORD_UPDATE);
+    record.writeInt(guid);
+    record.writeUTF(shareBasePath);
+    record.writeUTF(shareSubPath);
+    record.writeLong(lastModifiedTime);
+    append(bytes.toByteArray());
+  }
+
+  private void append(byte[] record) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(record);
+    out.writeInt(record.length);
+    out.write(record);
+    out.writeLong(crc.getValue());
+    size += 4 + record.length + 8;
+    unsynced++;
+    if (unsynced >= SYNC_GROUP_SIZE) {
+      sync();
+    }
+  }
+
+  /**
+   * Force anything written so far onto the disk.
+   */
+  public synchronized void sync() throws IOException {
+    if (unsynced > 0
+        && out != null) {
+      out.flush();
+      fileOut.getFD().sync();
+      unsynced = 0;
+    }
+  }
+
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      try {
+        sync();
+      } finally {
+        out.close();
+        out = null;
+        fileOut = null;
+      }
+    }
+  }
+
+}
@@ -0,0 +1,473 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscription;
+
+import java.io.File;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.alliance.core.CoreSubsystem;
+import org.alliance.core.node.Friend;
+
+/**
+ * Check each connected friend's subscriptions for changes when they connect and then again every so often,
+ * so a friend who stays connected for days still gets checked.
+ *
+ * Each friend is checked in rounds: a query for each of their subscriptions, then a wait until the next round.
+ * The wait is jittered so friends who connected together don't all get asked at once, and it doubles (up to
+ * 2^MAX_BACKOFF_SHIFT times) after each round where every query failed or found nothing.  No more than
+ * MAX_IN_FLIGHT queries are waiting for an answer at once, across all friends; the rest wait their turn.
+ * When a friend says they're too busy, we ask again when they say to, and the query stays waiting till then.
+ * A friend who takes batch queries gets their subscriptions asked about several at a time, each batch going out
+ * when there's room for one more query (however many it holds).  Follow-up queries (eg. for the directories further
+ * down a hash tree, or for a path a friend sent a change notice about) count toward the cap too, and go out ahead of
+ * the next rounds as room opens up.
+ *
+ * Set the system property named by INTERVAL_PROPERTY to the minutes between rounds (default: 60), or 0 to only
+ * check when a friend connects; set the one named by MAX_IN_FLIGHT_PROPERTY to change the cap (default: 8).
+ */
+public class SubscriptionPoller {
+
+  static final String INTERVAL_PROPERTY = "info.familyhistories.alliancep2p.pollMinutes";
+  static final long INTERVAL = Long.getLong(INTERVAL_PROPERTY, 60) * 60 * 1000;
+  static final String MAX_IN_FLIGHT_PROPERTY = "info.familyhistories.alliancep2p.pollMaxInFlight";
+  static final int MAX_IN_FLIGHT = Math.max(1, Integer.getInteger(MAX_IN_FLIGHT_PROPERTY, 8));
+
+  /** the fraction of a wait that's random, either way */
+  static final double JITTER = 0.2;
+  static final int MAX_BACKOFF_SHIFT = 5;
+  /** how long (in millis) to wait for an answer before we count the query as failed */
+  static final long QUERY_TIMEOUT = 5 * 60 * 1000;
+  /** how long (in millis) to wait before trying again when too many queries are out */
+  static final long BUSY_DELAY = 30 * 1000;
+
+  /** how to find and ask about the subscriptions, since that belongs to the plugin */
+  public static interface Querier {
+    public List<FriendSubscription> subscriptions(Friend friend) throws SQLException;
+    /** @return false if the query couldn't be sent */
+    public boolean query(Friend friend, FriendSubscription fsub);
+    /** @return how many subscriptions to ask this friend about at once (1 if they don't take batches) */
+    public int batchSize(int guid);
+    /** @return the subscriptions that couldn't be asked about (all of them if the batch couldn't be sent) */
+    public List<FriendSubscription> queryBatch(Friend friend, List<FriendSubscription> fsubs);
+  }
+
+  /** a query that continues another one, eg. for a directory further down a hash tree */
+  public static interface FollowUp {
+    /** @return false if it couldn't be sent */
+    public boolean send();
+  }
+
+  private static class FriendState {
+    /** the next thing to do for them: the next round, or the rest of this one */
+    ScheduledFuture<?> next;
+    /** giving up on the answers in this round, or null if none are out */
+    ScheduledFuture<?> timeout;
+    /** subscriptions still to ask about in this round */
+    final List<FriendSubscription> pending = new LinkedList<FriendSubscription>();
+    /** map from key to subscription of queries in this round that haven't been answered */
+    final Map<String, FriendSubscription> outstanding = new HashMap<String, FriendSubscription>();
+    /** how many rounds in a row failed or found nothing */
+    int backoff = 0;
+    boolean roundChanged = false;
+  }
+
+  private final CoreSubsystem core;
+  private final Querier querier;
+  private final Random random = new Random();
+  /** map from friend GUID to their state (guarded by this) */
+  private final Map<Integer, FriendState> friends = new HashMap<Integer, FriendState>();
+  /** keys of the queries waiting for an answer, across all friends (guarded by this) */
+  private final Set<String> inFlight = new HashSet<String>();
+  /** map from key to follow-up queries waiting for room, oldest first (guarded by this) */
+  private final Map<String, FollowUp> waitingFollowUps = new LinkedHashMap<String, FollowUp>();
+  /** map from key to follow-up queries that were sent and are in inFlight (guarded by this) */
+  private final Map<String, FollowUp> sentFollowUps = new HashMap<String, FollowUp>();
+  private final ScheduledExecutorService pollThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "FriendFileChangeDetector poller");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+  SubscriptionPoller(CoreSubsystem _core, Querier _querier) {
+    this.core = _core;
+    this.querier = _querier;
+  }
+
+  public void shutdown() {
+    pollThread.shutdownNow();
+  }
+
+  private static String queryKey(int guid, String shareBase, String shareSubPath) {
+    return guid + File.pathSeparator + shareBase + File.pathSeparator + shareSubPath;
+  }
+
+  /**
+   * @param part what the follow-up asks about within the subscription, eg. a directory in a hash tree
+   */
+  private static String followUpKey(int guid, String shareBase, String shareSubPath, String part) {
+    return queryKey(guid, shareBase, shareSubPath) + File.pathSeparator + part;
+  }
+
+  /**
+   * Start a round for this friend now (eg. because they just connected), forgetting any backoff.
+   */
+  public synchronized void pollNow(final int guid) {
+    FriendState state = friends.get(guid);
+    if (state == null) {
+      state = new FriendState();
+      friends.put(guid, state);
+    } else {
+      cancelScheduled(state);
+      forgetQueries(state);
+    }
+    state.backoff = 0;
+    state.next = pollThread.schedule(new Runnable() {
+        public void run() {
+          startRound(guid);
+        }
+      }, 0, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop checking this friend (eg. because they disconnected).
+   */
+  public synchronized void forget(int guid) {
+    FriendState state = friends.remove(guid);
+    if (state != null) {
+      cancelScheduled(state);
+      forgetQueries(state);
+    }
+    String prefix = guid + File.pathSeparator;
+    for (Iterator<String> keys = waitingFollowUps.keySet().iterator(); keys.hasNext(); ) {
+      if (keys.next().startsWith(prefix)) {
+        keys.remove();
+      }
+    }
+    for (Iterator<String> keys = sentFollowUps.keySet().iterator(); keys.hasNext(); ) {
+      String key = keys.next();
+      if (key.startsWith(prefix)) {
+        keys.remove();
+        inFlight.remove(key);
+      }
+    }
+    sendFollowUps();
+  }
+
+  /**
+   * Send a follow-up query when there's room for it.
+   *
+   * @param part what it asks about within the subscription, eg. a directory in a hash tree
+   */
+  public synchronized void followUp(int guid, String shareBase, String shareSubPath, String part, FollowUp followUp) {
+    String key = followUpKey(guid, shareBase, shareSubPath, part);
+    if (inFlight.contains(key)) {
+      // already asked, and the answer will do
+      return;
+    }
+    waitingFollowUps.put(key, followUp);
+    sendFollowUps();
+  }
+
+  /**
+   * Ask about a subscription again when there's room, because the friend told us it changed.
+   * Several notices for it while it waits (or while a round is asking about it anyway) only ask once.
+   */
+  public synchronized void noticed(int guid, String shareBase, String shareSubPath, FollowUp query) {
+    if (inFlight.contains(queryKey(guid, shareBase, shareSubPath))) {
+      return;
+    }
+    // the whole subscription, unlike a hash tree follow-up (which is always further down)
+    followUp(guid, shareBase, shareSubPath, "", query);
+  }
+
+  private void sendFollowUps() {
+    for (Iterator<Map.Entry<String, FollowUp>> waiting = waitingFollowUps.entrySet().iterator();
+         waiting.hasNext() && inFlight.size() < MAX_IN_FLIGHT; ) {
+      Map.Entry<String, FollowUp> entry = waiting.next();
+      waiting.remove();
+      final String key = entry.getKey();
+      final FollowUp followUp = entry.getValue();
+      inFlight.add(key);
+      sentFollowUps.put(key, followUp);
+      core.invokeLater(new Runnable() {
+          public void run() {
+            if (!followUp.send()) {
+              followUpDone(key, followUp);
+            }
+          }
+        });
+      pollThread.schedule(new Runnable() {
+          public void run() {
+            followUpDone(key, followUp);
+          }
+        }, QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+    if (!waitingFollowUps.isEmpty()) {
+      Log.debug("SubscriptionPoller: %d queries are out, so %d follow-up(s) wait.", inFlight.size(), waitingFollowUps.size());
+    }
+  }
+
+  /**
+   * @param followUp the one that was sent, so an answer (or a timeout) for an earlier one with the same key doesn't count
+   */
+  private synchronized void followUpDone(String key, FollowUp followUp) {
+    if (followUp == null ? sentFollowUps.containsKey(key) : sentFollowUps.get(key) == followUp) {
+      sentFollowUps.remove(key);
+      inFlight.remove(key);
+      sendFollowUps();
+    }
+  }
+
+  /**
+   * Count a query as answered.
+   *
+   * @param part what it asked about, if it was a follow-up (see followUp); otherwise null
+   * @param changed whether the answer had anything new
+   */
+  public synchronized void replied(int guid, String shareBase, String shareSubPath, String part, boolean changed) {
+    // the answer to the subscription's own query is also the answer to a notice about it
+    followUpDone(followUpKey(guid, shareBase, shareSubPath, part == null ? "" : part), null);
+    FriendState state = friends.get(guid);
+    if (state == null) {
+      return;
+    }
+    if (changed) {
+      state.roundChanged = true;
+    }
+    if (part != null) {
+      return;
+    }
+    String key = queryKey(guid, shareBase, shareSubPath);
+    if (state.outstanding.remove(key) != null) {
+      inFlight.remove(key);
+      finishRoundIfDone(guid, state);
+      sendFollowUps();
+    }
+  }
+
+  /**
+   * They were too busy to answer, so ask again after a while (if it was one of ours).
+   *
+   * @param part what it asked about, if it was a follow-up (see followUp), which we leave for the next round; otherwise null
+   * @param retryAfter how long (in millis) they asked us to wait
+   */
+  public synchronized void busy(final int guid, String shareBase, String shareSubPath, String part, long retryAfter) {
+    if (part != null) {
+      Log.info("SubscriptionPoller: friend %d was too busy for %s %s %s, so we'll see at the next check.", guid, shareBase, shareSubPath, part);
+      followUpDone(followUpKey(guid, shareBase, shareSubPath, part), null);
+      return;
+    }
+    // a notice is only a hint, so if they're too busy it waits for the next round
+    followUpDone(followUpKey(guid, shareBase, shareSubPath, ""), null);
+    final FriendState state = friends.get(guid);
+    final String key = queryKey(guid, shareBase, shareSubPath);
+    final FriendSubscription fsub = state == null ? null : state.outstanding.get(key);
+    if (fsub == null) {
+      Log.info("SubscriptionPoller: friend %d was too busy for %s %s, so we'll see at the next check.", guid, shareBase, shareSubPath);
+      return;
+    }
+    long delay = jitter(retryAfter);
+    Log.info("SubscriptionPoller: friend %d was too busy for %s %s, so we'll ask again in %d seconds.", guid, shareBase, shareSubPath, delay / 1000);
+    pollThread.schedule(new Runnable() {
+        public void run() {
+          synchronized (SubscriptionPoller.this) {
+            if (friends.get(guid) == state
+                && state.outstanding.get(key) == fsub) {
+              sendQuery(guid, key, fsub);
+            }
+          }
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+  }
+
+  private synchronized void failed(int guid, String key) {
+    FriendState state = friends.get(guid);
+    if (state != null
+        && state.outstanding.remove(key) != null) {
+      inFlight.remove(key);
+      finishRoundIfDone(guid, state);
+      sendFollowUps();
+    }
+  }
+
+  private static void cancelScheduled(FriendState state) {
+    if (state.next != null) {
+      state.next.cancel(false);
+      state.next = null;
+    }
+    if (state.timeout != null) {
+      state.timeout.cancel(false);
+      state.timeout = null;
+    }
+  }
+
+  private void forgetQueries(FriendState state) {
+    inFlight.removeAll(state.outstanding.keySet());
+    state.outstanding.clear();
+    state.pending.clear();
+    sendFollowUps();
+  }
+
+  private void startRound(int guid) {
+    Friend friend = core.getFriendManager().getFriend(guid);
+    if (friend == null
+        || !friend.isConnected()) {
+      forget(guid);
+      return;
+    }
+    List<FriendSubscription> fsubs;
+    try {
+      fsubs = querier.subscriptions(friend);
+    } catch (SQLException e) {
+      System.err.println("Failed to get the friend subscription info, so we'll check friend " + guid + " later.");
+      e.printStackTrace();
+      fsubs = new ArrayList<FriendSubscription>();
+    }
+    synchronized (this) {
+      FriendState state = friends.get(guid);
+      if (state == null) {
+        return;
+      }
+      state.pending.addAll(fsubs);
+      state.roundChanged = false;
+      sendPending(guid, state);
+    }
+  }
+
+  private synchronized void sendPending(final int guid, final FriendState state) {
+    int batchSize = Math.max(1, querier.batchSize(guid));
+    while (!state.pending.isEmpty()) {
+      if (inFlight.size() >= MAX_IN_FLIGHT) {
+        Log.debug("SubscriptionPoller: %d queries are out, so friend %d waits with %d to ask.", inFlight.size(), guid, state.pending.size());
+        if (state.next != null) {
+          state.next.cancel(false);
+        }
+        state.next = pollThread.schedule(new Runnable() {
+            public void run() {
+              synchronized (SubscriptionPoller.this) {
+                if (friends.get(guid) == state) {
+                  sendPending(guid, state);
+                }
+              }
+            }
+          }, jitter(BUSY_DELAY), TimeUnit.MILLISECONDS);
+        return;
+      }
+      Map<String, FriendSubscription> batch = new LinkedHashMap<String, FriendSubscription>();
+      while (!state.pending.isEmpty()
+             && batch.size() < batchSize) {
+        FriendSubscription fsub = state.pending.remove(0);
+        String key = queryKey(guid, fsub.shareBasePath, fsub.shareSubPath);
+        if (state.outstanding.containsKey(key)) {
+          continue;
+        }
+        state.outstanding.put(key, fsub);
+        inFlight.add(key);
+        batch.put(key, fsub);
+      }
+      if (batch.size() == 1) {
+        Map.Entry<String, FriendSubscription> only = batch.entrySet().iterator().next();
+        sendQuery(guid, only.getKey(), only.getValue());
+      } else if (batch.size() > 1) {
+        sendBatch(guid, batch);
+      }
+    }
+    if (state.outstanding.isEmpty()) {
+      finishRoundIfDone(guid, state);
+    } else {
+      // from the last queries sent, so the earlier ones wait a bit longer rather than the later ones too little
+      if (state.timeout != null) {
+        state.timeout.cancel(false);
+      }
+      // so one that was already starting when it was cancelled can tell it's been replaced
+      final ScheduledFuture<?>[] thisTimeout = new ScheduledFuture<?>[1];
+      thisTimeout[0] = state.timeout = pollThread.schedule(new Runnable() {
+          public void run() {
+            synchronized (SubscriptionPoller.this) {
+              if (friends.get(guid) == state
+                  && state.timeout == thisTimeout[0]
+                  && !state.outstanding.isEmpty()) {
+                System.err.println("SubscriptionPoller: friend " + guid + " didn't answer " + state.outstanding.size() + " queries in time.");
+                inFlight.removeAll(state.outstanding.keySet());
+                state.outstanding.clear();
+                finishRoundIfDone(guid, state);
+                sendFollowUps();
+              }
+            }
+          }
+        }, QUERY_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void sendQuery(final int guid, final String key, final FriendSubscription fsub) {
+    final Friend friend = core.getFriendManager().getFriend(guid);
+    core.invokeLater(new Runnable() {
+        public void run() {
+          if (!querier.query(friend, fsub)) {
+            failed(guid, key);
+          }
+        }
+      });
+  }
+
+  private void sendBatch(final int guid, final Map<String, FriendSubscription> batch) {
+    final Friend friend = core.getFriendManager().getFriend(guid);
+    core.invokeLater(new Runnable() {
+        public void run() {
+          List<FriendSubscription> notAsked = querier.queryBatch(friend, new ArrayList<FriendSubscription>(batch.values()));
+          for (Map.Entry<String, FriendSubscription> entry : batch.entrySet()) {
+            if (notAsked.contains(entry.getValue())) {
+              failed(guid, entry.getKey());
+            }
+          }
+        }
+      });
+  }
+
+  /**
+   * If everything in this round was sent and answered (or gave up on), set the backoff and plan the next round.
+   */
+  private void finishRoundIfDone(final int guid, FriendState state) {
+    if (!state.pending.isEmpty()
+        || !state.outstanding.isEmpty()) {
+      return;
+    }
+    if (state.roundChanged) {
+      state.backoff = 0;
+    } else {
+      state.backoff = Math.min(state.backoff + 1, MAX_BACKOFF_SHIFT);
+    }
+    cancelScheduled(state);
+    if (INTERVAL > 0) {
+      long delay = jitter(INTERVAL << state.backoff);
+      Log.debug("SubscriptionPoller: will check friend %d again in %d seconds.", guid, delay / 1000);
+      state.next = pollThread.schedule(new Runnable() {
+          public void run() {
+            startRound(guid);
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private long jitter(long delay) {
+    return (long) (delay * (1 - JITTER + 2 * JITTER * random.nextDouble()));
+  }
+
+}
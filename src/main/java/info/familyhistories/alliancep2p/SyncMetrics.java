@@ -0,0 +1,379 @@
+package info.familyhistories.alliancep2p;
+
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscription;
+import info.familyhistories.alliancep2p.FriendFileChangeDetectorPlugIn.FriendSubscriptionPersistence;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts and histograms of how syncing is going, for each friend and each path, so we can see slow shares and
+ * friends from the console (the metrics command) without attaching a profiler.
+ *
+ * On the publishing side we track the queries we serve for each of our paths: how long they took, how many files
+ * were looked at, and how big the replies were.  On the subscribing side we track, for each subscription, how long
+ * it took to parse what came in, the downloads we queued, and how long the persistence took to record them.
+ * A queued download counts as completed once its file shows up in the local directory, which we check when
+ * someone asks for the numbers (for up to MAX_AWAITING files per path).
+ *
+ * Set the system property named by JMX_PROPERTY to true to also see the report as an MBean.
+ */
+public class SyncMetrics implements SyncMetricsMBean {
+
+  static final String JMX_PROPERTY = "info.familyhistories.alliancep2p.jmx";
+  static final boolean JMX = Boolean.getBoolean(JMX_PROPERTY);
+  static final String OBJECT_NAME = "info.familyhistories.alliancep2p:type=SyncMetrics";
+
+  /** the most paths we keep numbers for; the least recently used go first */
+  static final int MAX_PATHS = 256;
+  /** the most queued downloads we watch for in each path */
+  static final int MAX_AWAITING = 1000;
+
+  /**
+   * The count, total, maximum, and power-of-two buckets of some measure (eg. micros or bytes).
+   */
+  public static class Histogram {
+    private final long[] buckets = new long[64];
+    private long count = 0, sum = 0, max = 0;
+    public synchronized void record(long value) {
+      value = Math.max(0, value);
+      // bucket i holds values from 2^(i-1) to 2^i - 1, and bucket 0 holds 0
+      buckets[64 - Long.numberOfLeadingZeros(value)]++;
+      count++;
+      sum += value;
+      max = Math.max(max, value);
+    }
+    public synchronized long getCount() {
+      return count;
+    }
+    /**
+     * @return the top of the bucket holding that fraction of the values (so it's within a factor of 2)
+     */
+    public synchronized long percentile(double fraction) {
+      long toPass = (long) Math.ceil(count * fraction);
+      long passed = 0;
+      for (int i = 0; i < buckets.length; i++) {
+        passed += buckets[i];
+        if (passed >= toPass
+            && passed > 0) {
+          return Math.min(max, (1L << i) - 1);
+        }
+      }
+      return max;
+    }
+    public synchronized String toString() {
+      if (count == 0) {
+        return "none";
+      }
+      return "n=" + count + " mean=" + (sum / count) + " p50<=" + percentile(0.5) + " p99<=" + percentile(0.99) + " max=" + max;
+    }
+  }
+
+  /** the numbers for one friend or path */
+  public static class Stats {
+    /** the friend these are for, or -1 for one of our paths, which any friend can ask about */
+    final int guid;
+    final Histogram queryMicros = new Histogram();
+    final Histogram filesScanned = new Histogram();
+    final Histogram replyBytes = new Histogram();
+    final Histogram parseMicros = new Histogram();
+    final Histogram persistMicros = new Histogram();
+    /** the time to compress (or uncompress) each message */
+    final Histogram compressMicros = new Histogram();
+    final AtomicLong uncompressedBytes = new AtomicLong();
+    final AtomicLong compressedBytes = new AtomicLong();
+    final AtomicLong busyReplies = new AtomicLong();
+    final AtomicLong downloadsScheduled = new AtomicLong();
+    final AtomicLong downloadsCompleted = new AtomicLong();
+    /** local files we queued that haven't shown up yet (guarded by this) */
+    private final Set<File> awaiting = new HashSet<File>();
+    Stats(int _guid) {
+      this.guid = _guid;
+    }
+    synchronized void await(File localFile) {
+      if (awaiting.size() < MAX_AWAITING) {
+        awaiting.add(localFile);
+      }
+    }
+    /**
+     * Count the queued downloads that have arrived.
+     * @return how many arrived since the last time
+     */
+    synchronized int settle() {
+      int arrived = 0;
+      for (Iterator<File> files = awaiting.iterator(); files.hasNext(); ) {
+        if (files.next().exists()) {
+          files.remove();
+          arrived++;
+        }
+      }
+      downloadsCompleted.addAndGet(arrived);
+      return arrived;
+    }
+    public String toString() {
+      StringBuilder result = new StringBuilder();
+      append(result, "queries served (micros)", queryMicros);
+      append(result, "files scanned", filesScanned);
+      append(result, "reply bytes", replyBytes);
+      append(result, "parse (micros)", parseMicros);
+      append(result, "persistence writes (micros)", persistMicros);
+      if (compressMicros.getCount() > 0) {
+        result.append("; compressed ").append(uncompressedBytes.get()).append(" bytes to ")
+          .append(compressedBytes.get() * 100 / Math.max(1, uncompressedBytes.get())).append("%");
+        append(result, "compression (micros)", compressMicros);
+      }
+      if (busyReplies.get() > 0) {
+        result.append("; busy replies ").append(busyReplies.get());
+      }
+      if (downloadsScheduled.get() > 0) {
+        result.append("; downloads ").append(downloadsCompleted.get()).append(" of ").append(downloadsScheduled.get()).append(" completed");
+      }
+      return result.length() == 0 ? "nothing yet" : result.substring(2);
+    }
+    private static void append(StringBuilder result, String name, Histogram histogram) {
+      if (histogram.getCount() > 0) {
+        result.append("; ").append(name).append(" ").append(histogram);
+      }
+    }
+  }
+
+  /** map from friend GUID to their numbers (guarded by this) */
+  private final Map<Integer, Stats> friendStats = new TreeMap<Integer, Stats>();
+  /** map from path label (see servedPath and subscribedPath) to its numbers, in access order (guarded by this) */
+  private final Map<String, Stats> pathStats = new LinkedHashMap<String, Stats>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Stats> eldest) {
+        return size() > MAX_PATHS;
+      }
+    };
+  private ObjectName registeredName = null;
+
+  SyncMetrics() {
+    if (JMX) {
+      try {
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(name)) {
+          server.registerMBean(this, name);
+          registeredName = name;
+        }
+      } catch (JMException e) {
+        System.err.println("Failed to register the sync metrics with JMX, so they'll only be in the console.");
+        e.printStackTrace();
+      }
+    }
+  }
+
+  public void shutdown() {
+    if (registeredName != null) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+      } catch (JMException e) {
+        System.err.println("Failed to unregister the sync metrics from JMX.");
+        e.printStackTrace();
+      }
+      registeredName = null;
+    }
+  }
+
+  /** @return the label for one of our paths that friends ask about */
+  static String servedPath(int shareBaseIndex, String shareSubPath) {
+    return "ours " + shareBaseIndex + " " + shareSubPath;
+  }
+
+  /** @return the label for one of our subscriptions to a friend's path */
+  static String subscribedPath(int guid, String shareBase, String shareSubPath) {
+    return "theirs " + guid + " " + shareBase + " " + shareSubPath;
+  }
+
+  public synchronized Stats friend(int guid) {
+    Stats result = friendStats.get(guid);
+    if (result == null) {
+      result = new Stats(guid);
+      friendStats.put(guid, result);
+    }
+    return result;
+  }
+
+  public synchronized Stats path(int guid, String label) {
+    Stats result = pathStats.get(label);
+    if (result == null) {
+      result = new Stats(guid);
+      pathStats.put(label, result);
+    }
+    return result;
+  }
+
+  public void queryServed(int guid, int shareBaseIndex, String shareSubPath, long nanos) {
+    path(-1, servedPath(shareBaseIndex, shareSubPath)).queryMicros.record(nanos / 1000);
+    friend(guid).queryMicros.record(nanos / 1000);
+  }
+
+  /**
+   * Record how many files we looked at to find the changes for a query.
+   */
+  public void filesScanned(int guid, int shareBaseIndex, String shareSubPath, int files) {
+    path(-1, servedPath(shareBaseIndex, shareSubPath)).filesScanned.record(files);
+    friend(guid).filesScanned.record(files);
+  }
+
+  public void replySent(int guid, int shareBaseIndex, String shareSubPath, int bytes) {
+    path(-1, servedPath(shareBaseIndex, shareSubPath)).replyBytes.record(bytes);
+    friend(guid).replyBytes.record(bytes);
+  }
+
+  /**
+   * Record a message we compressed (or uncompressed).
+   * @param label the path it's about (see servedPath and subscribedPath), or null if we don't know
+   * @param compressedBytes the compressed size, or the uncompressed size if compressing didn't make it smaller
+   */
+  public void compressed(int guid, String label, int uncompressedBytes, int compressedBytes, long nanos) {
+    Stats stats = friend(guid);
+    stats.compressMicros.record(nanos / 1000);
+    stats.uncompressedBytes.addAndGet(uncompressedBytes);
+    stats.compressedBytes.addAndGet(compressedBytes);
+    if (label != null) {
+      Stats pathStats = path(guid, label);
+      pathStats.compressMicros.record(nanos / 1000);
+      pathStats.uncompressedBytes.addAndGet(uncompressedBytes);
+      pathStats.compressedBytes.addAndGet(compressedBytes);
+    }
+  }
+
+  public void busyReplySent(int guid, int shareBaseIndex, String shareSubPath) {
+    path(-1, servedPath(shareBaseIndex, shareSubPath)).busyReplies.incrementAndGet();
+    friend(guid).busyReplies.incrementAndGet();
+  }
+
+  /**
+   * Record how long it took to parse a message from a friend.
+   * @param label the path it's about (see servedPath and subscribedPath), or null if it couldn't be parsed
+   */
+  public void parsed(int guid, String label, long nanos) {
+    if (label != null) {
+      path(guid, label).parseMicros.record(nanos / 1000);
+    }
+    friend(guid).parseMicros.record(nanos / 1000);
+  }
+
+  /**
+   * Record the downloads we queued for a subscription.
+   * @param localFiles where each download will land
+   */
+  public void downloadsScheduled(int guid, String shareBase, String shareSubPath, List<File> localFiles) {
+    Stats pathStats = path(guid, subscribedPath(guid, shareBase, shareSubPath));
+    pathStats.downloadsScheduled.addAndGet(localFiles.size());
+    friend(guid).downloadsScheduled.addAndGet(localFiles.size());
+    for (File localFile : localFiles) {
+      pathStats.await(localFile);
+    }
+  }
+
+  public void persisted(int guid, String shareBase, String shareSubPath, long nanos) {
+    path(guid, subscribedPath(guid, shareBase, shareSubPath)).persistMicros.record(nanos / 1000);
+    friend(guid).persistMicros.record(nanos / 1000);
+  }
+
+  /**
+   * @return a line for each friend and then each path, after counting the downloads that have arrived
+   */
+  public List<String> report() {
+    Map<Integer, Stats> friendsCopy;
+    Map<String, Stats> pathsCopy;
+    synchronized (this) {
+      friendsCopy = new TreeMap<Integer, Stats>(friendStats);
+      pathsCopy = new TreeMap<String, Stats>(pathStats);
+    }
+    for (Stats stats : pathsCopy.values()) {
+      int arrived = stats.settle();
+      if (arrived > 0
+          && stats.guid != -1) {
+        friend(stats.guid).downloadsCompleted.addAndGet(arrived);
+        friendsCopy.put(stats.guid, friend(stats.guid));
+      }
+    }
+    List<String> result = new ArrayList<String>();
+    for (Map.Entry<Integer, Stats> entry : friendsCopy.entrySet()) {
+      result.add("friend " + entry.getKey() + ": " + entry.getValue());
+    }
+    for (Map.Entry<String, Stats> entry : pathsCopy.entrySet()) {
+      result.add(entry.getKey() + ": " + entry.getValue());
+    }
+    return result;
+  }
+
+  @Override
+  public String[] getReport() {
+    return report().toArray(new String[0]);
+  }
+
+  @Override
+  public synchronized void reset() {
+    friendStats.clear();
+    pathStats.clear();
+  }
+
+  /**
+   * @return persistence that records how long each write takes
+   */
+  public FriendSubscriptionPersistence timed(final FriendSubscriptionPersistence persistence) {
+    return new FriendSubscriptionPersistence() {
+      public boolean createFriendSubscription(FriendSubscription fsub) throws SQLException {
+        long start = System.nanoTime();
+        try {
+          return persistence.createFriendSubscription(fsub);
+        } finally {
+          persisted(fsub.guid, fsub.shareBasePath, fsub.shareSubPath, System.nanoTime() - start);
+        }
+      }
+      public List<FriendSubscription> getFriendSubscriptions() throws SQLException {
+        return persistence.getFriendSubscriptions();
+      }
+      public List<FriendSubscription> getFriendSubscriptions(Integer guid) throws SQLException {
+        return persistence.getFriendSubscriptions(guid);
+      }
+      public FriendSubscription getFriendSubscription(Integer guid, String shareBasePath, String shareSubPath) throws SQLException {
+        return persistence.getFriendSubscription(guid, shareBasePath, shareSubPath);
+      }
+      public boolean updateFriendSubscription(Integer friendGuid, String shareBasePath, String shareSubPath, long lastModifiedTime) throws SQLException {
+        long start = System.nanoTime();
+        try {
+          return persistence.updateFriendSubscription(friendGuid, shareBasePath, shareSubPath, lastModifiedTime);
+        } finally {
+          persisted(friendGuid, shareBasePath, shareSubPath, System.nanoTime() - start);
+        }
+      }
+      public int updateFriendSubscriptions(List<FriendSubscription> updates) throws SQLException {
+        long start = System.nanoTime();
+        try {
+          return persistence.updateFriendSubscriptions(updates);
+        } finally {
+          // it's one write, so share the time among them
+          long each = (System.nanoTime() - start) / Math.max(1, updates.size());
+          for (FriendSubscription fsub : updates) {
+            persisted(fsub.guid, fsub.shareBasePath, fsub.shareSubPath, each);
+          }
+        }
+      }
+      public void shutdown() {
+        persistence.shutdown();
+      }
+    };
+  }
+
+}
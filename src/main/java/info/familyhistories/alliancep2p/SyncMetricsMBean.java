@@ -0,0 +1,14 @@
+package info.familyhistories.alliancep2p;
+
+/**
+ * What SyncMetrics shows through JMX (when the system property named by SyncMetrics.JMX_PROPERTY is true).
+ */
+public interface SyncMetricsMBean {
+
+  /** @return the same lines as the metrics command in the console */
+  public String[] getReport();
+
+  /** forget everything counted so far */
+  public void reset();
+
+}